@@ -139,9 +139,86 @@ public class Options {
     // Kernel configuration options.
     
     /**
-     *  Should we run Round-Robin scheduling?
+     * Scheduling policy: "mlfq" (multilevel feedback queues), "rr" (round robin),
+     * "stride" or "lottery".
      */
-    public boolean RR_SCHEDULING = false;
+    public String SCHEDULING_POLICY = "mlfq";
+    
+    /**
+     * Should each CPU have its own set of ready queues, with idle CPUs stealing
+     * work from busy ones?  If false, all CPUs share one set of ready queues
+     * protected by a single scheduler spin lock.  Has no effect with one CPU.
+     */
+    public boolean PER_CPU_QUEUES = false;
+    
+    /**
+     * Weight p given to the latest CPU burst when a thread's next burst is
+     * predicted as p*burst + (1-p)*previous prediction.  Must be in [0, 1].
+     */
+    public double BURST_SMOOTHING = 0.4;
+    
+    /**
+     * Should CPU timers be stopped when they are not needed (only with CPU_TIMERS)?
+     * An idle CPU, or one running a thread with no other thread waiting for it,
+     * then takes no timer interrupts, except that one timer is kept running
+     * while any thread is sleeping.
+     */
+    public boolean TICKLESS = false;
+    
+    /**
+     * Should a thread that becomes ready preferably go back to the CPU it last
+     * ran on ("soft" affinity)?  Affinity masks set with the SetAffinity system
+     * call are obeyed whatever this says.
+     */
+    public boolean CPU_AFFINITY = false;
+    
+    /**
+     * Should the user threads of one address space be run together, as a gang,
+     * on as many CPUs as they can use?  Only with shared ready queues.
+     */
+    public boolean GANG_SCHEDULING = false;
+    
+    /**
+     * Should the scheduler spin lock be a queued (MCS) lock, which hands the
+     * lock to waiting CPUs in FIFO order, rather than a test-and-set lock?
+     */
+    public boolean QUEUED_SCHEDULER_LOCK = true;
+    
+    /** Number of worker threads that run TaskManager tasks. */
+    public int TASK_WORKERS = 4;
+    
+    /**
+     * Number of finished user threads each CPU keeps for reuse by Fork and
+     * Exec, rather than destroying them (0, the default, to always create
+     * new threads).  A cached thread that finishes from deep inside its
+     * body gets back to its reuse loop by throwing an Error, which unwinds
+     * through any finally blocks and catch clauses of the body on the way,
+     * so the cache is only used when asked for.
+     */
+    public int THREAD_CACHE_SIZE = 0;
+    
+    /**
+     * Format ("table" or "json") in which to print scheduler statistics when
+     * the simulation stops, or null not to print them.
+     */
+    public String SCHEDULER_STATS = null;
+    
+    /**
+     * Number of pages in the swap file, which holds the user pages that have
+     * been written to and then evicted from physical memory (0 for no swap).
+     * The swap file is created in the Nachos file system, as "SWAP", only
+     * once the running programs need more pages than physical memory holds,
+     * and it then takes one disk sector per page: the default takes 32KB, a
+     * quarter of the default disk (DISK0 has 1024 sectors of 128 bytes),
+     * leaving room for the file system's other files.
+     */
+    public int SWAP_PAGES = 256;
+    
+    /** Page replacement policy: "fifo", "clock" (the default) or "aging". */
+    public String PAGE_REPLACEMENT = "clock";
+    
+    /** Should paging activity be reported when the simulation stops? */
+    public boolean PAGING_REPORT = false;
     
     /**
      * Are we going to be using per-CPU time-slicing timers?
@@ -171,6 +248,9 @@ public class Options {
     /** Should we run the multiprocessor scheduling test? */
     public boolean SMP_TEST = false;
 
+    /** Should we run the CPU affinity test? */
+    public boolean AFFINITY_TEST = false;
+
     /** Should we run the user program test? */
     public boolean PROG_TEST = false;
     
@@ -310,12 +390,128 @@ public class Options {
 				DISK_FILE_NAME = (String)params[0];
 			    }
 			 }),
-		new Spec("-rr",  // enable pre-emptive scheduling using per-CPU scheduling timers
+		new Spec("-rr",  // use round-robin scheduling (same as -sp rr)
+			 new Class[] { },
+			 null,
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				SCHEDULING_POLICY = "rr";
+			    }
+			 }),
+		new Spec("-sp",  // choose the scheduling policy
+			 new Class[] {String.class},
+			 "Usage: -sp <mlfq|rr|stride|lottery>",
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				SCHEDULING_POLICY = (String)params[0];
+				Debug.ASSERT(SCHEDULING_POLICY.equals("mlfq") || SCHEDULING_POLICY.equals("rr")
+					|| SCHEDULING_POLICY.equals("stride") || SCHEDULING_POLICY.equals("lottery"),
+					"Usage: -sp <mlfq|rr|stride|lottery>");
+			    }
+			 }),
+		new Spec("-pcq",  // give each CPU its own ready queues, with work stealing
+			 new Class[] { },
+			 null,
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				PER_CPU_QUEUES = true;
+			    }
+			 }),
+		new Spec("-bp",  // set the weight of the latest burst in burst prediction
+			 new Class[] {Double.class},
+			 "Usage: -bp <weight between 0 and 1>",
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				BURST_SMOOTHING = (Double)params[0];
+				Debug.ASSERT(BURST_SMOOTHING >= 0.0 && BURST_SMOOTHING <= 1.0,
+					"Burst prediction weight must be between 0 and 1");
+			    }
+			 }),
+		new Spec("-nohz",  // stop CPU timers when there is nothing to time
+			 new Class[] { },
+			 null,
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				TICKLESS = true;
+			    }
+			 }),
+		new Spec("-aff",  // prefer to run a thread on the CPU it last ran on
+			 new Class[] { },
+			 null,
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				CPU_AFFINITY = true;
+			    }
+			 }),
+		new Spec("-gang",  // co-schedule the threads of each address space
+			 new Class[] { },
+			 null,
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				GANG_SCHEDULING = true;
+			    }
+			 }),
+		new Spec("-tas",  // use a test-and-set spin lock for the scheduler
+			 new Class[] { },
+			 null,
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				QUEUED_SCHEDULER_LOCK = false;
+			    }
+			 }),
+		new Spec("-tw",  // set the number of TaskManager worker threads
+			 new Class[] {Integer.class},
+			 "Usage: -tw <workers>",
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				TASK_WORKERS = (Integer)params[0];
+				Debug.ASSERT(TASK_WORKERS > 0, "Usage: -tw <workers>, workers > 0");
+			    }
+			 }),
+		new Spec("-tc",  // cache finished user threads for reuse (off by default)
+			 new Class[] {Integer.class},
+			 "Usage: -tc <threads>",
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				THREAD_CACHE_SIZE = (Integer)params[0];
+				Debug.ASSERT(THREAD_CACHE_SIZE >= 0, "Usage: -tc <threads>, threads >= 0");
+			    }
+			 }),
+		new Spec("-ss",  // print scheduler statistics at shutdown
+			 new Class[] {String.class},
+			 "Usage: -ss <table|json>",
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				SCHEDULER_STATS = (String)params[0];
+				Debug.ASSERT(SCHEDULER_STATS.equals("table") || SCHEDULER_STATS.equals("json"),
+					"Usage: -ss <table|json>");
+			    }
+			 }),
+		new Spec("-swap",  // set the size of the swap file (one disk sector per page)
+			 new Class[] {Integer.class},
+			 "Usage: -swap <pages>",
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				SWAP_PAGES = (Integer)params[0];
+				Debug.ASSERT(SWAP_PAGES >= 0, "Usage: -swap <pages>, pages >= 0");
+			    }
+			 }),
+		new Spec("-pr",  // select the page replacement policy
+			 new Class[] {String.class},
+			 "Usage: -pr <fifo|clock|aging>",
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				PAGE_REPLACEMENT = (String)params[0];
+				Debug.ASSERT(PAGE_REPLACEMENT.equals("fifo") || PAGE_REPLACEMENT.equals("clock")
+					|| PAGE_REPLACEMENT.equals("aging"), "Usage: -pr <fifo|clock|aging>");
+			    }
+			 }),
+		new Spec("-pfr",  // print a paging report at shutdown
 			 new Class[] { },
 			 null,
 			 new Options.Action() {
 			    public void processOption(String flag, Object[] params) {
-				RR_SCHEDULING = true;
+				PAGING_REPORT = true;
 			    }
 			 })
 	});
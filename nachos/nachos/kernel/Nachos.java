@@ -36,6 +36,7 @@ import nachos.kernel.threads.Scheduler;
 import nachos.kernel.threads.SubNachosThread;
 import nachos.kernel.userprog.ExceptionHandler;
 import nachos.kernel.filesys.FileSystem;
+import nachos.kernel.threads.test.AffinityTest;
 import nachos.kernel.threads.test.SMPTest;
 import nachos.kernel.threads.test.ThreadTest;
 import nachos.kernel.userprog.test.ProgTest;
@@ -113,6 +114,8 @@ public class Nachos implements Runnable {
 	    ThreadTest.start();
 	if(options.SMP_TEST)
 	    SMPTest.start();
+	if(options.AFFINITY_TEST)
+	    AffinityTest.start();
 	if(options.PROG_TEST)
 	    ProgTest.start();
 	if(options.FILESYS_TEST)
@@ -14,6 +14,7 @@ import nachos.machine.Console;
 import nachos.machine.InterruptHandler;
 import nachos.util.FIFOQueue;
 import nachos.util.Queue;
+import nachos.kernel.threads.AdaptiveLock;
 import nachos.kernel.threads.Lock;
 import nachos.kernel.threads.Semaphore;
 
@@ -74,8 +75,8 @@ public class ConsoleDriver {
      * @param console  The console device to be managed.
      */
     public ConsoleDriver(Console console) {
-	inputLock = new Lock("console driver input lock");
-	outputLock = new Lock("console driver output lock");
+	inputLock = new AdaptiveLock("console driver input lock");
+	outputLock = new AdaptiveLock("console driver output lock");
 	/* no need to change console because it is in the machine*/
 	this.console = console;
 	// Delay setting the interrupt handlers until first use.
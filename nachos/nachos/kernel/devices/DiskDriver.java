@@ -23,6 +23,7 @@ import nachos.machine.Machine;
 import nachos.machine.Disk;
 import nachos.machine.InterruptHandler;
 import nachos.kernel.threads.Semaphore;
+import nachos.kernel.threads.AdaptiveLock;
 import nachos.kernel.threads.Lock;
 
 
@@ -60,7 +61,7 @@ public class DiskDriver {
      */
     public DiskDriver(int unit) {
 	semaphore = new Semaphore("synch disk", 0);
-	lock = new Lock("synch disk lock");
+	lock = new AdaptiveLock("synch disk lock");
 	disk = Machine.getDisk(unit);
 	disk.setHandler(new DiskIntHandler());
     }
@@ -15,6 +15,8 @@ import java.util.Map;
 
 import nachos.Debug;
 import nachos.kernel.devices.DiskDriver;
+import nachos.kernel.threads.ReadWriteLock;
+import nachos.kernel.userprog.MemoryManager;
 
 /**
  * This class manages the overall operation of the file system.
@@ -127,6 +129,12 @@ class FileSystemReal extends FileSystem {
   
   private OpenFile currentDirectoryFile;
   
+  /**
+   * Guards the directories: lookups hold it for reading, so that many of
+   * them can proceed at once, and changes hold it for writing.
+   */
+  private final ReadWriteLock directoryLock = new ReadWriteLock("directory lock");
+  
   
   /**
    * Initialize the file system.  If format = true, the disk has
@@ -253,8 +261,7 @@ class FileSystemReal extends FileSystem {
    *	no free entry for file in directory;
    *	no free space for data blocks for the file.
    *
-   * Note that this implementation assumes there is no concurrent access
-   *	to the file system!
+   * Concurrent creations are serialized by the directory lock.
    *
    * @param name  The name of file to be created.
    * @param initialSize  The size of file to be created.
@@ -270,43 +277,48 @@ public boolean create(String name, long initialSize) {
 
     Debug.printf('f', "Creating file %s, size %d\n", name, 
 		 new Long(initialSize));
-    //get current directory
-    directory = new Directory(getNumDirEntries(), this);
-    //call fetch in order to initialize it from the disk
-    directory.fetchFrom(currentDirectoryFile);
-    /*check whether the file is in the directory*/
-    if (directory.find(name) != -1)
-      success = false;			// file is already in directory
-    else {	
-      freeMap = new BitMap(numDiskSectors);
-      //initialize the contents of bitmap
-      freeMap.fetchFrom(freeMapFile);
-      //allocate a bit
-      sector = freeMap.find();	// find a sector to hold the file header
-      if (sector == -1) 		
-	success = false;		// no free block for file header 
-      /*add a file into the directory*/
-      else if (!directory.add(name, sector))
-	success = false;	// no space in directory because we check the file before
-      else {
-	  //Debug.println('+',"begin to create fileheader");
-	  //add a file header to the new created file
-	hdr = new FileHeader(this);
-	//allocate data blocks for the file
-	if (!hdr.allocate(freeMap, (int)initialSize)){
-	  success = false;	// no space on disk for data
-	  //Debug.println('+', "fail to allocate space");
-	}
-	else {	
-	  success = true;
-	  //Debug.println('+', "file test create!!!");
-	  // everthing worked, flush all changes back to disk
-	  hdr.writeBack(sector); 	
-	  Debug.println('+', "name of the file is " +name);
-	  directory.writeBack(currentDirectoryFile);
-	  freeMap.writeBack(freeMapFile);
+    directoryLock.writeLock();
+    try {
+      //get current directory
+      directory = new Directory(getNumDirEntries(), this);
+      //call fetch in order to initialize it from the disk
+      directory.fetchFrom(currentDirectoryFile);
+      /*check whether the file is in the directory*/
+      if (directory.find(name) != -1)
+	success = false;			// file is already in directory
+      else {	
+	freeMap = new BitMap(numDiskSectors);
+	//initialize the contents of bitmap
+	freeMap.fetchFrom(freeMapFile);
+	//allocate a bit
+	sector = freeMap.find();	// find a sector to hold the file header
+	if (sector == -1) 		
+	  success = false;		// no free block for file header 
+	/*add a file into the directory*/
+	else if (!directory.add(name, sector))
+	  success = false;	// no space in directory because we check the file before
+	else {
+	    //Debug.println('+',"begin to create fileheader");
+	    //add a file header to the new created file
+	  hdr = new FileHeader(this);
+	  //allocate data blocks for the file
+	  if (!hdr.allocate(freeMap, (int)initialSize)){
+	    success = false;	// no space on disk for data
+	    //Debug.println('+', "fail to allocate space");
+	  }
+	  else {	
+	    success = true;
+	    //Debug.println('+', "file test create!!!");
+	    // everthing worked, flush all changes back to disk
+	    hdr.writeBack(sector); 	
+	    Debug.println('+', "name of the file is " +name);
+	    directory.writeBack(currentDirectoryFile);
+	    freeMap.writeBack(freeMapFile);
+	  }
 	}
       }
+    } finally {
+      directoryLock.writeUnlock();
     }
     
     return success;
@@ -354,8 +366,13 @@ public OpenFile open(String name) {
     int sector;
 
     Debug.printf('f', "Opening file %s\n", name);
-    directory.fetchFrom(currentDirectoryFile);
-    sector = directory.find(name); 
+    directoryLock.readLock();
+    try {
+      directory.fetchFrom(currentDirectoryFile);
+      sector = directory.find(name); 
+    } finally {
+      directoryLock.readUnlock();
+    }
     if (sector >= 0) 		
       openFile = new OpenFileReal(sector, this);// name was found in directory 
     return openFile;			        // return null if not found
@@ -380,25 +397,31 @@ public boolean remove(String name) {
     FileHeader fileHdr;
     int sector;
     
-    directory = new Directory(NumDirEntries, this);
-    directory.fetchFrom(currentDirectoryFile);
-    sector = directory.find(name);
-    if (sector == -1) {
-       return false;			 // file not found 
-    }
-    fileHdr = new FileHeader(this);
-    fileHdr.fetchFrom(sector);
+    directoryLock.writeLock();
+    try {
+      directory = new Directory(NumDirEntries, this);
+      directory.fetchFrom(currentDirectoryFile);
+      sector = directory.find(name);
+      if (sector == -1) {
+	 return false;			 // file not found 
+      }
+      fileHdr = new FileHeader(this);
+      fileHdr.fetchFrom(sector);
 
-    freeMap = new BitMap(numDiskSectors);
-    freeMap.fetchFrom(freeMapFile);
+      freeMap = new BitMap(numDiskSectors);
+      freeMap.fetchFrom(freeMapFile);
 
-    fileHdr.deallocate(freeMap);  		// remove data blocks
-    freeMap.clear(sector);			// remove header block
-    directory.remove(name);
+      fileHdr.deallocate(freeMap);  		// remove data blocks
+      freeMap.clear(sector);			// remove header block
+      directory.remove(name);
 
-    freeMap.writeBack(freeMapFile);		// flush to disk
-    directory.writeBack(currentDirectoryFile);        // flush to disk
-    return true;
+      freeMap.writeBack(freeMapFile);		// flush to disk
+      directory.writeBack(currentDirectoryFile);        // flush to disk
+      MemoryManager.fileChanged(OpenFileReal.fileId(sector));
+      return true;
+    } finally {
+      directoryLock.writeUnlock();
+    }
   } 
   /**
    * Create a new directory.
@@ -414,39 +437,43 @@ public boolean remove(String name) {
       boolean success;
 
       Debug.printf('f', "Creating new directory %s\n", name);
-
-      parentDirectory = new Directory(NumDirEntries, this);
-      parentDirectory.fetchFrom(getCurrentDirectoryFile());
-      if(parentDirectory.findDirectory(name)!= -1)
-	  success = false;
-      else{
-	  freeMap = new BitMap(numDiskSectors);
-	  freeMap.fetchFrom(freeMapFile);
-	  newDirSector = freeMap.find();	// find a sector to hold the file header of new directory
-	  if (newDirSector == -1) 		
-	      success = false;		// no free block for file header of new directory
-	  else if (!parentDirectory.addDirectory(name, newDirSector))
-	      success = false;	// no space in directory
-	  else {
-	      newDirHdr = new FileHeader(this);
-	      if (!newDirHdr.allocate(freeMap, DirectoryFileSize))
-		  success = false;	// no space on disk for data
-	      else {	
-              success = true;
-              // everthing worked, flush all changes back to disk
-              newDirHdr.writeBack(newDirSector); 		
-              parentDirectory.writeBack(getCurrentDirectoryFile());
-              freeMap.writeBack(freeMapFile);
+      directoryLock.writeLock();
+      try {
+	parentDirectory = new Directory(NumDirEntries, this);
+	parentDirectory.fetchFrom(getCurrentDirectoryFile());
+	if(parentDirectory.findDirectory(name)!= -1)
+	    success = false;
+	else{
+	    freeMap = new BitMap(numDiskSectors);
+	    freeMap.fetchFrom(freeMapFile);
+	    newDirSector = freeMap.find();	// find a sector to hold the file header of new directory
+	    if (newDirSector == -1) 		
+		success = false;		// no free block for file header of new directory
+	    else if (!parentDirectory.addDirectory(name, newDirSector))
+		success = false;	// no space in directory
+	    else {
+		newDirHdr = new FileHeader(this);
+		if (!newDirHdr.allocate(freeMap, DirectoryFileSize))
+		    success = false;	// no space on disk for data
+		else {	
+		success = true;
+		// everthing worked, flush all changes back to disk
+		newDirHdr.writeBack(newDirSector); 		
+		parentDirectory.writeBack(getCurrentDirectoryFile());
+		freeMap.writeBack(freeMapFile);
               
-              //childDirectoryFile = new OpenFileReal(newDirSector, this);
+		//childDirectoryFile = new OpenFileReal(newDirSector, this);
               
-              OpenFile newDirectoryFile = new OpenFileReal(newDirSector, this);
+		OpenFile newDirectoryFile = new OpenFileReal(newDirSector, this);
               
-              //childDirectoryMap.put(name, newDirectoryFile); // add to map
+		//childDirectoryMap.put(name, newDirectoryFile); // add to map
               
-              newDirectory.writeBack(newDirectoryFile);
-          }
-      }
+		newDirectory.writeBack(newDirectoryFile);
+	    }
+	}
+	}
+      } finally {
+        directoryLock.writeUnlock();
       }
       return success;
   }
@@ -460,41 +487,46 @@ public boolean remove(String name) {
       FileHeader fileHdr;
       int sector;
       
-      directory = new Directory(NumDirEntries, this);
-      directory.fetchFrom(getCurrentDirectoryFile());
-      //find the sector for the directory
-      sector = directory.findDirectory(name);
-      if (sector == -1) {
-         return false;			 // file not found 
-      }
+      directoryLock.writeLock();
+      try {
+	directory = new Directory(NumDirEntries, this);
+	directory.fetchFrom(getCurrentDirectoryFile());
+	//find the sector for the directory
+	sector = directory.findDirectory(name);
+	if (sector == -1) {
+	   return false;			 // file not found 
+	}
       
-      Directory foundDirectory = new Directory(NumDirEntries, this);
-      OpenFileReal directoryFile = new OpenFileReal(sector,this);
-      foundDirectory.fetchFrom(directoryFile); // Open this directory
+	Directory foundDirectory = new Directory(NumDirEntries, this);
+	OpenFileReal directoryFile = new OpenFileReal(sector,this);
+	foundDirectory.fetchFrom(directoryFile); // Open this directory
 
       
-      if(!foundDirectory.isEmpty()){ // If this directory is not empty, we cannot remove this directory
-	  //Debug.println('+', "lala "+foundDirectory.isEmpty());
-	  //remove every thing in the directory is required
-	  return false;
-      }
-      //after clearing everything inisde the directory, clear the directory itself
+	if(!foundDirectory.isEmpty()){ // If this directory is not empty, we cannot remove this directory
+	    //Debug.println('+', "lala "+foundDirectory.isEmpty());
+	    //remove every thing in the directory is required
+	    return false;
+	}
+	//after clearing everything inisde the directory, clear the directory itself
       
-      fileHdr = new FileHeader(this);
-      fileHdr.fetchFrom(sector);
+	fileHdr = new FileHeader(this);
+	fileHdr.fetchFrom(sector);
 
-      freeMap = new BitMap(numDiskSectors);
-      freeMap.fetchFrom(freeMapFile);
+	freeMap = new BitMap(numDiskSectors);
+	freeMap.fetchFrom(freeMapFile);
 
-      fileHdr.deallocate(freeMap);  		// remove data blocks
-      freeMap.clear(sector);			// remove header block
-      directory.removeDirectory(name);
+	fileHdr.deallocate(freeMap);  		// remove data blocks
+	freeMap.clear(sector);			// remove header block
+	directory.removeDirectory(name);
 
-      //childDirectoryMap.remove(name); // Remove this directory from the map
+	//childDirectoryMap.remove(name); // Remove this directory from the map
       
-      freeMap.writeBack(freeMapFile);		// flush to disk
-      directory.writeBack(getCurrentDirectoryFile());        // flush to disk
-      return true;
+	freeMap.writeBack(freeMapFile);		// flush to disk
+	directory.writeBack(getCurrentDirectoryFile());        // flush to disk
+	return true;
+      } finally {
+        directoryLock.writeUnlock();
+      }
   }
   /**
    * List all the files in the file system directory (for debugging).
@@ -13,6 +13,8 @@ package nachos.kernel.filesys;
 import java.io.*;
 import java.util.Map;
 
+import nachos.kernel.userprog.MemoryManager;
+
 /**
  * This "filesystem stub" class implements a Nachos filesystem by simply
  * passing the filesystem operations through to the native filesystem on
@@ -79,6 +81,7 @@ class FileSystemStub extends FileSystem {
 	try {
 	    fsFile = new FileOutputStream(name);
 	    fsFile.close();    
+	    MemoryManager.fileChanged(new File(name).getCanonicalPath());
 	} catch (IOException e) {
 	    return false;
 	}
@@ -102,12 +105,11 @@ class FileSystemStub extends FileSystem {
 	    return null;
 	try {
 	    file = new RandomAccessFile(name, "rw");
+	    return new OpenFileStub(file, new File(name).getCanonicalPath());
 	}
 	catch (IOException e) {
 	    return null;
 	}
-
-	return new OpenFileStub(file);
     }
 
     /**
@@ -121,7 +123,15 @@ class FileSystemStub extends FileSystem {
 	File file;
 
 	file = new File(name);
-	return file.delete();
+	try {
+	    String fileId = file.getCanonicalPath();
+	    if(!file.delete())
+		return false;
+	    MemoryManager.fileChanged(fileId);
+	} catch (IOException e) {
+	    return false;
+	}
+	return true;
     }
 
 }
@@ -89,6 +89,17 @@ public interface OpenFile {
      */
     public long length();
 
+    /**
+     * Get a name for the file itself, rather than for the path it was
+     * opened by, which stays the same for as long as the file exists.
+     * Pages of an executable are shared by the address spaces that run it
+     * under this name (see MemoryManager), and are forgotten whenever the
+     * file is written or removed (see MemoryManager.fileChanged()).
+     *
+     * @return the identity of the file.
+     */
+    public String getFileId();
+
     /**
      * Close the file, releasing any resources held in kernel memory.
      * Subsequent attempts to access the file will fail.
@@ -11,6 +11,7 @@
 package nachos.kernel.filesys;
 
 import nachos.Debug;
+import nachos.kernel.userprog.MemoryManager;
 
 /**
  * This is a class for managing an open Nachos file.  As in UNIX, a
@@ -255,6 +256,7 @@ public class OpenFileReal implements OpenFile {
 	    filesystem.writeSector(hdr.byteToSector(i * diskSectorSize), 
 		    buf, (i - firstSector) * diskSectorSize);
 
+	MemoryManager.fileChanged(getFileId());
 	return numBytes;
     }
 
@@ -268,6 +270,26 @@ public class OpenFileReal implements OpenFile {
 	return hdr.fileLength(); 
     }
 
+    /**
+     * Get the identity of the file: the sector of its header.
+     *
+     * @return the identity of the file.
+     */
+    @Override
+    public String getFileId() {
+	return fileId(sector);
+    }
+
+    /**
+     * Get the identity of the file whose header is in a sector.
+     *
+     * @param sector The sector of the file header.
+     * @return the identity of the file.
+     */
+    static String fileId(int sector) {
+	return "sector " + sector;
+    }
+
     /**
      * Close the file, releasing any resources held in kernel memory.
      * Subsequent attempts to access the file will fail.
@@ -12,6 +12,8 @@ package nachos.kernel.filesys;
 
 import java.io.*;
 
+import nachos.kernel.userprog.MemoryManager;
+
 /**
  * This "stub" class implements file operations for Nachos by simply
  * passing the filesystem operations through to the native filesystem on
@@ -30,16 +32,21 @@ class OpenFileStub implements OpenFile {
   /** The current file position. */
   private long currentOffset;
 
+  /** Canonical path of the underlying file, which identifies it. */
+  private final String fileId;
+
   /**
    * Open a file.  This constructor is not exported outside the package,
    * because users of the filesystem should be using the methods of the
    * FileSystem class to obtain an OpenFile.
    *
    * @param f The underlying file on the host filesystem.
+   * @param fileId The canonical path of the file.
    */
-  OpenFileStub(RandomAccessFile f) {
+  OpenFileStub(RandomAccessFile f, String fileId) {
     file = f; 
     currentOffset = 0; 
+    this.fileId = fileId;
   }
 
   /**
@@ -93,6 +100,7 @@ public int writeAt(byte from[], int index, int numBytes, long position) {
     } catch (IOException e) {
       return 0;
     }
+    MemoryManager.fileChanged(fileId);
     return numBytes;
   }	
 
@@ -147,6 +155,16 @@ public long length() {
     return len;
   }
 
+  /**
+   * Get the identity of the file: its canonical path on the host.
+   *
+   * @return the identity of the file.
+   */
+  @Override
+public String getFileId() {
+    return fileId;
+  }
+
   /**
    * Close the file, releasing any resources held in kernel memory.
    * Subsequent attempts to access the file will fail.
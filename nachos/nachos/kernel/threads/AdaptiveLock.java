@@ -0,0 +1,62 @@
+package nachos.kernel.threads;
+
+import nachos.Debug;
+import nachos.machine.NachosThread;
+
+/**
+ * An "adaptive" lock, for locks that are held only for short stretches
+ * of kernel code.  A thread that finds the lock busy while its owner is
+ * running on another CPU spins for a while, expecting the owner to release
+ * the lock soon, rather than paying for a trip through the scheduler to
+ * sleep and be woken up again.  The spinning thread only reads the owner
+ * (and whether it is running), which costs no bus traffic, and only tries
+ * to take the lock again once it looks free.  If the owner is not running
+ * (so it cannot release the lock until it is scheduled again), or the lock
+ * is still busy after the spin limit, the thread blocks as with an ordinary Lock.
+ *
+ * With one CPU the owner of a busy lock is never running, so an adaptive
+ * lock behaves exactly like an ordinary Lock.
+ */
+public class AdaptiveLock extends Lock {
+
+    /** Maximum number of times to look at the lock before blocking. */
+    private static final int SPIN_LIMIT = 1000;
+
+    /**
+     * Initialize an adaptive lock.
+     *
+     *	@param debugName An arbitrary name, useful for debugging.
+     */
+    public AdaptiveLock(String debugName) {
+	super(debugName);
+    }
+
+    /**
+     * Wait until the lock is "free", then set the lock to "busy",
+     * spinning rather than blocking while the owner is running.
+     */
+    @Override
+    public void acquire() {
+	int spins = 0;
+	while(!tryAcquire()) {
+	    NachosThread owner;
+	    while((owner = getOwner()) != null) {
+		if(!(owner instanceof SubNachosThread && ((SubNachosThread)owner).isOnCPU())) {
+		    Debug.printf('s', "Owner of lock %s is not running; blocking\n", name);
+		    super.acquire();
+		    return;
+		}
+		if(++spins >= SPIN_LIMIT) {
+		    super.acquire();
+		    return;
+		}
+	    }
+	    // The lock looks free (or is changing hands); try to take it.
+	    if(++spins >= SPIN_LIMIT) {
+		super.acquire();
+		return;
+	    }
+	}
+    }
+
+}
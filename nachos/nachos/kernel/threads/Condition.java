@@ -10,10 +10,10 @@ package nachos.kernel.threads;
 
 import nachos.Debug;
 import nachos.kernel.Nachos;
+import nachos.kernel.userprog.SleepListManager;
 import nachos.machine.CPU;
 import nachos.machine.NachosThread;
 import nachos.util.FIFOQueue;
-import nachos.util.Queue;
 
 /**
  * This class defines a "condition variable".  A condition
@@ -24,6 +24,8 @@ import nachos.util.Queue;
  *	await() -- release the lock, relinquish the CPU until signaled, 
  *		then re-acquire the lock
  *
+ *	await(ticks) -- the same, but give up waiting after a number of ticks
+ *
  *	signal() -- wake up a thread, if there are any waiting on 
  *		the condition
  *
@@ -71,7 +73,7 @@ public class Condition {
     private final Lock conditionLock;
 
     /** Who's waiting on this condition? */
-    private final Queue<NachosThread> waitingThreads;
+    private final FIFOQueue<NachosThread> waitingThreads;
 
     /**
      * Spin lock used to obtain exclusive access to condition state
@@ -133,6 +135,58 @@ public class Condition {
 		NachosThread.currentThread().name);
     }
 
+    /**
+     * Wait on a condition until signalled, or until a number of ticks have
+     * passed.  Otherwise the same as await().  The timeout is detected by the
+     * timer interrupt handler (see SleepListManager.setAlarm()), so it is
+     * only as precise as the timer interval, and it needs the CPU timers:
+     * without them, this is a fatal error.
+     *
+     * @param ticks  The longest time to wait.
+     * @return true if the thread was signalled, false if it timed out.
+     */
+    public boolean await(long ticks) {
+	SleepListManager.checkAlarms("Timed await() on condition " + name);
+	Debug.ASSERT(conditionLock.isHeldByCurrentThread(),
+		"Non-owner tried to manipulate condition variable.");
+	Debug.printf('s', "Thread %s waiting on condition variable %s for %d ticks\n",
+		NachosThread.currentThread().name, name, ticks);
+
+	final NachosThread thread = NachosThread.currentThread();
+	// timedOut[0]: the alarm woke us; ended[0]: this wait is over, so an
+	// alarm that went off too late to be cancelled must leave the queue
+	// alone, where the thread may already be waiting again.
+	final boolean[] timedOut = new boolean[1];
+	final boolean[] ended = new boolean[1];
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	spinLock.acquire();
+
+	waitingThreads.offer(thread);
+	Object alarm = SleepListManager.setAlarm(new Runnable() {
+	    public void run() {
+		// Only wake the thread if nobody has signalled it in the meantime.
+		spinLock.acquire();
+		if(!ended[0] && waitingThreads.remove(thread)) {
+		    timedOut[0] = true;
+		    Nachos.scheduler.readyToRun(thread);
+		}
+		spinLock.release();
+	    }
+	}, ticks);
+	conditionLock.release();
+	Nachos.scheduler.sleepThread(spinLock);
+
+	spinLock.acquire();
+	ended[0] = true;
+	spinLock.release();
+	CPU.setLevel(oldLevel);
+	if(!timedOut[0])
+	    SleepListManager.cancelAlarm(alarm);
+
+	conditionLock.acquire();
+	return !timedOut[0];
+    }
+
     /**
      * Wake up a thread, if any, that is waiting on the condition.
      */
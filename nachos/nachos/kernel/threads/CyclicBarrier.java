@@ -1,5 +1,8 @@
 package nachos.kernel.threads;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import nachos.Debug;
 import nachos.kernel.Nachos;
 import nachos.machine.NachosThread;
@@ -26,100 +29,192 @@ import nachos.machine.NachosThread;
  */
 public class CyclicBarrier {
     
-    private static class Generation {
-        boolean broken = false;
+    /*
+     * The barrier is a combining tree.  Each leaf has room for up to
+     * FAN_IN parties, and each inner node combines up to FAN_IN children.
+     * An arriving thread takes a free place at some leaf (starting from one
+     * chosen by hashing the thread, so that arrivals spread out), and waits
+     * there unless it is the last to arrive at the leaf, in which case it
+     * goes on to the parent node, and so on up.  The last thread to arrive
+     * at the root trips the barrier.  It then releases the threads waiting
+     * at each node on its way up; those threads in turn release the nodes
+     * they passed on their own way up.  So each arrival and each wake-up
+     * only touches one node's semaphores, and the wake-ups fan out down the
+     * tree instead of all being done by one thread.
+     *
+     * Threads of consecutive generations can be at the same node at the
+     * same time (a released thread may arrive again before its node has
+     * released everyone), so the counts and release semaphores are kept
+     * per generation parity.  A node's count for the other parity is
+     * cleared when the node completes, which is after the generation before
+     * last has left it and before the next generation can arrive.
+     *
+     * The arrival index returned by await() comes from the leaf place a
+     * thread took, counted backwards, so the indices of one generation are
+     * all different; the thread that trips the barrier returns 0, and the
+     * thread whose place gave 0 returns the index of the tripping thread's
+     * place instead.
+     */
+    
+    /** Maximum number of parties per leaf and of children per inner node. */
+    private static final int FAN_IN = 4;
+    
+    /** A node of the combining tree. */
+    private static class Node {
+	/** The parent node, or null for the root; set once the tree is built. */
+	Node parent;
+	/** Number of arrivals that complete this node: parties or children. */
+	final int expected;
+	/** For a leaf, the number of places in the leaves before it. */
+	final int first;
+	/** Guards arrived and waiting. */
+	final Semaphore mutex = new Semaphore("barrier node mutex", 1);
+	/** Threads waiting here sleep on one of these, by generation parity. */
+	final Semaphore[] release = {
+	    new Semaphore("barrier node release 0", 0),
+	    new Semaphore("barrier node release 1", 0)
+	};
+	/** Arrivals at this node, by generation parity. */
+	final int[] arrived = new int[2];
+	/** Threads waiting at this node, by generation parity. */
+	final int[] waiting = new int[2];
+	
+	Node(int expected, int first) {
+	    this.expected = expected;
+	    this.first = first;
+	}
     }
     
-    /** The semaphore for guarding barrier entry */
-    private Semaphore sem1 = new Semaphore("sem1",1);
-    /** The semaphore counting amount of waiting threads until tripped */
-    private Semaphore sem2 = new Semaphore("sem2",0);
     /** The number of parties */
     private final int parties;
     /* The command to run when tripped */
     private final Runnable barrierCommand;
-    /** The current generation */
-    private Generation generation = new Generation();
-    
+    /** The leaves of the tree, in order. */
+    private final Node[] leaves;
+    /** All the nodes of the tree. */
+    private final Node[] nodes;
+    /** Number of times the barrier has tripped. */
+    private volatile int generation;
     /**
-     * Number of parties still waiting. Counts down from parties to 0
-     * on each generation.  It is reset to parties on each new
-     * generation or when broken.
+     * Index that the place of the thread that last tripped the barrier would
+     * have given it.  It is set before that thread releases anyone, and
+     * read by the one released thread whose place has index 0.
      */
-    private int count;
+    private volatile int trippedIndex;
+    /** Has the barrier been broken? */
+    private volatile boolean broken;
     
     /**
-     * Updates state on barrier trip and wakes up everyone.
-     * Called only while holding lock.
+     * Main barrier code, covering the various handling strategies.
+     * @throws BrokenBarrierException 
      */
-    private void nextGeneration() {
-        for (int i = 0; i < parties; i++) {
-            sem2.V();
-        }
-        
-        // set up next generation
-        count = parties;
-        generation = new Generation();
+    private int dowait() throws BrokenBarrierException{
+	if (broken)
+	    throw new BrokenBarrierException();
+	final int g = generation;
+	final int parity = g & 1;
+	
+	Node node = claimLeaf(parity);    // returns with node.mutex held
+	// The nodes where this thread arrived last, which it must release,
+	// are the first depth nodes on the path up from this leaf.
+	final Node leaf = node;
+	int depth = 0;
+	// Position of our place among all the leaf places, counted backwards.
+	int index = parties - 1 - (node.first + node.arrived[parity] - 1);
+	boolean tripped = false;
+	for (;;) {
+	    if (broken) {
+		node.mutex.V();
+		throw new BrokenBarrierException();
+	    }
+	    if (node.arrived[parity] < node.expected) {
+		// Wait here for whoever arrives last to release us.
+		node.waiting[parity]++;
+		node.mutex.V();
+		node.release[parity].P();
+		if (generation == g)
+		    throw new BrokenBarrierException();
+		// The thread that tripped the barrier returns 0, and takes
+		// over our index if that was ours.
+		if (index == 0)
+		    index = trippedIndex;
+		break;
+	    }
+	    node.arrived[1 - parity] = 0;    // complete; ready for the next generation
+	    node.mutex.V();
+	    depth++;
+	    if (node.parent == null) {
+		boolean ranAction = false;
+		try {
+		    final Runnable command = barrierCommand;
+		    if (command != null)
+			command.run();
+		    ranAction = true;
+		} finally {
+		    if (!ranAction)
+			breakBarrier();
+		}
+		trippedIndex = index;
+		generation = g + 1;
+		tripped = true;
+		break;
+	    }
+	    node = node.parent;
+	    node.mutex.P();
+	    node.arrived[parity]++;
+	}
+	
+	// Release the nodes where we arrived last, from the top down.
+	while (depth > 0) {
+	    Node n = leaf;
+	    for (int d = 1; d < depth; d++)
+		n = n.parent;
+	    depth--;
+	    n.mutex.P();
+	    int waiters = n.waiting[parity];
+	    n.waiting[parity] = 0;
+	    n.mutex.V();
+	    for (int i = 0; i < waiters; i++)
+		n.release[parity].V();
+	}
+	return (tripped ? 0 : index);
     }
     
     /**
-     * Sets current barrier generation as broken and wakes up everyone.
-     * Called only while holding lock.
+     * Find a leaf with a free place, starting from one that depends on the
+     * current thread, and take the place.  There is always one, since exactly
+     * one place per party is taken in each generation.
+     *
+     * @param parity  Parity of the current generation.
+     * @return  The leaf, with its mutex held.
      */
-    private void breakBarrier() {
-        generation.broken = true;
-        count = parties;
-
-        for (int i = 0; i < count; i++) {
-            sem2.V();
-        }
+    private Node claimLeaf(int parity) {
+	int start = (System.identityHashCode(NachosThread.currentThread()) & 0x7fffffff) % leaves.length;
+	for (int i = start; ; i = (i + 1) % leaves.length) {
+	    Node leaf = leaves[i];
+	    leaf.mutex.P();
+	    if (leaf.arrived[parity] < leaf.expected) {
+		leaf.arrived[parity]++;
+		return leaf;
+	    }
+	    leaf.mutex.V();
+	}
     }
     
     /**
-     * Main barrier code, covering the various handling strategies.
-     * @throws BrokenBarrierException 
+     * Sets the barrier as broken and wakes up everyone waiting at any node.
      */
-    private int dowait() throws BrokenBarrierException{
-	        Semaphore sem1 = this.sem1;
-	        sem1.P(); // Lock this critical session
-	        	        
-	        final Generation g = generation;
-	        int index;
-	        
-	        try {
-	            if (g.broken)
-	        	throw new BrokenBarrierException();
-
-	            index = --count;
-
-	            if (index == 0) {  // tripped
-	                boolean ranAction = false;
-	                try {
-	                    final Runnable command = barrierCommand;
-	                    if (command != null)
-	                        command.run();
-	                    ranAction = true;
-	                    nextGeneration();
-	                    return 0;
-	                } finally {
-	                    if (!ranAction)
-	                        breakBarrier();
-	                }
-	            }
-	        } finally {
-	            sem1.V(); // Unlock this critical session
-	        }
-
-	        // loop until tripped, broken, interrupted, or timed out
-	        for (;;) {
-	            sem2.P();
-	            
-	            if (g.broken)
-	        	throw new BrokenBarrierException();
-	            
-	            if (g != generation)
-	                return index;
-	        }
+    private void breakBarrier() {
+	broken = true;
+	for (Node node : nodes) {
+	    node.mutex.P();
+	    for (int p = 0; p < 2; p++) {
+		for (int i = 0; i < node.waiting[p]; i++)
+		    node.release[p].V();
+		node.waiting[p] = 0;
+	    }
+	    node.mutex.V();
+	}
     }
     
     /** Class of exceptions thrown in case of a broken barrier. */
@@ -149,8 +244,28 @@ public class CyclicBarrier {
     public CyclicBarrier(int parties, Runnable barrierAction) {
 	if (parties <= 0) throw new IllegalArgumentException();
         this.parties = parties;
-        this.count = parties;
         this.barrierCommand = barrierAction;
+	
+	// Build the tree from the leaves up.
+	List<Node> all = new ArrayList<Node>();
+	Node[] level = new Node[(parties + FAN_IN - 1) / FAN_IN];
+	for (int i = 0; i < level.length; i++)
+	    level[i] = new Node(Math.min(FAN_IN, parties - i * FAN_IN), i * FAN_IN);
+	leaves = level;
+	while (true) {
+	    for (Node node : level)
+		all.add(node);
+	    if (level.length == 1)
+		break;
+	    Node[] above = new Node[(level.length + FAN_IN - 1) / FAN_IN];
+	    for (int i = 0; i < above.length; i++) {
+		above[i] = new Node(Math.min(FAN_IN, level.length - i * FAN_IN), 0);
+		for (int j = i * FAN_IN; j < level.length && j < (i + 1) * FAN_IN; j++)
+		    level[j].parent = above[i];
+	    }
+	    level = above;
+	}
+	nodes = all.toArray(new Node[all.size()]);
     }
 
     /**
@@ -159,9 +274,11 @@ public class CyclicBarrier {
      * until either the last thread arrives or some other thread invokes
      * reset() on this barrier.
      *
-     * @return  The arrival index of the current thread, where index
-     * getParties() - 1 indicates the first to arrive and zero indicates
-     * the last to arrive.
+     * @return  The arrival index of the current thread, between 0 and
+     * getParties() - 1.  The threads of one generation all get different
+     * indices, and the thread that trips the barrier gets 0.  The other
+     * indices depend on the places the threads took in the tree, not on
+     * the order in which they arrived.
      * @throws  BrokenBarrierException in case this barrier is broken.
      */
     public int await() throws BrokenBarrierException{
@@ -173,13 +290,14 @@ public class CyclicBarrier {
      * @return the number of parties currently waiting at the barrier.
      */
     public int getNumberWaiting() {
-	Semaphore sem1 = this.sem1;
-        sem1.P();
-        try {
-            return parties - count;
-        } finally {
-            sem1.V();
-        }
+	int parity = generation & 1;
+	int count = 0;
+	for (Node node : nodes) {
+	    node.mutex.P();
+	    count += node.waiting[parity];
+	    node.mutex.V();
+	}
+	return count;
     }
 
     /**
@@ -196,27 +314,14 @@ public class CyclicBarrier {
      * were blocked in await(), false otherwise.
      */
     public boolean isBroken() {
-	Semaphore sem1 = this.sem1;
-        sem1.P();
-        try {
-            return generation.broken;
-        } finally {
-            sem1.V();
-        }
+	return broken;
     }
 
     /**
      * Resets the barrier to its initial state. 
      */
     public void reset() {
-	Semaphore sem1 = this.sem1;
-        sem1.P();
-        try {
-            breakBarrier();   // break the current generation
-            //nextGeneration(); // start a new generation
-        } finally {
-            sem1.V();
-        }
+	breakBarrier();   // break the current generation
     }
 
     /**
@@ -265,7 +370,7 @@ public class CyclicBarrier {
 	Debug.println('+', "Demo1 starting");
 	
 	for(int i = 0; i < 5; i++) {
-	    NachosThread thread = new NachosThread ("Worker thread " + i, new Runnable() {
+	    SubNachosThread thread = new SubNachosThread ("Worker thread " + i, new Runnable() {
 		    public void run() {
 			Debug.println('1', "Thread " + NachosThread.currentThread().name + " is starting");
 			for(int j = 0; j < 3; j++) {
@@ -307,7 +412,7 @@ public class CyclicBarrier {
 	Debug.println('+', "Demo2 starting");
 	
 	for (int i = 0; i < 3; i++) {
-	    NachosThread thread = new NachosThread ("Worker thread " + i, new Runnable() {
+	    SubNachosThread thread = new SubNachosThread ("Worker thread " + i, new Runnable() {
 		 public void run() {
 		     Debug.println('1', "Thread " + NachosThread.currentThread().name + " is starting");
 		     for(int k = 0; k < 5; k++) {
@@ -333,5 +438,104 @@ public class CyclicBarrier {
 	    Nachos.scheduler.readyToRun(thread);
 	}
 	Debug.println('+', "Demo2 terminating");
+	
+	for(int j = 0; j < 150; j++) {
+		allowTimeToPass();   // Gap between 2 demo.
+	}
+	
+	Debug.println('+', "");
+	Debug.println('+', "********************************Demo2 ends, Demo3 starts********************************");
+	Debug.println('+', "");
+	
+	/**
+	 * The following demo checks a barrier with more parties than fit in one
+	 * leaf of the tree over several generations: each generation must hand
+	 * out every arrival index exactly once, and 0 to the thread that ran the
+	 * barrier action.  Then reset() must break a barrier with threads
+	 * waiting at more than one leaf, and later calls of await() must fail.
+	 */
+	final int parties = 3 * FAN_IN + 2;
+	final int generations = 4;
+	final SubNachosThread[] tripper = new SubNachosThread[1];   // ran the barrier action
+	final CyclicBarrier barrier3 = new CyclicBarrier(parties, new Runnable() {
+	    public void run() {
+		tripper[0] = (SubNachosThread)NachosThread.currentThread();
+	    }
+	});
+	final Semaphore mutex = new Semaphore("Demo3 mutex", 1);
+	final Semaphore finished = new Semaphore("Demo3 finished", 0);
+	final boolean[][] taken = new boolean[generations][parties];
+	final int[] errors = new int[1];
+	Debug.println('+', "Demo3 starting");
+	
+	for (int i = 0; i < parties; i++) {
+	    SubNachosThread thread = new SubNachosThread ("Worker thread " + i, new Runnable() {
+		public void run() {
+		    for(int g = 0; g < generations; g++) {
+			CyclicBarrier.allowTimeToPass();  // Do "work".
+			try {
+			    int index = barrier3.await();
+			    mutex.P();
+			    if (index < 0 || index >= parties || taken[g][index]) {
+				Debug.println('+', "Generation " + g + ": index " + index + " returned twice or out of range");
+				errors[0]++;
+			    } else {
+				taken[g][index] = true;
+			    }
+			    if ((index == 0) != (tripper[0] == NachosThread.currentThread())) {
+				Debug.println('+', "Generation " + g + ": index 0 not returned by the thread that tripped the barrier");
+				errors[0]++;
+			    }
+			    mutex.V();
+			} catch (BrokenBarrierException e) {
+			    Debug.println('+', "Generation " + g + ": unexpected BrokenBarrierException");
+			    errors[0]++;
+			}
+		    }
+		    finished.V();
+		    Nachos.scheduler.finishThread();
+		}
+	    });
+	    Nachos.scheduler.readyToRun(thread);
+	}
+	for (int i = 0; i < parties; i++)
+	    finished.P();
+	Debug.println('+', "Demo3: " + generations + " generations of " + parties + " parties, "
+		      + errors[0] + " errors, broken: " + barrier3.isBroken());
+	
+	// Break a barrier with threads waiting at more than one leaf.
+	final CyclicBarrier barrier4 = new CyclicBarrier(parties);
+	final int waiters = FAN_IN + 1;
+	final int[] brokenWaiters = new int[1];
+	for (int i = 0; i < waiters; i++) {
+	    SubNachosThread thread = new SubNachosThread ("Waiting thread " + i, new Runnable() {
+		public void run() {
+		    try {
+			barrier4.await();
+		    } catch (BrokenBarrierException e) {
+			mutex.P();
+			brokenWaiters[0]++;
+			mutex.V();
+		    }
+		    finished.V();
+		    Nachos.scheduler.finishThread();
+		}
+	    });
+	    Nachos.scheduler.readyToRun(thread);
+	}
+	while (barrier4.getNumberWaiting() < waiters)
+	    allowTimeToPass();
+	barrier4.reset();
+	for (int i = 0; i < waiters; i++)
+	    finished.P();
+	boolean lateAwaitFailed = false;
+	try {
+	    barrier4.await();
+	} catch (BrokenBarrierException e) {
+	    lateAwaitFailed = true;
+	}
+	Debug.println('+', "Demo3: reset() broke " + brokenWaiters[0] + " of " + waiters + " waiting threads"
+		      + ", broken: " + barrier4.isBroken() + ", later await() failed: " + lateAwaitFailed);
+	Debug.println('+', "Demo3 terminating");
     }
 }
\ No newline at end of file
@@ -0,0 +1,364 @@
+package nachos.kernel.threads;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import nachos.Debug;
+import nachos.machine.CPU;
+import nachos.machine.Machine;
+import nachos.machine.NachosThread;
+import nachos.machine.Simulation;
+import nachos.machine.Timer;
+
+/**
+ * Real-time scheduling class, which sits above the policy selected by
+ * Options.SCHEDULING_POLICY (the "inner" policy, for example the MLFQ levels).
+ * A thread joins the class with admit() (the SetRealTime system call),
+ * declaring a period and a budget: in every period it may run for up to
+ * budget ticks ahead of all the threads of the inner policy.  Ready
+ * real-time threads are kept in a heap ordered by absolute deadline (the end
+ * of their current period), and the earliest deadline runs first (EDF).
+ *
+ * Admission control keeps the total utilization (the sum of budget/period
+ * over all real-time threads) below MAX_UTILIZATION percent of the CPUs of
+ * the machine, and refuses a thread that would take it over.  With per-CPU
+ * ready queues each CPU has its own heap, so this is only a guarantee to the
+ * extent that real-time threads are spread over the CPUs.
+ *
+ * The budget is charged on each timer tick (see mustYield(), which the
+ * timer interrupt handler calls on its way to yieldOnReturn()).  A thread
+ * that overruns its budget is throttled: it is preempted, and until its
+ * next period begins it is offered to the inner policy like any other
+ * thread, so it only runs when no real-time work is pending.  When the
+ * period ends the budget is replenished and the deadline moves on by one
+ * period; a throttled thread waiting in the inner policy is then moved back
+ * to the heap, by the first poll() after its deadline, and the first tick
+ * after its deadline preempts the running thread, unless that is itself a
+ * real-time thread within its budget, so that the poll happens.
+ * A tick on which a real-time thread with an earlier deadline than
+ * the running thread is ready also preempts the running thread.
+ * Budgets are only charged on ticks, so they are accurate to one
+ * Timer.DefaultInterval, and not at all while a CPU runs tickless.
+ */
+public class DeadlineScheduling implements SchedulingPolicy {
+
+    /** Largest total utilization admitted, as a percentage of the CPUs. */
+    public static final int MAX_UTILIZATION = 90;
+
+    /** Utilization of one whole CPU, in the units used for admission control. */
+    private static final long ONE_CPU = 1000000;
+
+    /** Spin lock guarding the admitted utilization. */
+    private static final SpinLock admissionLock = new SpinLock("real-time admission lock");
+
+    /** Total utilization of the admitted threads, in millionths of a CPU. */
+    private static long admitted;
+
+    /** Ready real-time threads with budget left, earliest deadline first. */
+    private final PriorityQueue<SubNachosThread> heap =
+	new PriorityQueue<SubNachosThread>(16, new Comparator<SubNachosThread>() {
+	    public int compare(SubNachosThread a, SubNachosThread b) {
+		return Long.compare(a.getDeadline(), b.getDeadline());
+	    }
+	});
+
+    /**
+     * Deadline of the thread at the head of the heap, or Long.MAX_VALUE if
+     * the heap is empty.  Read without the lock by the timer interrupt
+     * handlers of other CPUs, to decide whether to preempt.
+     */
+    private volatile long earliestDeadline = Long.MAX_VALUE;
+
+    /**
+     * Throttled real-time threads waiting in the inner policy, earliest
+     * deadline (that is, earliest replenishment) first.
+     */
+    private final PriorityQueue<SubNachosThread> throttled =
+	new PriorityQueue<SubNachosThread>(16, new Comparator<SubNachosThread>() {
+	    public int compare(SubNachosThread a, SubNachosThread b) {
+		return Long.compare(a.getDeadline(), b.getDeadline());
+	    }
+	});
+
+    /**
+     * Deadline of the thread at the head of throttled, or Long.MAX_VALUE if
+     * there is none.  Read without the lock by the timer interrupt handlers.
+     */
+    private volatile long nextReplenishment = Long.MAX_VALUE;
+
+    /** Policy for all other threads. */
+    private final SchedulingPolicy inner;
+
+    /** Did the last poll leave the choice to the inner policy? */
+    private boolean innerPolled;
+
+    /**
+     * Initialize an empty real-time class above another policy.
+     *
+     * @param inner  The policy for threads that are not real-time, or have
+     * overrun their budget.
+     */
+    public DeadlineScheduling(SchedulingPolicy inner) {
+	this.inner = inner;
+    }
+
+    public void offer(SubNachosThread thread) {
+	if(thread.isRealTime()) {
+	    replenishIfDue(thread);
+	    if(thread.getBudgetLeft() > 0) {
+		thread.resetRemainingTicks(roundToTicks(thread.getBudgetLeft()));
+		heap.offer(thread);
+		earliestDeadline = heap.peek().getDeadline();
+		return;
+	    }
+	    throttled.offer(thread);
+	    nextReplenishment = throttled.peek().getDeadline();
+	}
+	inner.offer(thread);
+    }
+
+    public NachosThread poll() {
+	if(Simulation.currentTime() >= nextReplenishment)
+	    replenishThrottled();
+	SubNachosThread thread = heap.poll();
+	innerPolled = (thread == null);
+	if(thread == null) {
+	    NachosThread result = inner.poll();
+	    if(result != null)
+		removeThrottled((SubNachosThread)result);
+	    return result;
+	}
+	SubNachosThread next = heap.peek();
+	earliestDeadline = (next == null ? Long.MAX_VALUE : next.getDeadline());
+	return thread;
+    }
+
+    public NachosThread poll(int unit) {
+	if(Simulation.currentTime() >= nextReplenishment)
+	    replenishThrottled();
+	SubNachosThread thread = heap.peek();
+	if(thread != null && thread.canRunOn(unit)) {
+	    heap.poll();
+	} else if(thread != null) {
+	    // Search the heap for the earliest deadline among the threads allowed on the CPU.
+	    thread = null;
+	    for(SubNachosThread t : heap) {
+		if(t.canRunOn(unit) && (thread == null || t.getDeadline() < thread.getDeadline()))
+		    thread = t;
+	    }
+	    if(thread != null)
+		heap.remove(thread);
+	}
+	innerPolled = (thread == null);
+	if(thread != null) {
+	    SubNachosThread next = heap.peek();
+	    earliestDeadline = (next == null ? Long.MAX_VALUE : next.getDeadline());
+	    return thread;
+	}
+	NachosThread result = inner.poll(unit);
+	if(result != null)
+	    removeThrottled((SubNachosThread)result);
+	return result;
+    }
+
+    public boolean currentWins() {
+	return innerPolled && inner.currentWins();
+    }
+
+    public boolean remove(SubNachosThread thread) {
+	if(heap.remove(thread)) {
+	    SubNachosThread next = heap.peek();
+	    earliestDeadline = (next == null ? Long.MAX_VALUE : next.getDeadline());
+	    return true;
+	}
+	if(!inner.remove(thread))
+	    return false;
+	removeThrottled(thread);
+	return true;
+    }
+
+    /**
+     * Move the throttled threads whose next period has begun from the inner
+     * policy back to the heap, with their budgets replenished.
+     */
+    private void replenishThrottled() {
+	long now = Simulation.currentTime();
+	while(!throttled.isEmpty() && throttled.peek().getDeadline() <= now) {
+	    SubNachosThread thread = throttled.poll();
+	    if(inner.remove(thread)) {
+		Debug.println('t', "Thread " + thread.name + " has a new period, unthrottling");
+		offer(thread);
+	    }
+	}
+	nextReplenishment = (throttled.isEmpty() ? Long.MAX_VALUE : throttled.peek().getDeadline());
+    }
+
+    /**
+     * Forget a thread that has left the inner policy, if it was throttled.
+     *
+     * @param thread  The thread.
+     */
+    private void removeThrottled(SubNachosThread thread) {
+	if(!throttled.isEmpty() && throttled.remove(thread))
+	    nextReplenishment = (throttled.isEmpty() ? Long.MAX_VALUE : throttled.peek().getDeadline());
+    }
+
+    public boolean isEmpty() {
+	return heap.isEmpty() && inner.isEmpty();
+    }
+
+    public int size() {
+	return heap.size() + inner.size();
+    }
+
+    public void endBurst(SubNachosThread thread) {
+	inner.endBurst(thread);
+    }
+
+    public void keepRunning(SubNachosThread thread) {
+	if(thread.isRealTime()) {
+	    replenishIfDue(thread);
+	    if(thread.getBudgetLeft() > 0) {
+		thread.resetRemainingTicks(roundToTicks(thread.getBudgetLeft()));
+		return;
+	    }
+	}
+	inner.keepRunning(thread);
+    }
+
+    public void quantumExpired(SubNachosThread thread) {
+	inner.quantumExpired(thread);
+    }
+
+    /**
+     * Charge a timer tick to the real-time budget of the thread running on
+     * the current CPU, and decide whether it must give up the CPU: because
+     * it has overrun its budget, because its period has begun again while it
+     * was throttled, because a throttled thread waiting in the queues has a
+     * new period, or because a real-time thread with an earlier deadline
+     * is ready.  If so, the tick is also charged to the thread's burst,
+     * and an overrun counts as an expired quantum.  Called by the timer
+     * interrupt handler, with interrupts disabled.
+     *
+     * @param thread  The running thread.
+     * @param policy  The policy of the current CPU.
+     * @return  true if the thread should yield.
+     */
+    static boolean mustYield(SubNachosThread thread, SchedulingPolicy policy) {
+	long deadline = Long.MAX_VALUE;
+	if(thread.isRealTime()) {
+	    if(thread.getBudgetLeft() > 0) {
+		thread.setBudgetLeft(thread.getBudgetLeft() - Timer.DefaultInterval);
+		if(thread.getBudgetLeft() <= 0) {
+		    // To the inner policy, an overrun is the end of a full quantum.
+		    Debug.println('t', "Thread " + thread.name + " overran its budget, throttling");
+		    policy.quantumExpired(thread);
+		    return true;
+		}
+		deadline = thread.getDeadline();
+	    } else if(Simulation.currentTime() >= thread.getDeadline()) {
+		thread.addBurstTicks(Timer.DefaultInterval);
+		return true;
+	    }
+	}
+	if(policy instanceof DeadlineScheduling
+		&& (((DeadlineScheduling)policy).earliestDeadline < deadline
+		    || (deadline == Long.MAX_VALUE
+			&& Simulation.currentTime() >= ((DeadlineScheduling)policy).nextReplenishment))) {
+	    thread.addBurstTicks(Timer.DefaultInterval);
+	    return true;
+	}
+	return false;
+    }
+
+    /**
+     * Determine whether a policy has a real-time thread ready, which should
+     * run before anything the inner policy would choose, or a throttled
+     * thread that poll() would move back to the heap.
+     *
+     * @param policy  The policy.
+     * @return  true if the policy is a DeadlineScheduling with a ready real-time thread.
+     */
+    static boolean realTimeReady(SchedulingPolicy policy) {
+	return policy instanceof DeadlineScheduling
+		&& (((DeadlineScheduling)policy).earliestDeadline != Long.MAX_VALUE
+		    || Simulation.currentTime() >= ((DeadlineScheduling)policy).nextReplenishment);
+    }
+
+    /**
+     * Admit the current thread to the real-time class, or change its period
+     * and budget if it is already a member.  Its first period starts now.
+     *
+     * @param thread  The current thread.
+     * @param period  The period, in ticks.
+     * @param budget  The ticks the thread may run in each period, at most
+     * the period.
+     * @return  true if the thread was admitted; false if that would take the
+     * total utilization over the limit, in which case nothing changes.
+     */
+    public static boolean admit(SubNachosThread thread, int period, int budget) {
+	Debug.ASSERT(period > 0 && budget > 0 && budget <= period);
+	long utilization = (budget * ONE_CPU + period - 1) / period;
+	long limit = Machine.NUM_CPUS * ONE_CPU * MAX_UTILIZATION / 100;
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	admissionLock.acquire();
+	boolean ok = (admitted - thread.getUtilization() + utilization <= limit);
+	if(ok) {
+	    admitted += utilization - thread.getUtilization();
+	    thread.setRealTime(period, budget, utilization);
+	    thread.setDeadline(Simulation.currentTime() + period);
+	    thread.setBudgetLeft(budget);
+	}
+	admissionLock.release();
+	CPU.setLevel(oldLevel);
+	Debug.println('t', (ok ? "Admitted " : "Refused ") + thread.name + " to the real-time class, period "
+		+ period + ", budget " + budget);
+	return ok;
+    }
+
+    /**
+     * Take a thread out of the real-time class, giving back its utilization.
+     * Has no effect if the thread is not a member.  Called by the thread
+     * itself, including when it finishes.
+     *
+     * @param thread  The thread.
+     */
+    public static void leave(SubNachosThread thread) {
+	if(!thread.isRealTime())
+	    return;
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	admissionLock.acquire();
+	admitted -= thread.getUtilization();
+	thread.setRealTime(0, 0, 0);
+	admissionLock.release();
+	CPU.setLevel(oldLevel);
+	Debug.println('t', "Thread " + thread.name + " left the real-time class");
+    }
+
+    /**
+     * Start the next period of a real-time thread if its deadline has
+     * passed: refill its budget, and move its deadline on by a period, or
+     * to a period from now if it has fallen more than a period behind.
+     *
+     * @param thread  The thread.
+     */
+    private static void replenishIfDue(SubNachosThread thread) {
+	long now = Simulation.currentTime();
+	if(now < thread.getDeadline())
+	    return;
+	long deadline = thread.getDeadline() + thread.getPeriod();
+	thread.setDeadline(deadline > now ? deadline : now + thread.getPeriod());
+	thread.setBudgetLeft(thread.getBudget());
+    }
+
+    /**
+     * Round a budget up to whole timer ticks, for use as a quantum.
+     *
+     * @param ticks  The budget.
+     * @return  The quantum.
+     */
+    private static int roundToTicks(int ticks) {
+	return (ticks + Timer.DefaultInterval - 1) / Timer.DefaultInterval * Timer.DefaultInterval;
+    }
+
+}
@@ -8,8 +8,14 @@
 
 package nachos.kernel.threads;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import nachos.machine.CPU;
 import nachos.machine.NachosThread;
 import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.kernel.userprog.SleepListManager;
 
 /**
  * This class defines a "lock".  A lock can be BUSY or FREE.
@@ -28,6 +34,23 @@ import nachos.Debug;
  * the original C++ version of Nachos -- it was part of the student assignments.
  * As far as I know, this implementation originated in Peter Druschel's Java
  * version.
+ *
+ * To bound the time a thread can be held up by a lower-priority thread
+ * that holds a lock it wants (priority inversion), the owner of a lock
+ * inherits the best queue level (see MultilevelQueueOperator) of the
+ * threads waiting for it, for as long as it holds the lock.  If the owner
+ * is itself waiting for another lock, the inherited level is passed on to
+ * the owner of that lock, and so on down the chain.  When a lock is
+ * released, its former owner keeps only what it inherits through the
+ * locks it still holds.
+ *
+ * Inheritance only costs anything when a lock is contended: a thread that
+ * finds the lock free takes it with a single tryP() on the semaphore.  A
+ * thread that has to wait records itself under a spin lock of this lock
+ * (the guard), and registers the lock with its owner, whose list of
+ * inheriting locks is guarded by a spin lock of the owner thread.  Guards
+ * are taken lock first, then thread, and a chain of donations takes the
+ * guard of one lock at a time.
  * 
  * @author Peter Druschel (Rice University), Java translation
  * @author Eugene W. Stark (Stony Brook University)
@@ -43,6 +66,22 @@ public class Lock {
     /** Which thread currently holds this lock? */
     private volatile NachosThread owner;
 
+    /** Threads waiting to acquire this lock; guarded by guard. */
+    private final List<SubNachosThread> waiters = new ArrayList<SubNachosThread>();
+
+    /**
+     * Best level among the waiters, or SubNachosThread.NO_INHERITED_LEVEL if
+     * there are none.  Written with guard held; read without it by a thread
+     * that has just taken the lock, to see whether it must inherit.
+     */
+    private volatile int bestLevel = SubNachosThread.NO_INHERITED_LEVEL;
+
+    /** Is this lock in its owner's list of inheriting locks?  Guarded by guard. */
+    private boolean registered;
+
+    /** Spin lock guarding the waiters and the inheritance through this lock. */
+    private final SpinLock guard;
+
     /**
      * Initialize a lock.
      *
@@ -51,6 +90,7 @@ public class Lock {
     public Lock(String debugName) {
 	name = debugName;
 	sem = new Semaphore("Semaphore for lock \"" + debugName + "\"", 1);
+	guard = new SpinLock("Guard for lock \"" + debugName + "\"");
 	owner = null;
     }
 
@@ -62,13 +102,151 @@ public class Lock {
 	Debug.printf('s', "Acquiring lock %s for thread %s\n",
 		name, NachosThread.currentThread().name);
 
-	sem.P();
-	owner = NachosThread.currentThread();
+	NachosThread current = NachosThread.currentThread();
+	if(sem.tryP()) {
+	    setOwner(current);
+	} else if(!(current instanceof SubNachosThread)) {
+	    sem.P();
+	    owner = current;
+	} else {
+	    SubNachosThread thread = (SubNachosThread)current;
+	    startWaiting(thread);
+	    sem.P();
+	    stopWaiting(thread, true);
+	}
 
 	Debug.printf('s', "Acquired lock %s for thread %s\n",
 		name, NachosThread.currentThread().name);
     }
 
+    /**
+     * Set the lock to "busy" if it is "free", without waiting.
+     *
+     * @return true if the lock was acquired, false if it was busy.
+     */
+    public boolean tryAcquire() {
+	if(!sem.tryP())
+	    return false;
+	setOwner(NachosThread.currentThread());
+	Debug.printf('s', "Acquired lock %s for thread %s without waiting\n",
+		name, NachosThread.currentThread().name);
+	return true;
+    }
+
+    /**
+     * Wait until the lock is "free", then set the lock to "busy", but give
+     * up after a number of ticks.  While waiting, the thread lends its level
+     * to the owner as with acquire(); if it gives up, the owner goes back to
+     * what it inherits from its remaining waiters.  Timeouts need the CPU
+     * timers (see Semaphore.P(long)); without them, this is a fatal error,
+     * even if the lock happens to be free.
+     *
+     * @param ticks  The longest time to wait.
+     * @return true if the lock was acquired, false if it timed out.
+     */
+    public boolean tryAcquire(long ticks) {
+	SleepListManager.checkAlarms("Timed tryAcquire() on lock " + name);
+	if(tryAcquire())
+	    return true;
+
+	Debug.printf('s', "Acquiring lock %s for thread %s within %d ticks\n",
+		name, NachosThread.currentThread().name, ticks);
+
+	NachosThread current = NachosThread.currentThread();
+	boolean acquired;
+	if(!(current instanceof SubNachosThread)) {
+	    acquired = sem.P(ticks);
+	    if(acquired)
+		owner = current;
+	} else {
+	    SubNachosThread thread = (SubNachosThread)current;
+	    startWaiting(thread);
+	    acquired = sem.P(ticks);
+	    stopWaiting(thread, acquired);
+	}
+
+	if(acquired)
+	    Debug.printf('s', "Acquired lock %s for thread %s\n",
+		    name, NachosThread.currentThread().name);
+	else
+	    Debug.printf('s', "Thread %s gave up waiting for lock %s\n",
+		    NachosThread.currentThread().name, name);
+	return acquired;
+    }
+
+    /**
+     * Get the thread that holds this lock.  The answer may be out of date
+     * as soon as it is returned, so it should only be used as a hint.
+     *
+     * @return  The owner, or null if the lock is free.
+     */
+    protected NachosThread getOwner() {
+	return owner;
+    }
+
+    /**
+     * Record that a thread has just taken this lock without waiting.  If a
+     * thread started waiting while the lock was changing hands (and so had
+     * no owner to donate to), the new owner inherits from it now.
+     *
+     * @param current  The thread.
+     */
+    private void setOwner(NachosThread current) {
+	owner = current;
+	// A waiter sets bestLevel before it looks for the owner, and we set
+	// the owner before we look at bestLevel, so one of us sees the other.
+	if(bestLevel != SubNachosThread.NO_INHERITED_LEVEL && current instanceof SubNachosThread) {
+	    int oldLevel = CPU.setLevel(CPU.IntOff);
+	    guard.acquire();
+	    inheritThrough((SubNachosThread)current);
+	    guard.release();
+	    CPU.setLevel(oldLevel);
+	}
+    }
+
+    /**
+     * Add a thread to the waiters, and donate its level to the owner.
+     *
+     * @param thread  The thread, which has found the lock busy.
+     */
+    private void startWaiting(SubNachosThread thread) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	guard.acquire();
+	waiters.add(thread);
+	thread.setWaitingFor(this);
+	guard.release();
+	donate(this);
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Take a thread out of the waiters, once it has acquired the lock or
+     * given up.  A new owner inherits from the remaining waiters; if the
+     * thread gave up, the owner goes back to what it inherits without it.
+     *
+     * @param thread  The thread.
+     * @param acquired  true if it has acquired the lock.
+     */
+    private void stopWaiting(SubNachosThread thread, boolean acquired) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	guard.acquire();
+	waiters.remove(thread);
+	thread.setWaitingFor(null);
+	bestLevel = bestWaiterLevel();
+	if(acquired) {
+	    owner = thread;
+	    inheritThrough(thread);
+	} else if(registered) {
+	    SubNachosThread holder = (SubNachosThread)owner;
+	    holder.getInheritanceLock().acquire();
+	    holder.setInheritedLevel(inheritedLevel(holder));
+	    holder.getInheritanceLock().release();
+	    Nachos.scheduler.priorityChanged(holder);
+	}
+	guard.release();
+	CPU.setLevel(oldLevel);
+    }
+
     /**
      * Release the lock that was previously acquired, waking up a
      * waiting thread if necessary.
@@ -81,13 +259,113 @@ public class Lock {
 	Debug.printf('s', "Thread %s dropping lock %s\n",
 		NachosThread.currentThread().name, name);
 
-	owner = null;
+	NachosThread current = owner;
+	if(!(current instanceof SubNachosThread)) {
+	    owner = null;
+	} else {
+	    // The guard keeps a waiter from registering this lock with us
+	    // after we have looked.
+	    SubNachosThread thread = (SubNachosThread)current;
+	    int oldLevel = CPU.setLevel(CPU.IntOff);
+	    guard.acquire();
+	    owner = null;
+	    if(registered) {
+		registered = false;
+		thread.getInheritanceLock().acquire();
+		thread.getHeldLocks().remove(this);
+		thread.setInheritedLevel(inheritedLevel(thread));
+		thread.getInheritanceLock().release();
+	    }
+	    guard.release();
+	    CPU.setLevel(oldLevel);
+	}
 	sem.V();
 
 	Debug.printf('s', "Thread %s dropped lock %s\n",
 		NachosThread.currentThread().name, name);
     }
 
+    /**
+     * Let the owner of this lock inherit the best level of its waiters,
+     * registering the lock with the owner if it is not yet.  Assumes that
+     * interrupts are disabled and the guard is held.
+     *
+     * @param thread  The owner.
+     * @return  true if the owner's level has improved.
+     */
+    private boolean inheritThrough(SubNachosThread thread) {
+	if(bestLevel == SubNachosThread.NO_INHERITED_LEVEL)
+	    return false;
+	thread.getInheritanceLock().acquire();
+	if(!registered) {
+	    registered = true;
+	    thread.getHeldLocks().add(this);
+	}
+	boolean better = (bestLevel < thread.getEffectiveLevel());
+	if(better)
+	    thread.setInheritedLevel(bestLevel);
+	thread.getInheritanceLock().release();
+	return better;
+    }
+
+    /**
+     * Pass the best level among the waiters of a lock on to its owner, and
+     * from there along the chain of locks that the owner is waiting for,
+     * stopping at the first owner that already runs at least at that level.
+     * The guard of each lock is held only while its owner is updated.
+     * Assumes that interrupts are disabled.
+     *
+     * @param lock  The lock that has gained a waiter.
+     */
+    private static void donate(Lock lock) {
+	while(lock != null) {
+	    Lock next = null;
+	    lock.guard.acquire();
+	    lock.bestLevel = lock.bestWaiterLevel();
+	    if(lock.owner instanceof SubNachosThread) {
+		SubNachosThread owner = (SubNachosThread)lock.owner;
+		if(lock.inheritThrough(owner)) {
+		    Debug.printf('s', "Thread %s inherits level %d through lock %s\n",
+			    owner.name, lock.bestLevel, lock.name);
+		    Nachos.scheduler.priorityChanged(owner);
+		    next = owner.getWaitingFor();
+		}
+	    }
+	    lock.guard.release();
+	    lock = next;
+	}
+    }
+
+    /**
+     * Compute the level that a thread inherits through the locks it holds.
+     * Assumes that interrupts are disabled and the thread's inheritance
+     * lock is held.
+     *
+     * @param thread  The thread.
+     * @return  The best level among the waiters of the locks held by the
+     * thread, or SubNachosThread.NO_INHERITED_LEVEL if there are none.
+     */
+    private static int inheritedLevel(SubNachosThread thread) {
+	int level = SubNachosThread.NO_INHERITED_LEVEL;
+	for(Lock lock : thread.getHeldLocks())
+	    level = Math.min(level, lock.bestLevel);
+	return level;
+    }
+
+    /**
+     * Get the best level among the threads waiting for this lock.
+     * Assumes that the guard is held.
+     *
+     * @return  The best level, or SubNachosThread.NO_INHERITED_LEVEL if no
+     * thread is waiting.
+     */
+    private int bestWaiterLevel() {
+	int level = SubNachosThread.NO_INHERITED_LEVEL;
+	for(SubNachosThread waiter : waiters)
+	    level = Math.min(level, waiter.getEffectiveLevel());
+	return level;
+    }
+
     /**
      * A predicate that determines whether or not the lock is held by the
      * current thread.  Used for sanity checks in condition variables.
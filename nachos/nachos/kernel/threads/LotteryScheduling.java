@@ -0,0 +1,187 @@
+package nachos.kernel.threads;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import nachos.kernel.Nachos;
+import nachos.machine.NachosThread;
+import nachos.machine.Timer;
+
+/**
+ * Lottery scheduling policy ("lottery").
+ * Each time a thread is to be chosen, a ticket is drawn at random from those
+ * held by the ready threads, and the holder runs next, so each thread gets the
+ * CPU with probability proportional to its tickets.
+ * A thread that gave up the CPU after using only a fraction f of its quantum
+ * holds 1/f times its tickets for the next draw ("compensation tickets"),
+ * so that threads that block often still get their share.
+ * A thread whose quantum has expired takes part in the draw for the next
+ * quantum along with the ready threads, and keeps the CPU if it wins
+ * (see currentWins()); leaving it out would favour the threads with fewer
+ * tickets.
+ * A draw takes time linear in the number of ready threads.
+ */
+public class LotteryScheduling implements SchedulingPolicy {
+
+    /** Ready threads, in no particular order. */
+    private final ArrayList<SubNachosThread> ready = new ArrayList<SubNachosThread>();
+
+    /** Tickets held by each ready thread in the current draw, parallel to ready. */
+    private int[] held = new int[16];
+
+    /** Total number of tickets held by the ready threads. */
+    private long totalTickets;
+
+    /**
+     * Thread whose quantum has just expired, which is to take part in the
+     * draw for its successor, or null.  It is set by the timer interrupt
+     * handler without the lock of the ready queue, so poll() only trusts it
+     * if it is the thread calling poll(), on its way to giving up its CPU.
+     */
+    private volatile SubNachosThread expiring;
+
+    /** Did the expiring thread win the last draw? */
+    private boolean currentWon;
+
+    /** Random number generator for the draws. */
+    private final Random random;
+
+    /** Quantum given to every thread. */
+    private final int quantum;
+
+    /**
+     * Initialize an empty lottery scheduling policy.
+     *
+     * @param quantum  The quantum given to every thread, in ticks.
+     */
+    public LotteryScheduling(int quantum) {
+	this.quantum = quantum;
+	random = new Random(Nachos.options.RANDOM_SEED);
+    }
+
+    public void offer(SubNachosThread thread) {
+	int tickets = Math.max(thread.getTickets(), 1);
+	if(thread.getAlreadyLoadedFlag()) {
+	    int used = Math.max(thread.getLastBurstTicks(), Timer.DefaultInterval);
+	    if(used < quantum)
+		tickets = (int)Math.min((long)tickets * quantum / used, Integer.MAX_VALUE);
+	}
+	thread.resetRemainingTicks(quantum);
+	if(ready.size() == held.length)
+	    held = Arrays.copyOf(held, 2 * held.length);
+	held[ready.size()] = tickets;
+	ready.add(thread);
+	totalTickets += tickets;
+    }
+
+    public NachosThread poll() {
+	currentWon = false;
+	long currentTickets = 0;
+	SubNachosThread current = expiring;
+	if(current != null && current == NachosThread.currentThread()) {
+	    expiring = null;
+	    currentTickets = Math.max(current.getTickets(), 1);
+	}
+	if(ready.isEmpty())
+	    return null;
+	long winner = (long)(random.nextDouble() * (totalTickets + currentTickets));
+	if(winner >= totalTickets) {
+	    currentWon = true;	// The current thread won, and keeps running
+	    return null;
+	}
+	int i = 0;
+	while(i < ready.size() - 1 && winner >= held[i]) {
+	    winner -= held[i];
+	    i++;
+	}
+	SubNachosThread thread = ready.get(i);
+	removeAt(i);
+	return thread;
+    }
+
+    public NachosThread poll(int unit) {
+	currentWon = false;
+	long currentTickets = 0;
+	SubNachosThread current = expiring;
+	if(current != null && current == NachosThread.currentThread()) {
+	    expiring = null;
+	    if(current.canRunOn(unit))
+		currentTickets = Math.max(current.getTickets(), 1);
+	}
+	// Only the tickets of threads allowed on the CPU take part in the draw.
+	long allowedTickets = 0;
+	int last = -1;
+	for(int i = 0; i < ready.size(); i++) {
+	    if(ready.get(i).canRunOn(unit)) {
+		allowedTickets += held[i];
+		last = i;
+	    }
+	}
+	if(last < 0)
+	    return null;
+	long winner = (long)(random.nextDouble() * (allowedTickets + currentTickets));
+	if(winner >= allowedTickets) {
+	    currentWon = true;	// The current thread won, and keeps running
+	    return null;
+	}
+	int i = 0;
+	while(i < last && (!ready.get(i).canRunOn(unit) || winner >= held[i])) {
+	    if(ready.get(i).canRunOn(unit))
+		winner -= held[i];
+	    i++;
+	}
+	SubNachosThread thread = ready.get(i);
+	removeAt(i);
+	return thread;
+    }
+
+    public boolean currentWins() {
+	return currentWon;
+    }
+
+    public boolean remove(SubNachosThread thread) {
+	int i = ready.indexOf(thread);
+	if(i < 0)
+	    return false;
+	removeAt(i);
+	return true;
+    }
+
+    /**
+     * Remove the thread at a given index, moving the last thread into its place.
+     *
+     * @param i  The index.
+     */
+    private void removeAt(int i) {
+	totalTickets -= held[i];
+	int last = ready.size() - 1;
+	ready.set(i, ready.get(last));
+	held[i] = held[last];
+	ready.remove(last);
+    }
+
+    public boolean isEmpty() {
+	return ready.isEmpty();
+    }
+
+    public int size() {
+	return ready.size();
+    }
+
+    public void endBurst(SubNachosThread thread) {
+	// Nothing to record: offer() works out compensation from the last burst.
+	if(expiring == thread)
+	    expiring = null;
+    }
+
+    public void keepRunning(SubNachosThread thread) {
+	thread.resetRemainingTicks(quantum);
+    }
+
+    public void quantumExpired(SubNachosThread thread) {
+	thread.addBurstTicks(Timer.DefaultInterval);
+	expiring = thread;
+    }
+
+}
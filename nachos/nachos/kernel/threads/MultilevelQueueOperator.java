@@ -1,154 +1,270 @@
 package nachos.kernel.threads;
 
-import java.util.ArrayList;
-import java.util.List;
-
 import nachos.Debug;
-import nachos.machine.CPU;
+import nachos.kernel.Nachos;
 import nachos.machine.NachosThread;
 import nachos.util.LevelQueue;
-import nachos.util.Queue;
-
-public class MultilevelQueueOperator {
-    
-    private final double p = 0.4;
-    
-    private double prevPrediction;
-    
-    private double nextPrediction; // May not be useful
-    
-    private double currentBurst;
-    
+
+/*
+ * Multilevel feedback queue scheduling policy ("mlfq", or "rr" with a single level).
+ * A thread is placed on the level whose quantum fits the exponential average of
+ * its past bursts, and a thread that uses up its quantum is charged twice the
+ * quantum, so that it drifts down to longer quanta.
+ *
+ * The levels are kept in a fixed array, level i having quantum baseQuantum*2^i,
+ * and bit i of "occupied" is set exactly when level i is non-empty.  The highest
+ * priority non-empty level is then the lowest set bit, and the level for a burst
+ * estimate follows from the leading-zero count of estimate/baseQuantum, so
+ * picking and placing a thread take constant time whatever the number of levels.
+ */
+public class MultilevelQueueOperator implements SchedulingPolicy {
+
+    /** Largest number of levels that fit in the occupancy mask. */
+    public static final int MAX_LEVELS = 32;
+
+    /** Weight of the latest burst in the exponential average (Options.BURST_SMOOTHING). */
+    private final double p;
+
     private NachosThread nextThread;
-    
-    List<LevelQueue<NachosThread>> multilevelQueue;
-    
+
+    private final LevelQueue<NachosThread>[] multilevelQueue;
+
+    /** Bit i is set if and only if level i is non-empty. */
+    private int occupied;
+
+    /** Total number of threads in all the levels. */
+    private int size;
+
+    /** Quantum of level 0. */
+    private final int baseQuantum;
+
     public MultilevelQueueOperator(int numQueues, int baseQuantum) {
-	prevPrediction = 0.0; // Default value for initial estimate
-	
-	multilevelQueue = new ArrayList<LevelQueue<NachosThread>>(numQueues);
-	
+	Debug.ASSERT(numQueues >= 1 && numQueues <= MAX_LEVELS, "Bad number of queue levels: " + numQueues);
+	p = Nachos.options.BURST_SMOOTHING;
+	this.baseQuantum = baseQuantum;
+
+	multilevelQueue = newLevels(numQueues);
+
 	for (int i = 0; i < numQueues; i++) { // Double quantum every another queue
-	    if(i == 0) {
-		LevelQueue<NachosThread> temQueue = new LevelQueue<NachosThread>();
-		temQueue.setQuantum(baseQuantum);
-		multilevelQueue.add(temQueue);
-	    } else {
-		LevelQueue<NachosThread> temQueue = new LevelQueue<NachosThread>();
-		temQueue.setQuantum(2*multilevelQueue.get(i-1).getQuantum());
-		multilevelQueue.add(temQueue);
-	    }
+	    LevelQueue<NachosThread> temQueue = new LevelQueue<NachosThread>();
+	    temQueue.setQuantum(baseQuantum << i);
+	    multilevelQueue[i] = temQueue;
 	}
-	
+
 	for (int i = 0; i < numQueues; i++) {
-	    Debug.println('+', "Queue: "+ i + "quantum: "+multilevelQueue.get(i).getQuantum());
+	    Debug.println('+', "Queue: "+ i + "quantum: "+multilevelQueue[i].getQuantum());
 	}
     }
-    
-    public double calculateAvg() {
-	double result;
-	
-	result = p*getCurrentBurst() + (1-p)*getPrevPrediction();
-	
-	//setPrevPrediction(result); // Update previous estimate immediately
-	
-	//Debug.println('+', "Only calculate: "+ result);
-	
-	return result;
-    }
-    
-    // Offer thread into one specific queue
-    public void pickPriorityQueueAndInsert(SubNachosThread thread) {
-	
+
+    /**
+     * Create the array of levels.  Arrays of a generic type can only be
+     * made through a wildcard type and a cast.
+     *
+     * @param numQueues  The number of levels.
+     * @return  An array with a null entry for each level.
+     */
+    @SuppressWarnings("unchecked")
+    private static LevelQueue<NachosThread>[] newLevels(int numQueues) {
+	return (LevelQueue<NachosThread>[])new LevelQueue<?>[numQueues];
+    }
+
+    /**
+     * Compute the next burst estimate: average = p*sample + (1-p)*average.
+     * The inputs belong to a single thread, so the result does not depend
+     * on what other threads, possibly on other CPUs, have been doing.
+     *
+     * @param burst  The length of the burst that has just ended, in ticks.
+     * @param prevEstimate  The thread's estimate before that burst.
+     * @return  The new estimate.
+     */
+    public double calculateAvg(double burst, double prevEstimate) {
+	return p*burst + (1-p)*prevEstimate;
+    }
+
+    /**
+     * Find the first level whose quantum exceeds a burst estimate.
+     * Level i has quantum baseQuantum*2^i, so that is level
+     * floor(log2(estimate/baseQuantum)) + 1, or level 0 for an estimate
+     * below baseQuantum.  Estimates beyond the last level go on the last level.
+     *
+     * @param estimate  The predicted length of the next burst, in ticks.
+     * @return  The level on which a thread with that estimate belongs.
+     */
+    public int levelFor(double estimate) {
+	if(estimate < baseQuantum)
+	    return 0;
+	double ratio = estimate / baseQuantum;
+	int level = (ratio >= Integer.MAX_VALUE ? MAX_LEVELS
+		     : 32 - Integer.numberOfLeadingZeros((int)ratio));
+	return Math.min(level, multilevelQueue.length - 1);
+    }
+
+    /**
+     * Choose the level for a thread from its predicted next burst (which must
+     * already include its latest burst), record the
+     * level in the thread and give it a fresh quantum, without queueing it.
+     *
+     * @param thread  The thread to be placed.
+     * @return  The chosen level.
+     */
+    public int pickPriorityQueue(SubNachosThread thread) {
 	// Round-Robin queue
-	if(multilevelQueue.size() == 1) {
-	    multilevelQueue.get(0).offer(thread);
-		thread.setQueueIndex(0);
-		thread.resetRemainingTicks(multilevelQueue.get(0).getQuantum()); // Reset remaining ticks
-		//Debug.println('+', "Now thread: "+thread.name+", has been placed in queue with quantum:  "+multilevelQueue.get(0).getQuantum());
-		return;
+	if(multilevelQueue.length == 1) {
+	    thread.setQueueIndex(0);
+	    thread.resetRemainingTicks(multilevelQueue[0].getQuantum()); // Reset remaining ticks
+	    return 0;
 	}
-	
+
 	//Starting below is for multilevel queue
-	double tem = calculateAvg();
-	
-	//Debug.println('+', "Next estimate(prediction) calculated for "+thread.name+" : "+tem);
-
-	for(int i = 0; i < multilevelQueue.size(); i++) {
-	    if(tem < multilevelQueue.get(i).getQuantum()) {
-		multilevelQueue.get(i).offer(thread);
-		thread.setQueueIndex(i);
-		thread.resetRemainingTicks(multilevelQueue.get(i).getQuantum()); // Reset remaining ticks
-		//Debug.println('+', "Now thread: "+thread.name+", has been placed in queue with quantum:  "+multilevelQueue.get(i).getQuantum());
-		break;
-	    }
+	// A thread holding a lock wanted by a higher-priority thread runs at least at its level.
+	int level = Math.min(levelFor(thread.getPrevEstimate()), thread.getInheritedLevel());
+	SchedulerStats.levelChanged(thread, thread.getQueueIndex(), level);
+	thread.setQueueIndex(level);
+	thread.resetRemainingTicks(multilevelQueue[level].getQuantum()); // Reset remaining ticks
+	return level;
+    }
+
+    public void offer(SubNachosThread thread) {
+	if(!thread.getAlreadyLoadedFlag()) {
+	    // A new thread has no history: start it at the top level.
+	    thread.setQueueIndex(0);
+	    offerLevel(thread, 0);
+	} else {
+	    pickPriorityQueueAndInsert(thread);
 	}
     }
-    
-    // Poll thread from one specific queue
-    public NachosThread searchNextThread() {
-	for(int i = 0; i < multilevelQueue.size();i++) { // Do you understand?
-	    if(!multilevelQueue.get(i).isEmpty()) {
-		//Debug.println('+', "search next thread: "+ multilevelQueue.get(i).peek().name);
-		setNextThread(multilevelQueue.get(i).poll());
-		return getNextThread();
+
+    public NachosThread poll() {
+	return searchNextThread();
+    }
+
+    public NachosThread poll(int unit) {
+	// Highest priority level first, and in queue order within a level.
+	for(int levels = occupied; levels != 0; levels &= levels - 1) {
+	    int level = Integer.numberOfTrailingZeros(levels);
+	    LevelQueue<NachosThread> queue = multilevelQueue[level];
+	    for(int i = 0; i < queue.size(); i++) {
+		SubNachosThread thread = (SubNachosThread)queue.get(i);
+		if(!thread.canRunOn(unit))
+		    continue;
+		if(i == 0)
+		    pollLevel(level);
+		else
+		    remove(thread);
+		setNextThread(thread);
+		return thread;
 	    }
 	}
 	return null;
     }
-    
+
+    public boolean currentWins() {
+	return false;	// poll() only returns null when no thread is ready
+    }
+
+    public boolean remove(SubNachosThread thread) {
+	int level = thread.getQueueIndex();
+	if(!multilevelQueue[level].remove(thread))
+	    return false;
+	size--;
+	if(multilevelQueue[level].isEmpty())
+	    occupied &= ~(1 << level);
+	return true;
+    }
+
+    public void endBurst(SubNachosThread thread) {
+	thread.setPrevEstimate(calculateAvg(thread.getBurstTicks(), thread.getPrevEstimate()));
+    }
+
+    public void keepRunning(SubNachosThread thread) {
+	pickPriorityQueue(thread);
+    }
+
+    public void quantumExpired(SubNachosThread thread) {
+	thread.setBurstTicks(2*getQuantum(thread.getQueueIndex()));
+    }
+
+    // Offer thread into one specific queue
+    public void pickPriorityQueueAndInsert(SubNachosThread thread) {
+	offerLevel(thread, pickPriorityQueue(thread));
+    }
+
+    // Poll thread from the highest priority non-empty queue
+    public NachosThread searchNextThread() {
+	if(occupied == 0)
+	    return null;
+	setNextThread(pollLevel(Integer.numberOfTrailingZeros(occupied)));
+	return getNextThread();
+    }
+
     // Check if the entire multilevelQueue is empty
     public boolean isEmpty() {
-	for(int i = 0; i < multilevelQueue.size();i++) { // Do you understand?
-	    if(!multilevelQueue.get(i).isEmpty()) {
-		return true;
-	    }
-	}
-	return false;
-    }
-    
-    // Not my top choice to use
-    public void insertQueue(SubNachosThread thread, double prevEstimate) {
-	for(int i = 0; i < multilevelQueue.size(); i++) {
-	    if(prevEstimate < multilevelQueue.get(i).getQuantum()) {
-		multilevelQueue.get(i).offer(thread);
-		thread.setQueueIndex(i);
-		thread.resetRemainingTicks(multilevelQueue.get(i).getQuantum()); // Reset remaining ticks
-		break;
-	    }
+	return occupied == 0;
+    }
+
+    /**
+     * Get the number of threads queued on all levels.
+     *
+     * @return  The number of queued threads.
+     */
+    public int size() {
+	return size;
+    }
+
+    /**
+     * Add a thread at the tail of a specific level.
+     *
+     * @param thread  The thread to add.
+     * @param level  The level on which to put it.
+     */
+    public void offerLevel(NachosThread thread, int level) {
+	multilevelQueue[level].offer(thread);
+	occupied |= (1 << level);
+	size++;
+    }
+
+    /**
+     * Remove the thread at the head of a specific level.
+     *
+     * @param level  The level from which to take a thread.
+     * @return  The thread, or null if the level was empty.
+     */
+    public NachosThread pollLevel(int level) {
+	LevelQueue<NachosThread> queue = multilevelQueue[level];
+	NachosThread thread = queue.poll();
+	if(thread != null) {
+	    size--;
+	    if(queue.isEmpty())
+		occupied &= ~(1 << level);
 	}
+	return thread;
+    }
+
+    /**
+     * Get the quantum given to threads taken from a specific level.
+     *
+     * @param level  The level.
+     * @return  The quantum of that level, in ticks.
+     */
+    public int getQuantum(int level) {
+	return multilevelQueue[level].getQuantum();
+    }
+
+    /**
+     * Get the number of levels.
+     *
+     * @return  The number of levels.
+     */
+    public int getNumLevels() {
+	return multilevelQueue.length;
     }
-    
+
     /*The following are setters and getters*/
-    
-    public void setPrevPrediction(double num) {
-	prevPrediction = num;
-    }
-    
-    public double getPrevPrediction() {
-	return prevPrediction;
-    }
-    
-//    public void setNextPrediction(double num) {
-//	nextPrediction = num;
-//    }
-//    
-//    public double getNextPrediction() {
-//	return nextPrediction;
-//    }
-    
-    public void setCurrentBurst(double num) {
-	currentBurst = num;
-    }
-    
-    public double getCurrentBurst() {
-	return currentBurst;
-    }
-    
+
     public void setNextThread(NachosThread thread) {
 	nextThread = thread;
     }
-    
+
     public NachosThread getNextThread() {
 	return nextThread;
     }
@@ -0,0 +1,303 @@
+package nachos.kernel.threads;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nachos.machine.NachosThread;
+import nachos.machine.Simulation;
+
+/**
+ * The result of a computation that finishes some time in the future,
+ * for example a task run by TaskManager.Task.execute().  A future is
+ * completed once, either with a value or by being cancelled; threads that
+ * want the result wait for it on a Condition.
+ *
+ * Dependent work can be chained on with thenApply(), and several futures
+ * can be combined with allOf() and anyOf().  The dependent work runs
+ * synchronously, in the thread that completes the future it depends on, or
+ * in the thread that chains it on if that future has already completed.
+ * The future of a TaskManager task is completed by the WorkerPool worker
+ * that ran the task, so that is usually where chained functions run: they
+ * hold up the worker, and the tasks queued behind it, while they run, and
+ * like the task itself they may not wait with get().  Keep them short, and
+ * hand anything longer to a task of its own.
+ *
+ * Many futures complete without anyone waiting on them or chaining work on
+ * to them, so the condition and the list of chained work are only created
+ * when they are first needed.
+ */
+public class NachosFuture<T> {
+
+    /**
+     * A function chained on to a future with thenApply().
+     *
+     * @param <T>  The type of the value of the future.
+     * @param <U>  The type of the result.
+     */
+    public interface Transform<T, U> {
+
+	/**
+	 * Compute the result from the value of the future.
+	 *
+	 * @param value  The value.
+	 * @return  The result.
+	 */
+	public U apply(T value);
+    }
+
+    /** Lock guarding the state of this future. */
+    private final Lock lock = new Lock("future lock");
+
+    /** Signalled when the future completes; created by the first thread to wait. */
+    private Condition done;
+
+    /** Has the future completed (with a value or by being cancelled)? */
+    private boolean completed;
+
+    /** Was the future cancelled? */
+    private boolean cancelled;
+
+    /** The value, once completed. */
+    private T value;
+
+    /** Work to do on completion; null until some is chained on, and once the future has completed. */
+    private List<Runnable> dependents;
+
+    /**
+     * Complete this future with a value, waking up the threads waiting for
+     * it and running the work chained on to it.  Has no effect if the future
+     * has already completed.
+     *
+     * @param value  The value.
+     * @return true if this call completed the future.
+     */
+    public boolean complete(T value) {
+	return finish(value, false);
+    }
+
+    /**
+     * Complete this future by cancelling it.  Has no effect if the future
+     * has already completed.
+     *
+     * @return true if this call cancelled the future.
+     */
+    public boolean cancel() {
+	return finish(null, true);
+    }
+
+    /**
+     * Determine whether this future has completed.
+     *
+     * @return true if the future has a value or has been cancelled.
+     */
+    public boolean isDone() {
+	lock.acquire();
+	boolean result = completed;
+	lock.release();
+	return result;
+    }
+
+    /**
+     * Determine whether this future has been cancelled.
+     *
+     * @return true if the future has been cancelled.
+     */
+    public boolean isCancelled() {
+	lock.acquire();
+	boolean result = cancelled;
+	lock.release();
+	return result;
+    }
+
+    /**
+     * Wait for this future to complete, and get its value.
+     * A worker of a WorkerPool, such as a thread running a TaskManager task,
+     * may not wait: the future may need another worker of the same pool,
+     * which could deadlock the pool.  It can use get(long), or chain its
+     * work on to the future with thenApply(), instead.
+     *
+     * @return  The value, or null if the future was cancelled.
+     * @throws IllegalStateException  if the future has not completed and
+     * the calling thread is a worker of a WorkerPool.
+     */
+    public T get() throws IllegalStateException {
+	lock.acquire();
+	if(!completed && WorkerPool.isWorker(NachosThread.currentThread())) {
+	    lock.release();
+	    throw new IllegalStateException("A pool worker may not wait for a future");
+	}
+	while(!completed)
+	    doneCondition().await();
+	T result = value;
+	lock.release();
+	return result;
+    }
+
+    /**
+     * Wait at most a number of ticks for this future to complete, and get
+     * its value.  Timeouts need the CPU timers (see Condition.await(long)).
+     *
+     * @param ticks  The longest time to wait.
+     * @return  The value, or null if the future was cancelled or did not
+     * complete in time (isDone() tells which).
+     */
+    public T get(long ticks) {
+	long deadline = Simulation.currentTime() + ticks;
+	lock.acquire();
+	while(!completed) {
+	    long left = deadline - Simulation.currentTime();
+	    if(left <= 0 || !doneCondition().await(left) && !completed)
+		break;
+	}
+	T result = value;
+	lock.release();
+	return result;
+    }
+
+    /**
+     * Chain a function on to this future.  The function is applied in the
+     * thread that completes this future, or in this thread at once if this
+     * future has already completed.
+     *
+     * @param fn  The function, which is applied to the value of this future.
+     * @return  A future that completes with the result of the function, or is
+     * cancelled if this future is cancelled.
+     */
+    public <U> NachosFuture<U> thenApply(final Transform<? super T, ? extends U> fn) {
+	final NachosFuture<U> result = new NachosFuture<U>();
+	whenDone(new Runnable() {
+	    public void run() {
+		if(isCancelled())
+		    result.cancel();
+		else
+		    result.complete(fn.apply(getNow()));
+	    }
+	});
+	return result;
+    }
+
+    /**
+     * Combine futures into one that completes when they all have.  It is
+     * completed, along with whatever is chained on to it, in the thread
+     * that completes the last of the given futures.
+     *
+     * @param futures  The futures.
+     * @return  A future that completes, with the value null, once all the
+     * given futures have completed, whether or not they were cancelled.
+     */
+    public static NachosFuture<Void> allOf(NachosFuture<?>... futures) {
+	final NachosFuture<Void> result = new NachosFuture<Void>();
+	final int[] remaining = { futures.length };
+	final Lock countLock = new Lock("allOf count lock");
+	if(futures.length == 0)
+	    result.complete(null);
+	for(NachosFuture<?> future : futures) {
+	    future.whenDone(new Runnable() {
+		public void run() {
+		    countLock.acquire();
+		    boolean last = (--remaining[0] == 0);
+		    countLock.release();
+		    if(last)
+			result.complete(null);
+		}
+	    });
+	}
+	return result;
+    }
+
+    /**
+     * Combine futures into one that completes when any of them does.  It is
+     * completed, along with whatever is chained on to it, in the thread that
+     * completes the first of the given futures.
+     *
+     * @param futures  The futures.
+     * @return  A future that completes with the value of the first of the
+     * given futures to complete, or is cancelled if that one was cancelled.
+     */
+    public static NachosFuture<Object> anyOf(NachosFuture<?>... futures) {
+	final NachosFuture<Object> result = new NachosFuture<Object>();
+	for(final NachosFuture<?> future : futures) {
+	    future.whenDone(new Runnable() {
+		public void run() {
+		    if(future.isCancelled())
+			result.cancel();
+		    else
+			result.complete(future.getNow());
+		}
+	    });
+	}
+	return result;
+    }
+
+    /**
+     * Arrange for something to be done when this future completes, or
+     * do it now if it already has.
+     *
+     * @param action  What to do.
+     */
+    private void whenDone(Runnable action) {
+	lock.acquire();
+	boolean now = completed;
+	if(!now) {
+	    if(dependents == null)
+		dependents = new ArrayList<Runnable>(1);
+	    dependents.add(action);
+	}
+	lock.release();
+	if(now)
+	    action.run();
+    }
+
+    /**
+     * Complete this future, if it has not already completed.
+     *
+     * @param value  The value.
+     * @param cancel  Whether the future is being cancelled.
+     * @return true if this call completed the future.
+     */
+    private boolean finish(T value, boolean cancel) {
+	lock.acquire();
+	if(completed) {
+	    lock.release();
+	    return false;
+	}
+	this.value = value;
+	cancelled = cancel;
+	completed = true;
+	List<Runnable> toRun = dependents;
+	dependents = null;
+	if(done != null)
+	    done.broadcast();
+	lock.release();
+	if(toRun != null) {
+	    for(Runnable action : toRun)
+		action.run();
+	}
+	return true;
+    }
+
+    /**
+     * Get the value of this future, which has completed.
+     *
+     * @return  The value, or null if the future was cancelled.
+     */
+    private T getNow() {
+	lock.acquire();
+	T result = value;
+	lock.release();
+	return result;
+    }
+
+    /**
+     * Get the condition that waiting threads wait on, creating it if this
+     * is the first thread to wait.  The lock must be held.
+     *
+     * @return  The condition.
+     */
+    private Condition doneCondition() {
+	if(done == null)
+	    done = new Condition("future done", lock);
+	return done;
+    }
+
+}
@@ -0,0 +1,233 @@
+package nachos.kernel.threads;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.machine.CPU;
+import nachos.machine.NachosThread;
+import nachos.util.FIFOQueue;
+import nachos.util.Queue;
+
+/**
+ * This class defines a "reader-writer lock", for data that is read much
+ * more often than it is changed.  Any number of threads may hold the lock
+ * for reading at the same time, but a thread holding it for writing has
+ * it to itself.
+ *
+ * The lock prefers writers: once a writer is waiting, threads that ask to
+ * read wait behind it, so that a steady stream of readers cannot keep
+ * writers out forever.  A thread that holds the lock for reading may try
+ * to upgrade to writing; it gets the lock ahead of any waiting writers as
+ * soon as the other readers have left.  Only one upgrade can be pending at
+ * a time, since two readers each waiting for the other to leave would
+ * deadlock, so a second attempt fails and the caller keeps its read lock.
+ *
+ * Like Semaphore, waiting threads sleep by way of Scheduler.sleepThread()
+ * and are woken with Scheduler.readyToRun().
+ */
+public class ReadWriteLock {
+
+    /** Printable name useful for debugging. */
+    public final String name;
+
+    /** Number of threads holding the lock for reading. */
+    private int readers;
+
+    /** Thread holding the lock for writing, or null. */
+    private NachosThread writer;
+
+    /** Number of threads waiting to write, including any on their way back from sleep. */
+    private int waitingWriters;
+
+    /** Reader waiting to upgrade to writing, or null. */
+    private NachosThread upgrader;
+
+    /** Whether the upgrader is asleep, waiting for the other readers to leave. */
+    private boolean upgraderAsleep;
+
+    /** Threads asleep waiting to read. */
+    private final Queue<NachosThread> readQueue;
+
+    /** Threads asleep waiting to write. */
+    private final Queue<NachosThread> writeQueue;
+
+    /**
+     * Spin lock used to obtain exclusive access to the lock state
+     * in a multiprocessor setting.
+     */
+    private final SpinLock spinLock;
+
+    /**
+     * Initialize a reader-writer lock.
+     *
+     *	@param debugName An arbitrary name, useful for debugging.
+     */
+    public ReadWriteLock(String debugName) {
+	name = debugName;
+	readQueue = new FIFOQueue<NachosThread>();
+	writeQueue = new FIFOQueue<NachosThread>();
+	spinLock = new SpinLock(name + " spin lock");
+    }
+
+    /**
+     * Wait until no thread is writing or waiting to write, then acquire
+     * the lock for reading.
+     */
+    public void readLock() {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	spinLock.acquire();
+
+	while(writer != null || waitingWriters > 0 || upgrader != null) {
+	    readQueue.offer(NachosThread.currentThread());
+	    Nachos.scheduler.sleepThread(spinLock);
+	    spinLock.acquire();
+	}
+	readers++;
+	Debug.printf('s', "Thread %s reading under %s (%d readers)\n",
+		NachosThread.currentThread().name, name, readers);
+
+	spinLock.release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Release a lock held for reading.
+     */
+    public void readUnlock() {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	spinLock.acquire();
+
+	Debug.ASSERT(readers > 0, "Read unlock of " + name + " with no readers");
+	readers--;
+	if(upgrader != null) {
+	    // The upgrader is itself a reader, and goes as soon as it is the last one.
+	    if(readers == 1 && upgraderAsleep) {
+		upgraderAsleep = false;
+		Nachos.scheduler.readyToRun(upgrader);
+	    }
+	} else if(readers == 0) {
+	    wakeWaiters();
+	}
+
+	spinLock.release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Wait until no thread is reading or writing, then acquire the lock
+     * for writing.
+     */
+    public void writeLock() {
+	NachosThread current = NachosThread.currentThread();
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	spinLock.acquire();
+
+	waitingWriters++;
+	while(writer != null || readers > 0 || upgrader != null) {
+	    writeQueue.offer(current);
+	    Nachos.scheduler.sleepThread(spinLock);
+	    spinLock.acquire();
+	}
+	waitingWriters--;
+	writer = current;
+	Debug.printf('s', "Thread %s writing under %s\n", current.name, name);
+
+	spinLock.release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Release a lock held for writing.
+     */
+    public void writeUnlock() {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	spinLock.acquire();
+
+	Debug.ASSERT(writer == NachosThread.currentThread(),
+		"A thread that isn't writing tried to write unlock " + name);
+	writer = null;
+	wakeWaiters();
+
+	spinLock.release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Try to turn a lock held for reading into one held for writing,
+     * waiting for the other readers to leave.
+     *
+     * @return true if the caller now holds the lock for writing; false if
+     * another reader is already upgrading, in which case the caller still
+     * holds the lock for reading.
+     */
+    public boolean tryUpgrade() {
+	NachosThread current = NachosThread.currentThread();
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	spinLock.acquire();
+
+	Debug.ASSERT(readers > 0, "Upgrade of " + name + " with no readers");
+	boolean upgraded = (upgrader == null);
+	if(upgraded) {
+	    upgrader = current;
+	    while(readers > 1) {
+		upgraderAsleep = true;
+		Nachos.scheduler.sleepThread(spinLock);
+		spinLock.acquire();
+	    }
+	    upgrader = null;
+	    readers--;
+	    writer = current;
+	    Debug.printf('s', "Thread %s upgraded to writing under %s\n", current.name, name);
+	}
+
+	spinLock.release();
+	CPU.setLevel(oldLevel);
+	return upgraded;
+    }
+
+    /**
+     * Turn a lock held for writing into one held for reading, without
+     * letting any writer in between.
+     */
+    public void downgrade() {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	spinLock.acquire();
+
+	Debug.ASSERT(writer == NachosThread.currentThread(),
+		"A thread that isn't writing tried to downgrade " + name);
+	writer = null;
+	readers++;
+	if(waitingWriters == 0)
+	    wakeAll(readQueue);
+
+	spinLock.release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Wake up the threads that may go now that the lock is free: the first
+     * waiting writer if there is one, otherwise all the waiting readers.
+     * Assumes that interrupts are disabled and the spin lock is held.
+     */
+    private void wakeWaiters() {
+	NachosThread thread = writeQueue.poll();
+	if(thread != null)
+	    Nachos.scheduler.readyToRun(thread);
+	else if(waitingWriters == 0)
+	    wakeAll(readQueue);
+    }
+
+    /**
+     * Wake up all the threads in a queue.
+     * Assumes that interrupts are disabled and the spin lock is held.
+     *
+     * @param queue  The queue.
+     */
+    private static void wakeAll(Queue<NachosThread> queue) {
+	NachosThread thread = queue.poll();
+	while(thread != null) {
+	    Nachos.scheduler.readyToRun(thread);
+	    thread = queue.poll();
+	}
+    }
+
+}
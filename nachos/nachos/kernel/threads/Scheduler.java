@@ -18,13 +18,16 @@ import java.util.Iterator;
 
 import nachos.Debug;
 import nachos.kernel.Nachos;
+import nachos.kernel.userprog.AddrSpace;
 import nachos.kernel.userprog.SleepListManager;
 import nachos.kernel.userprog.UserThread;
 import nachos.machine.CPU;
 import nachos.machine.Machine;
 import nachos.machine.NachosThread;
+import nachos.machine.Simulation;
 import nachos.machine.Timer;
 import nachos.machine.InterruptHandler;
+import nachos.machine.Releasable;
 import nachos.util.FIFOQueue;
 import nachos.util.Queue;
 
@@ -43,10 +46,28 @@ import nachos.util.Queue;
  * (2) The current CPU obtains a spin lock in order to prevent concurrent
  * access to the scheduler state by other CPUs.
  * If there is just one CPU, then (1) would be enough.
+ * With the -pcq option each CPU instead has its own ready queues guarded by
+ * its own spin lock, and a CPU that runs out of work steals from the others.
+ * The scheduler spin lock is then only taken to manage the list of idle CPUs.
+ *
+ * With the -gang option (and shared ready queues) the user threads of one
+ * address space are scheduled as a gang: once a thread of some address space
+ * is running, a CPU looking for work takes a ready thread of the same space,
+ * if there is one, ahead of whatever the policy would choose, so that threads
+ * that work together (for example at a barrier) run at the same time rather
+ * than waiting for each other's turn.  Another address space gets to form the
+ * gang when no thread of the current one is running, or when the gang has
+ * had the CPUs for GANG_TENURE ticks: the gang is then retired, the policy
+ * alone chooses again, and the retired space cannot form the next gang until
+ * some other thread has been dispatched, so that the role rotates among the
+ * address spaces and kernel threads get their turn.
  * 
- * The scheduling policy implemented here is very simple:
- * threads that are ready to run are maintained in a FIFO queue and are
- * dispatched in order onto the first available CPU.
+ * Which ready thread runs next, and for how long, is left to a
+ * SchedulingPolicy chosen with the -sp option: multilevel feedback queues
+ * (the default), round robin, stride or lottery scheduling.  Threads that
+ * have declared a period and budget (the SetRealTime system call) form a
+ * real-time class above that policy (see DeadlineScheduling), and run in
+ * earliest-deadline-first order, ahead of the gang and of all other threads.
  * Scheduling may be preemptive or non-preemptive, depending on whether
  * timers are initialized for time-slicing.
  * 
@@ -55,22 +76,81 @@ import nachos.util.Queue;
  * @author Eugene W. Stark (Stony Brook University)
  */
 public class Scheduler {
-    
-    private static int eachBurstCounter;
 
     /** Queue of threads that are ready to run, but not running. */
     private final Queue<NachosThread> readyList;
     
-    private static MultilevelQueueOperator multilevelQueueOperator;
+    /** The ready threads, held by the scheduling policy. */
+    private static SchedulingPolicy readyQueues;
 
     /** Queue of CPUs that are idle. */
-    private final Queue<CPU> cpuList;
+    private final FIFOQueue<CPU> cpuList;
     
     /** Terminated thread awaiting reclamation of its stack. */
     private volatile NachosThread threadToBeDestroyed;
 
     /** Spin lock for mutually exclusive access to scheduler state. */
-    private final SpinLock mutex = new SpinLock("scheduler mutex");
+    private final SpinLock mutex =
+	new SpinLock("scheduler mutex", Nachos.options.QUEUED_SCHEDULER_LOCK);
+    
+    /** Does each CPU keep its own ready queues?  See Options.PER_CPU_QUEUES. */
+    private final boolean perCPUQueues;
+    
+    /** Per-CPU ready queues, indexed by CPU unit number (perCPUQueues only). */
+    private SchedulingPolicy[] cpuQueues;
+    
+    /** Spin locks guarding the entries of cpuQueues. */
+    private SpinLock[] cpuQueueLocks;
+    
+    /**
+     * Per-CPU helper threads that move threads off CPUs their affinity masks
+     * no longer allow (see migrationThread()), indexed by CPU unit number.
+     */
+    private final SubNachosThread[] migrationHelpers;
+    
+    /** Thread that the helper of each CPU is to make ready, or null. */
+    private final NachosThread[] migrating;
+    
+    /**
+     * Per-CPU objects used to release two spin locks atomically with a
+     * context switch (perCPUQueues only).
+     */
+    private ReleasePair[] releasePairs;
+    
+    /**
+     * Number of CPUs that are idle or on their way to becoming idle.
+     * It is only changed with the mutex held, but it is read without the mutex
+     * so that readyToRun() only takes the mutex when there might be an idle CPU
+     * to wake up (perCPUQueues only).
+     */
+    private volatile int idleCPUCount;
+    
+    /** Are the threads of each address space run as a gang?  See Options.GANG_SCHEDULING. */
+    private final boolean gangScheduling;
+    
+    /** Address space whose threads form the running gang, or null (gangScheduling only). */
+    private AddrSpace gang;
+    
+    /** Number of CPUs running threads of the gang (gangScheduling only). */
+    private int gangSize;
+    
+    /**
+     * Number of gangs formed so far; a thread is counted in gangSize only if
+     * it joined the gang of this term (gangScheduling only).
+     */
+    private int gangTerm;
+    
+    /** When the current gang was formed (gangScheduling only). */
+    private long gangSince;
+    
+    /** Address space whose gang was last retired, until another thread runs (gangScheduling only). */
+    private AddrSpace retiredGang;
+    
+    /** Longest time a gang is preferred over the policy's choice: one round-robin quantum. */
+    private static final int GANG_TENURE = 10 * Timer.DefaultInterval;
+    
+    /** Which CPU timers are running, in tickless mode (see Options.TICKLESS); otherwise null. */
+    private final TicklessTimers ticklessTimers;
     
     /**
      * Initialize the scheduler.
@@ -82,12 +162,22 @@ public class Scheduler {
     public Scheduler(NachosThread firstThread) {
 	readyList = new FIFOQueue<NachosThread>(); // Not used
 	
-	if (!Nachos.options.RR_SCHEDULING) {
-	    multilevelQueueOperator = new MultilevelQueueOperator(10, 100);// Multilevel queue with staring quantum 100
-	} else {
-	    multilevelQueueOperator = new MultilevelQueueOperator(1, 1000);// RR with 1000 quantum
+	readyQueues = newPolicy();
+	
+	perCPUQueues = Nachos.options.PER_CPU_QUEUES && Machine.NUM_CPUS > 1;
+	if(perCPUQueues) {
+	    cpuQueues = new SchedulingPolicy[Machine.NUM_CPUS];
+	    cpuQueueLocks = new SpinLock[Machine.NUM_CPUS];
+	    releasePairs = new ReleasePair[Machine.NUM_CPUS];
+	    for(int i = 0; i < Machine.NUM_CPUS; i++) {
+		cpuQueues[i] = (i == 0 ? readyQueues : newPolicy());
+		cpuQueueLocks[i] = new SpinLock("ready queue lock for CPU" + i);
+		releasePairs[i] = new ReleasePair();
+	    }
 	}
 	
+	gangScheduling = Nachos.options.GANG_SCHEDULING && !perCPUQueues;
+	
 	cpuList = new FIFOQueue<CPU>();
 
 	Debug.println('t', "Initializing scheduler");
@@ -106,10 +196,45 @@ public class Scheduler {
 	    }
 	}
 
+	ticklessTimers = (Nachos.options.CPU_TIMERS && Nachos.options.TICKLESS
+			  ? new TicklessTimers() : null);
+
+	SchedulerStats.init();
+
+	migrationHelpers = new SubNachosThread[Machine.NUM_CPUS];
+	migrating = new NachosThread[Machine.NUM_CPUS];
+	for(int i = 0; i < Machine.NUM_CPUS; i++)
+	    migrationHelpers[i] = newMigrationHelper(i);
+
 	// Dispatch firstThread on the first CPU.
 	CPU firstCPU = cpuList.poll();
+	idleCPUCount = Machine.NUM_CPUS - 1;
+	setOnCPU(firstThread, firstCPU, false);
 	firstCPU.dispatch(firstThread);
     };
+    
+    /**
+     * Create the scheduling policy selected by Options.SCHEDULING_POLICY:
+     * "mlfq", ten multilevel queues with a starting quantum of 100 ticks;
+     * "rr", round-robin with a 1000 tick quantum; or "stride" or "lottery",
+     * with a 1000 tick quantum.  In each case the real-time class
+     * (DeadlineScheduling) sits above the selected policy.
+     * 
+     * @return  The new policy, with no threads.
+     */
+    private static SchedulingPolicy newPolicy() {
+	String policy = Nachos.options.SCHEDULING_POLICY;
+	if(policy.equals("rr")) {
+	    return new DeadlineScheduling(new MultilevelQueueOperator(1, 1000));// RR with 1000 quantum
+	} else if(policy.equals("stride")) {
+	    return new DeadlineScheduling(new StrideScheduling(1000));
+	} else if(policy.equals("lottery")) {
+	    return new DeadlineScheduling(new LotteryScheduling(1000));
+	} else {
+	    Debug.ASSERT(policy.equals("mlfq"), "Unknown scheduling policy: " + policy);
+	    return new DeadlineScheduling(new MultilevelQueueOperator(10, 100));// Multilevel queue with staring quantum 100
+	}
+    }
 
     /**
      * Stop the timers on all CPUs, in preparation for shutdown.
@@ -136,10 +261,26 @@ public class Scheduler {
      */
     public void readyToRun(NachosThread thread) {
 	int oldLevel = CPU.setLevel(CPU.IntOff);
-	mutex.acquire();
-	makeReady(thread);
-	dispatchIdleCPUs();
-	mutex.release();
+	if(perCPUQueues) {
+	    // The thread goes on the queues of the CPU we are running on, or of
+	    // the CPU it prefers; other CPUs will steal it if they run out of work.
+	    int unit = homeUnit((SubNachosThread)thread);
+	    cpuQueueLocks[unit].acquire();
+	    makeReady(thread, cpuQueues[unit]);
+	    cpuQueueLocks[unit].release();
+	    if(idleCPUCount > 0) {
+		mutex.acquire();
+		dispatchIdleCPUs();
+		mutex.release();
+	    }
+	} else {
+	    mutex.acquire();
+	    makeReady(thread, readyQueues);
+	    dispatchIdleCPUs();
+	    mutex.release();
+	}
+	if(ticklessTimers != null)
+	    ticklessTimers.startBusy();
 	CPU.setLevel(oldLevel);
     }
 
@@ -149,7 +290,8 @@ public class Scheduler {
      * No attempt is made to dispatch threads on idle CPUs.
      * 
      * This internal version of readyToRun assumes that interrupts are disabled
-     * and that the scheduler mutex is held.
+     * and that the lock protecting the specified queues is held: the scheduler
+     * mutex, or in per-CPU mode the lock on the queues of the CPU.
      * It is assumed that multiple concurrent calls of this method will not be
      * made with the same thread as parameter.  Under that assumption, it is not
      * necessary to lock the thread object itself before changing its status to
@@ -158,9 +300,10 @@ public class Scheduler {
      * dispatching the thread, which is done with the scheduler mutex held.
      *
      * @param thread The thread to be put on the ready list.
+     * @param policy  The policy holding the queues on which to put the thread.
      */
-    private void makeReady(NachosThread thread) {
-	Debug.ASSERT(CPU.getLevel() == CPU.IntOff && mutex.isLocked());
+    private void makeReady(NachosThread thread, SchedulingPolicy policy) {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff);
 
 	Debug.println('t', "Putting thread on ready list: " + thread.name);
 
@@ -169,21 +312,137 @@ public class Scheduler {
 	
 	//multilevelQueueOperator.multilevelQueue.get(0).offer(thread);
 	
-	/*My code*/
-	if(!((SubNachosThread)thread).getAlreadyLoadedFlag()) {
-	    ((SubNachosThread)thread).setAlreadyLoadedFlag(); // No longer entering this condition
-	    ((SubNachosThread)thread).setQueueIndex(0);
-	    multilevelQueueOperator.multilevelQueue.get(0).offer((SubNachosThread)thread);
-	} else {
-	    if(!((SubNachosThread)thread).getWakeupFlag()) {
-		multilevelQueueOperator.setPrevPrediction(((SubNachosThread)thread).getPrevEstimate());
-		multilevelQueueOperator.pickPriorityQueueAndInsert((SubNachosThread)thread);
-		((SubNachosThread)thread).setPrevEstimate(multilevelQueueOperator.calculateAvg()); // Update previous estimate for current thread
-	    } else { // Return from sleep
-		((SubNachosThread)thread).resetWakeupFlag();
-		multilevelQueueOperator.insertQueue((SubNachosThread)thread, ((SubNachosThread)thread).getPrevEstimate());
+	// The policy has already seen the last burst of a thread that has run
+	// before (see endBurst()), whether the thread yielded, blocked or slept.
+	SubNachosThread subThread = (SubNachosThread)thread;
+	subThread.resetWakeupFlag();
+	SchedulerStats.readied(subThread);
+	policy.offer(subThread);
+	if(gangScheduling && thread instanceof UserThread)
+	    ((UserThread)thread).space.getReadyThreads().offer((UserThread)thread);
+	subThread.setAlreadyLoadedFlag();
+    }
+
+    /**
+     * Note that a thread is about to be dispatched on a CPU, so that
+     * SubNachosThread.isOnCPU() is true until it next leaves the CPU,
+     * and count the dispatch in the scheduler statistics.
+     *
+     * @param thread  The thread.
+     * @param cpu  The CPU.
+     * @param switching  true if the CPU is switching from another thread,
+     * false if it is idle.
+     */
+    private void setOnCPU(NachosThread thread, CPU cpu, boolean switching) {
+	((SubNachosThread)thread).setOnCPU(true);
+	SchedulerStats.dispatched((SubNachosThread)thread, cpu.unit, switching);
+	if(gangScheduling && thread instanceof UserThread) {
+	    UserThread userThread = (UserThread)thread;
+	    if(gangSize == 0 && userThread.space != retiredGang) {
+		gang = userThread.space;
+		gangTerm++;
+		gangSince = Simulation.currentTime();
+	    }
+	    if(userThread.space == gang) {
+		userThread.setGangTerm(gangTerm);
+		gangSize++;
+	    }
+	    if(userThread.space != retiredGang)
+		retiredGang = null;
+	} else if(gangScheduling) {
+	    retiredGang = null;
+	}
+    }
+
+    /**
+     * Note that a thread is leaving its CPU, for gang scheduling.
+     * Assumes that interrupts are disabled and the scheduler mutex is held.
+     *
+     * @param thread  The thread.
+     */
+    private void leaveGang(NachosThread thread) {
+	if(!gangScheduling || !(thread instanceof UserThread)
+	   || ((UserThread)thread).getGangTerm() != gangTerm || gang == null)
+	    return;
+	((UserThread)thread).setGangTerm(0);
+	if(--gangSize == 0)
+	    gang = null;
+    }
+
+    /**
+     * Retire the gang if it has had its tenure, so that its threads no longer
+     * go ahead of the policy's choice.  Threads of the gang that are still
+     * running are forgotten, and are not counted when they leave their CPUs.
+     * Assumes that interrupts are disabled and the scheduler mutex is held.
+     */
+    private void checkGangTenure() {
+	if(gang != null && Simulation.currentTime() - gangSince >= GANG_TENURE) {
+	    Debug.println('t', "Retiring the gang of address space " + gang.getSpaceId());
+	    retiredGang = gang;
+	    gang = null;
+	    gangSize = 0;
+	}
+    }
+
+    /**
+     * Take the next thread to run from the shared ready queues: in gang
+     * scheduling mode the first ready thread of the gang, otherwise the one
+     * chosen by the policy.
+     * Assumes that interrupts are disabled and the scheduler mutex is held.
+     *
+     * @param unit  The unit number of the CPU that is to run the thread,
+     * or -1 to ignore affinity masks, which the caller will then check.
+     * @return  The thread, or null if there is no suitable ready thread.
+     */
+    private NachosThread pollShared(int unit) {
+	if(gangScheduling)
+	    checkGangTenure();
+	if(gangScheduling && gang != null && !DeadlineScheduling.realTimeReady(readyQueues)) {
+	    Iterator<UserThread> ready = gang.getReadyThreads().iterator();
+	    while(ready.hasNext()) {
+		UserThread thread = ready.next();
+		if(unit < 0 || thread.canRunOn(unit)) {
+		    ready.remove();
+		    readyQueues.remove(thread);
+		    return thread;
+		}
 	    }
 	}
+	NachosThread result = (unit < 0 ? readyQueues.poll() : readyQueues.poll(unit));
+	if(gangScheduling && result instanceof UserThread)
+	    ((UserThread)result).space.getReadyThreads().remove(result);
+	return result;
+    }
+
+    /**
+     * Put back in the shared ready queues a thread taken by pollShared()
+     * that could not be run after all.
+     * Assumes that interrupts are disabled and the scheduler mutex is held.
+     *
+     * @param thread  The thread.
+     */
+    private void unpollShared(NachosThread thread) {
+	readyQueues.offer((SubNachosThread)thread);
+	if(gangScheduling && thread instanceof UserThread)
+	    ((UserThread)thread).space.getReadyThreads().offer((UserThread)thread);
+    }
+
+    /**
+     * Let the policy account for the burst that the current thread has just
+     * finished on this CPU (for example, folding it into the thread's own
+     * burst estimate), and start counting a new burst.
+     * All the state involved lives in the thread, so bursts run on other CPUs
+     * or by other threads cannot disturb it.
+     * Assumes that interrupts have been disabled.
+     * 
+     * @param thread  The thread that is leaving the CPU.
+     * @param policy  The policy of the current CPU.
+     */
+    private void endBurst(SubNachosThread thread, SchedulingPolicy policy) {
+	policy.endBurst(thread);
+	SchedulerStats.burstEnded(thread, currentUnit());
+	thread.setLastBurstTicks(thread.getBurstTicks());
+	thread.setBurstTicks(0);
     }
 
     /**
@@ -202,21 +461,113 @@ public class Scheduler {
 //	    // The current CPU is not relinquished here -- immediate return.
 //	}
 	Debug.ASSERT(CPU.getLevel() == CPU.IntOff && mutex.isLocked());
-	while(!multilevelQueueOperator.multilevelQueue.get(0).isEmpty() && !cpuList.isEmpty()) {
-	    NachosThread thread = multilevelQueueOperator.multilevelQueue.get(0).poll();
-	    CPU cpu = cpuList.poll();
+	if(perCPUQueues) {
+	    // Find work for each idle CPU in turn, from its own queues first.
+	    Iterator<CPU> idle = cpuList.iterator();
+	    while(idle.hasNext()) {
+		CPU cpu = idle.next();
+		NachosThread thread = stealThread(cpu.unit);
+		if(thread == null)
+		    continue;
+		idle.remove();
+		idleCPUCount--;
+		Debug.println('t', "Dispatching " + thread.name + " on " + cpu.name);
+		if(ticklessTimers != null)
+		    ticklessTimers.start(cpu);
+		setOnCPU(thread, cpu, false);
+		cpu.dispatch(thread);
+	    }
+	    return;
+	}
+	while(!readyQueues.isEmpty() && !cpuList.isEmpty()) {
+	    NachosThread thread = pollShared(-1);
+	    CPU cpu = takeIdleCPU((SubNachosThread)thread);
+	    if(cpu == null) {
+		// None of the idle CPUs may run this thread.  Put it back, and
+		// let each idle CPU pass over the threads it may not run.
+		unpollShared(thread);
+		dispatchEachIdleCPU();
+		return;
+	    }
 	    Debug.println('t', "Dispatching " + thread.name + " on " + cpu.name);
+	    if(ticklessTimers != null)
+		ticklessTimers.start(cpu);
+	    setOnCPU(thread, cpu, false);
 	    cpu.dispatch(thread);
 	    // The current CPU is not relinquished here -- immediate return.
 	}
-//	Debug.ASSERT(CPU.getLevel() == CPU.IntOff && mutex.isLocked());
-//	while(!multilevelQueueOperator.isEmpty() && !cpuList.isEmpty()) {
-//	    NachosThread thread = multilevelQueueOperator.searchNextThread();
-//	    CPU cpu = cpuList.poll();
-//	    Debug.println('t', "Dispatching " + thread.name + " on " + cpu.name);
-//	    cpu.dispatch(thread);
-//	    // The current CPU is not relinquished here -- immediate return.
-//	}
+    }
+
+    /**
+     * Find work in the shared ready queues for each idle CPU in turn, taking
+     * for each the first thread that may run on it.
+     * Assumes that interrupts have been disabled and that the scheduler mutex
+     * is held.
+     */
+    private void dispatchEachIdleCPU() {
+	Iterator<CPU> idle = cpuList.iterator();
+	while(idle.hasNext() && !readyQueues.isEmpty()) {
+	    CPU cpu = idle.next();
+	    NachosThread thread = pollShared(cpu.unit);
+	    if(thread == null)
+		continue;
+	    idle.remove();
+	    Debug.println('t', "Dispatching " + thread.name + " on " + cpu.name);
+	    if(ticklessTimers != null)
+		ticklessTimers.start(cpu);
+	    setOnCPU(thread, cpu, false);
+	    cpu.dispatch(thread);
+	}
+    }
+
+    /**
+     * Remove from the idle list a CPU on which a thread may run: the CPU it
+     * last ran on if soft affinity is on and that CPU is idle, otherwise the
+     * first idle CPU that its affinity mask allows.
+     * Assumes that interrupts have been disabled and that the scheduler mutex
+     * is held.
+     * 
+     * @param thread  The thread to be dispatched.
+     * @return  The CPU, or null if no idle CPU may run the thread.
+     */
+    private CPU takeIdleCPU(SubNachosThread thread) {
+	CPU chosen = null;
+	for(CPU cpu : cpuList) {
+	    if(!thread.canRunOn(cpu.unit))
+		continue;
+	    if(chosen == null)
+		chosen = cpu;
+	    if(!Nachos.options.CPU_AFFINITY || cpu.unit == thread.getLastCPU()) {
+		chosen = cpu;
+		break;
+	    }
+	}
+	if(chosen != null)
+	    cpuList.remove(chosen);
+	return chosen;
+    }
+
+    /**
+     * Choose the CPU on whose queues a thread that has become ready should be
+     * put (perCPUQueues only): the CPU it last ran on, if soft affinity is on,
+     * otherwise the current CPU, unless its affinity mask forbids that, in which
+     * case the first CPU that the mask allows.
+     * 
+     * @param thread  The thread.
+     * @return  The unit number of the CPU.
+     */
+    private static int homeUnit(SubNachosThread thread) {
+	int unit = currentUnit();
+	if(Nachos.options.CPU_AFFINITY && thread.getLastCPU() >= 0)
+	    unit = thread.getLastCPU();
+	if(thread.canRunOn(unit))
+	    return unit;
+	for(int i = 0; i < Machine.NUM_CPUS; i++) {
+	    if(thread.canRunOn(i))
+		return i;
+	}
+	Debug.ASSERT(false, "Thread " + thread.name + " may not run on any CPU");
+	return unit;
     }
 
     /**
@@ -229,16 +580,67 @@ public class Scheduler {
      */
     private NachosThread findNextToRun() {
 	Debug.ASSERT(CPU.getLevel() == CPU.IntOff);
+	if(perCPUQueues) {
+	    int unit = currentUnit();
+	    cpuQueueLocks[unit].acquire();
+	    NachosThread result = cpuQueues[unit].poll(unit);
+	    // If the policy chose to keep the current thread running, stealing
+	    // another thread would preempt it anyway.
+	    boolean currentWins = (result == null && cpuQueues[unit].currentWins());
+	    cpuQueueLocks[unit].release();
+	    if(result == null && !currentWins)
+		result = stealThread(unit);
+	    return result;
+	}
 	mutex.acquire();
 	//NachosThread result = readyList.poll();
 	//NachosThread result = multilevelQueueOperator.multilevelQueue.get(0).poll();
 	
 	/*My code*/
-	NachosThread result = multilevelQueueOperator.searchNextThread();
+	NachosThread result = pollShared(currentUnit());
 		
 	mutex.release();
 	return result;
     }
+    
+    /**
+     * Take a ready thread that may run on a given CPU, for use when that CPU
+     * has run out of work of its own.
+     * The queues of the other CPUs are examined in turn starting with the CPU
+     * after the thief, so that repeated steals are spread over all the CPUs,
+     * and the thief's own queues, which may have been refilled meanwhile, last.
+     * Assumes that interrupts have been disabled and that the caller holds none
+     * of the per-CPU queue locks.
+     * 
+     * @param thief  Unit number of the CPU that is to run the thread.
+     * @return  The stolen thread, or null if no CPU had a suitable ready thread.
+     */
+    private NachosThread stealThread(int thief) {
+	for(int i = 0; i < Machine.NUM_CPUS; i++) {
+	    int victim = (thief + 1 + i) % Machine.NUM_CPUS;
+	    cpuQueueLocks[victim].acquire();
+	    NachosThread result = cpuQueues[victim].poll(thief);
+	    cpuQueueLocks[victim].release();
+	    if(result != null) {
+		Debug.println('t', "CPU" + thief + " stole " + result.name + " from CPU" + victim);
+		if(victim != thief)
+		    SchedulerStats.stole(thief);
+		return result;
+	    }
+	}
+	return null;
+    }
+    
+    /**
+     * Get the unit number of the CPU on which we are running.
+     * 
+     * @return  The unit number of the current CPU, or 0 if we are not yet
+     * running on any CPU.
+     */
+    private static int currentUnit() {
+	CPU cpu = CPU.currentCPU();
+	return (cpu == null ? 0 : cpu.unit);
+    }
 
     /**
      * Yield the current CPU, either to another thread, or else leave it idle.
@@ -265,21 +667,32 @@ public class Scheduler {
 	Debug.ASSERT(CPU.getLevel() == CPU.IntOff);
 	CPU currentCPU = CPU.currentCPU();
 	NachosThread currentThread = NachosThread.currentThread();
-	NachosThread nextThread = findNextToRun();
-	
-	/*My code*/
-	//Debug.println('+', "Current burst accumulated: "+ eachBurstCounter+" in status: " + status + " from thread: " +NachosThread.currentThread().name);
-	eachBurstCounter = 0;
+	((SubNachosThread)currentThread).setLastCPU(currentCPU.unit);
+	NachosThread nextThread;
+	if(status == NachosThread.RUNNING
+	   && !((SubNachosThread)currentThread).canRunOn(currentCPU.unit)) {
+	    // The affinity mask of the thread no longer allows this CPU.
+	    // Hand the CPU to a helper thread, which makes the thread ready
+	    // elsewhere once it is safely switched out.
+	    nextThread = migrationThread(currentThread);
+	    status = NachosThread.BLOCKED;
+	} else {
+	    nextThread = findNextToRun();
+	}
+	if(ticklessTimers != null)
+	    ((SubNachosThread)currentThread).addBurstTicks(ticklessTimers.takeUncharged());
 
 	// If the current thread wants to keep running and there is no other thread to run,
 	// do nothing.
 	if(status == NachosThread.RUNNING && nextThread == null) {
 	    Debug.println('t', "No other thread to run -- " + currentThread.name + " continuing");
 	    /*My code*/
-	    multilevelQueueOperator.setPrevPrediction(((SubNachosThread)currentThread).getPrevEstimate());
-	    multilevelQueueOperator.pickPriorityQueueAndInsert((SubNachosThread)currentThread);
-	    ((SubNachosThread)currentThread).setPrevEstimate(multilevelQueueOperator.calculateAvg());
-	    multilevelQueueOperator.multilevelQueue.get(((SubNachosThread)currentThread).getQueueIndex()).poll();
+	    SchedulingPolicy policy = getSchedulingPolicy();
+	    SpinLock queueLock = (perCPUQueues ? cpuQueueLocks[currentCPU.unit] : mutex);
+	    queueLock.acquire();
+	    endBurst((SubNachosThread)currentThread, policy);
+	    policy.keepRunning((SubNachosThread)currentThread);
+	    queueLock.release();
 	    return;
 	}
 	Debug.println('t', "Next thread to run: " + (nextThread == null ? "(none)" : nextThread.name));
@@ -287,9 +700,22 @@ public class Scheduler {
 	// The current thread will be suspending -- save its context.
 	currentThread.saveState();
 
+	if(perCPUQueues) {
+	    switchPerCPU(status, toRelease, nextThread);
+	    // Control returns here when currentThread has been rescheduled,
+	    // perhaps on a different CPU.
+	    Debug.ASSERT(CPU.getLevel() == CPU.IntOff);
+	    currentThread.restoreState();
+
+	    Debug.println('t', "Now in thread: " + currentThread.name);
+	    return;
+	}
+
 	mutex.acquire();
 	if(toRelease != null)
 	    toRelease.release();
+	endBurst((SubNachosThread)currentThread, readyQueues);
+	leaveGang(currentThread);
 	if(nextThread != null) {
 	    // Switch the CPU from currentThread to nextThread.
 
@@ -298,23 +724,26 @@ public class Scheduler {
 
 	    if(status == NachosThread.RUNNING) {
 		// The current thread wants to keep running -- put it back in the ready list.
-		makeReady(currentThread);
+		makeReady(currentThread, readyQueues);
 	    } else {
-		/*My code(Has nextThread, call from finish)*/
-		multilevelQueueOperator.calculateAvg(); // Still need a calculation
-		
 		// Set the new status of the thread before relinquishing the CPU.
 		if(status != NachosThread.FINISHED)
 		    currentThread.setStatus(status);
 	    }
+	    if(ticklessTimers != null)
+		ticklessTimers.start(currentCPU);
+	    setOnCPU(nextThread, currentCPU, true);
 	    CPU.switchTo(nextThread, mutex);
 	} else {
 	    // There is nothing for this CPU to do -- send it to the idle list.
 	    Debug.println('t', "Switching " + CPU.getName() + " from " + currentThread.name + " to idle");
 
 	    cpuList.offer(currentCPU);
+	    SchedulerStats.wentIdle(currentCPU.unit);
 	    if(status != NachosThread.FINISHED)
 		currentThread.setStatus(status);
+	    if(ticklessTimers != null)
+		ticklessTimers.stopIfUnneeded(false, false);
 	    CPU.idle(mutex);
 	}
 	// Control returns here when currentThread has been rescheduled,
@@ -325,6 +754,110 @@ public class Scheduler {
 	Debug.println('t', "Now in thread: " + currentThread.name);
     }
 
+    /**
+     * Get the migration helper of the current CPU, ready to be switched to.
+     * Switching to it from a thread that must leave its CPU because of its
+     * affinity mask puts that thread back in the ready queues only once it is
+     * no longer running, from where a CPU that it may run on will pick it up.
+     * 
+     * @param thread  The thread that is moving to another CPU.
+     * @return  The helper thread, ready to be switched to.
+     */
+    private NachosThread migrationThread(NachosThread thread) {
+	int unit = CPU.currentCPU().unit;
+	migrating[unit] = thread;
+	migrationHelpers[unit].setStatus(NachosThread.READY);
+	return migrationHelpers[unit];
+    }
+
+    /**
+     * Create the migration helper of a CPU.  It is only ever switched to
+     * directly on that CPU, by migrationThread(), and each time makes the
+     * thread that was moving ready to run, then blocks until the next
+     * migration, with interrupts disabled throughout.
+     * 
+     * @param unit  The unit number of the CPU.
+     * @return  The helper thread.
+     */
+    private SubNachosThread newMigrationHelper(final int unit) {
+	return new SubNachosThread("migration helper for CPU" + unit, new Runnable() {
+	    public void run() {
+		CPU.setLevel(CPU.IntOff);
+		while(true) {
+		    NachosThread thread = migrating[unit];
+		    migrating[unit] = null;
+		    readyToRun(thread);
+		    sleepThread(null);
+		}
+	    }
+	});
+    }
+
+    /**
+     * Second half of yieldCPU() when each CPU has its own ready queues.
+     * If there is a next thread, the current thread goes back on the queues of
+     * this CPU (if it still wants to run) and we switch to the next thread.
+     * The queue lock of this CPU is held until the switch is under way, so that
+     * no other CPU can steal the current thread while it is still running here.
+     * Otherwise this CPU makes one last attempt to steal work from the other CPUs
+     * and, failing that, goes idle.  The idle count is raised before that last
+     * attempt, so a concurrent readyToRun() either finds this CPU in the idle
+     * list or has its thread found by the attempt.
+     * 
+     * @param status  The status desired by the currently executing thread.
+     * @param toRelease  If non-null, a spinlock held by the caller that is to be
+     * released atomically with relinquishing the CPU.
+     * @param nextThread  The thread to switch to, or null if this CPU found no
+     * thread on its own queues or those of the other CPUs.
+     */
+    private void switchPerCPU(int status, SpinLock toRelease, NachosThread nextThread) {
+	CPU currentCPU = CPU.currentCPU();
+	NachosThread currentThread = NachosThread.currentThread();
+	int unit = currentCPU.unit;
+
+	if(nextThread != null) {
+	    SpinLock queueLock = cpuQueueLocks[unit];
+	    queueLock.acquire();
+	    endBurst((SubNachosThread)currentThread, cpuQueues[unit]);
+
+	    Debug.println('t', "Switching " + CPU.getName() + " from " + currentThread.name + " to " 
+		    									+ nextThread.name);
+
+	    if(status == NachosThread.RUNNING)
+		makeReady(currentThread, cpuQueues[unit]);
+	    else if(status != NachosThread.FINISHED)
+		currentThread.setStatus(status);
+	    if(ticklessTimers != null)
+		ticklessTimers.start(currentCPU);
+	    setOnCPU(nextThread, currentCPU, true);
+	    CPU.switchTo(nextThread, releasePairs[unit].set(toRelease, queueLock));
+	    return;
+	}
+
+	mutex.acquire();
+	endBurst((SubNachosThread)currentThread, cpuQueues[unit]);
+	idleCPUCount++;
+	nextThread = stealThread(unit);
+	if(status != NachosThread.FINISHED)
+	    currentThread.setStatus(status);
+	if(nextThread != null) {
+	    idleCPUCount--;
+	    Debug.println('t', "Switching " + CPU.getName() + " from " + currentThread.name + " to " 
+		    									+ nextThread.name);
+	    if(ticklessTimers != null)
+		ticklessTimers.start(currentCPU);
+	    setOnCPU(nextThread, currentCPU, true);
+	    CPU.switchTo(nextThread, releasePairs[unit].set(toRelease, mutex));
+	} else {
+	    Debug.println('t', "Switching " + CPU.getName() + " from " + currentThread.name + " to idle");
+	    cpuList.offer(currentCPU);
+	    SchedulerStats.wentIdle(currentCPU.unit);
+	    if(ticklessTimers != null)
+		ticklessTimers.stopIfUnneeded(false, false);
+	    CPU.idle(releasePairs[unit].set(toRelease, mutex));
+	}
+    }
+
     /**
      * Relinquish the CPU if any other thread is ready to run.
      * If so, put the thread on the end of the ready list, so that
@@ -387,10 +920,28 @@ public class Scheduler {
      * A thread can't completely destroy itself, because it needs some
      * resources (e.g. a stack) as long as it is running.  So it is the
      * responsibility of the next thread to run to finish the job.
+     * 
+     * A thread that belongs to a ThreadCache is not finished: instead this
+     * method throws SubNachosThread.Finished, an Error, which unwinds the
+     * stack of the thread back to the loop in SubNachosThread that parks it
+     * in the cache.  For a user thread that is exiting, the unwinding passes
+     * up through the system call code, ExceptionHandler and the simulated
+     * CPU (MIPS.raiseException()).  So code that may call this method must
+     * not catch Error or Throwable, and must not hold locks that only a
+     * return would release; finally blocks are run on the way.
+     * For any other thread this method does not return.
      */
     public void finishThread() {
-	CPU.setLevel(CPU.IntOff);
 	NachosThread currentThread = NachosThread.currentThread();
+	if(currentThread instanceof SubNachosThread)
+	    DeadlineScheduling.leave((SubNachosThread)currentThread);
+	if(currentThread instanceof SubNachosThread
+		&& ((SubNachosThread)currentThread).isCached()) {
+	    // The thread goes back to its cache instead (see ThreadCache).
+	    Debug.println('t', "Finishing cached thread: " + currentThread.name);
+	    throw new SubNachosThread.Finished();
+	}
+	CPU.setLevel(CPU.IntOff);
 
 	Debug.println('t', "Finishing thread: " + currentThread.name);
 
@@ -417,12 +968,119 @@ public class Scheduler {
 	// current CPU goes idle.
     }
     
-    public int getEachBurstCounter() {
-	return eachBurstCounter;
+    /**
+     * Called on each timer interrupt, after sleepers have been woken.
+     * In tickless mode the timer of the current CPU is stopped if it is idle,
+     * or if the thread it is running has no other thread to make way for.
+     * Assumes that interrupts are disabled.
+     */
+    void timerTick() {
+	if(ticklessTimers == null)
+	    return;
+	NachosThread currentThread = NachosThread.currentThread();
+	if(currentThread != null)
+	    ((SubNachosThread)currentThread).addBurstTicks(ticklessTimers.takeUncharged());
+	ticklessTimers.stopIfUnneeded(currentThread != null, !getSchedulingPolicy().isEmpty());
+    }
+
+    /**
+     * Note that a thread is about to sleep, so that in tickless mode at least
+     * one CPU keeps its timer running to wake it up.
+     */
+    public void timerNeeded() {
+	if(ticklessTimers == null)
+	    return;
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	ticklessTimers.startIfNoneRunning();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Note that the priority a thread has inherited through locks has changed.
+     * If the thread is waiting in a ready queue, it is taken out and put back,
+     * so that the policy can place it according to its new priority.
+     * A thread that is running or blocked picks up the change the next time
+     * it becomes ready.  If the thread is dispatched concurrently, it is
+     * simply not found in any queue.
+     *
+     * @param thread  The thread.
+     */
+    public void priorityChanged(SubNachosThread thread) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	if(perCPUQueues) {
+	    for(int i = 0; i < cpuQueues.length; i++) {
+		cpuQueueLocks[i].acquire();
+		boolean found = cpuQueues[i].remove(thread);
+		if(found)
+		    cpuQueues[i].offer(thread);
+		cpuQueueLocks[i].release();
+		if(found)
+		    break;
+	    }
+	} else {
+	    mutex.acquire();
+	    if(readyQueues.remove(thread)) {
+		readyQueues.offer(thread);
+		// Keep the gang's queue in the same order as the policy's.
+		if(gangScheduling && thread instanceof UserThread) {
+		    FIFOQueue<UserThread> ready = ((UserThread)thread).space.getReadyThreads();
+		    ready.remove(thread);
+		    ready.offer((UserThread)thread);
+		}
+	    }
+	    mutex.release();
+	}
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Get the ready queues used by the current CPU.
+     * 
+     * @return  The queues of the current CPU in per-CPU mode, otherwise the
+     * queues shared by all CPUs.
+     */
+    public SchedulingPolicy getSchedulingPolicy() {
+	if(perCPUQueues)
+	    return cpuQueues[currentUnit()];
+	return readyQueues;
     }
     
-    public MultilevelQueueOperator getMultilevelQueueOperator() {
-	return multilevelQueueOperator;
+    /**
+     * A Releasable that lets go of a caller's spin lock (if any) and then a
+     * scheduler lock, so that both can be handed to CPU.switchTo() or CPU.idle()
+     * and be released atomically with the context switch.  There is one of these
+     * per CPU, and it is re-armed by set() before each use.
+     */
+    private static class ReleasePair implements Releasable {
+
+	/** Spin lock passed in by the caller of yieldCPU(), or null. */
+	private SpinLock toRelease;
+
+	/** Scheduler lock held across the context switch. */
+	private SpinLock schedulerLock;
+
+	/**
+	 * Arm this object for the next context switch.
+	 * 
+	 * @param toRelease  Spin lock held by the caller, or null.
+	 * @param schedulerLock  Scheduler lock to be released after toRelease.
+	 * @return  This object.
+	 */
+	ReleasePair set(SpinLock toRelease, SpinLock schedulerLock) {
+	    this.toRelease = toRelease;
+	    this.schedulerLock = schedulerLock;
+	    return this;
+	}
+
+	public void release() {
+	    SpinLock first = toRelease;
+	    SpinLock second = schedulerLock;
+	    toRelease = null;
+	    schedulerLock = null;
+	    if(first != null)
+		first.release();
+	    second.release();
+	}
     }
 
     /**
@@ -454,19 +1112,8 @@ public class Scheduler {
 	    // if the interrupted thread called yield at the point it is 
 	    // was interrupted.
 	    
-	    Iterator<SubNachosThread> iter = SleepListManager.SleepListArray.iterator();
-	    while(iter.hasNext()) {
-		SubNachosThread tem = iter.next();
-		if(tem.isSleepTicksBelowZero()) {
-		    //Debug.println('+', "  Waking up! -- "+ tem.name);
-		    tem.setWakeupFlag();
-		    tem.getSleepSem().V();
-		    iter.remove();
-		} else {
-		    //Debug.println('+',"  Sleeping now, for another "+ tem.getSleepTicks() + " ticks -- "+tem.name);
-		    tem.decrementSleepTicks();
-		}
-	    }
+	    SleepListManager.wakeExpired();
+	    Nachos.scheduler.timerTick();
 	    
 	    yieldOnReturn();
 	}
@@ -483,35 +1130,24 @@ public class Scheduler {
 	private void yieldOnReturn() {
 	    Debug.println('i', "Yield on interrupt return requested");
 	    
-//	    Iterator<SubNachosThread> iter = SleepListManager.SleepListArray.iterator();
-//	    while(iter.hasNext()) {
-//		SubNachosThread tem = iter.next();
-//		if(tem.isSleepTicksZero()) {
-//		    //makeReady((SubNachosThread)NachosThread.currentThread());
-//		    Debug.println('+', "  Waking up! -- "+ tem.name);
-//		    tem.setWakeupFlag();
-//		    tem.getSleepSem().V();
-//		    iter.remove();
-//		} else {
-//		    Debug.println('+',"  Sleeping now, for another "+ tem.getSleepTicks() + " ticks -- "+tem.name);
-//		    tem.decrementSleepTicks();
-//		}
-//	    }
-	    
 	    CPU.setOnInterruptReturn(new Runnable() {
 		public void run() {
 		    if(NachosThread.currentThread() != null && !((SubNachosThread)NachosThread.currentThread()).getExitFlag()) {
-			//eachBurstCounter = eachBurstCounter + 100; // To be deleted
-			
-			if(((SubNachosThread)NachosThread.currentThread()).isRemainingTicksZero()) {
+			if(DeadlineScheduling.mustYield((SubNachosThread)NachosThread.currentThread(),
+				Nachos.scheduler.getSchedulingPolicy())) {
+			    // Budget overrun, or real-time work with an earlier deadline
+			    Debug.println('t', "Yielding current thread to the real-time class on interrupt return");
+			    Nachos.scheduler.yieldThread();
+			} else if(((SubNachosThread)NachosThread.currentThread()).isRemainingTicksZero()) {
 			    Debug.println('t', "Yielding current thread on interrupt return");
 			    //Debug.println('+', "Reset quantum on thread " + NachosThread.currentThread().name);
 			    
-			    multilevelQueueOperator.setCurrentBurst(2*multilevelQueueOperator.multilevelQueue.get(((SubNachosThread)NachosThread.currentThread()).getQueueIndex()).getQuantum());
+			    SubNachosThread thread = (SubNachosThread)NachosThread.currentThread();
+			    Nachos.scheduler.getSchedulingPolicy().quantumExpired(thread);
 			    
 			    Nachos.scheduler.yieldThread(); // Force yield
 			} else {
-			    eachBurstCounter = eachBurstCounter + 100; // Record each burst
+			    ((SubNachosThread)NachosThread.currentThread()).addBurstTicks(100); // Record each burst
 			    //Debug.println('+', "Thread "+ NachosThread.currentThread().name + " has remaining clock ticks "+ ((SubNachosThread)NachosThread.currentThread()).getRemainingTicks());
 			    ((SubNachosThread)NachosThread.currentThread()).decrementRemainingTicks();
 			}
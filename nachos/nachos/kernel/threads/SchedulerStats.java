@@ -0,0 +1,362 @@
+package nachos.kernel.threads;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nachos.kernel.Nachos;
+import nachos.machine.Machine;
+import nachos.machine.Simulation;
+import nachos.util.Histogram;
+import nachos.util.MPSCQueue;
+
+/**
+ * Counters and histograms describing what the scheduler has done, printed
+ * when the simulation stops if the -ss option is given.
+ *
+ * Each CPU has its own counters and histograms, which only the scheduler
+ * code running on that CPU (or dispatching a thread onto it while it is
+ * idle) updates, and each thread has its own counters (see ThreadStats),
+ * so recording is a matter of bumping fields, with no locking and no
+ * allocation.  The per-CPU histograms are merged when the report is made.
+ * Without -ss nothing is recorded, and threads get no counters at all, so
+ * that a long run that creates many threads does not keep them all.
+ *
+ * Simulation.stop() is part of the machine, so the report is printed by a
+ * shutdown hook, which runs when stop() exits the Java virtual machine
+ * (as it also does when the simulation runs out of work or time).
+ */
+public class SchedulerStats {
+
+    /** Number of queue levels whose running time is counted separately. */
+    public static final int LEVELS = 10;
+
+    /**
+     * Counters for one thread (or, for a thread reused from a ThreadCache,
+     * for one of the bodies it has run).
+     */
+    public static class ThreadStats {
+
+	/** Name of the thread or body. */
+	final String name;
+
+	/** Ticks run at each queue level; the last entry also counts the levels below. */
+	final long[] levelTicks = new long[LEVELS];
+
+	/** Number of times the thread was moved to a lower priority level. */
+	long demotions;
+
+	/** Number of times the thread was moved to a higher priority level. */
+	long promotions;
+
+	/** Number of times the thread went from ready to running. */
+	long dispatches;
+
+	/** Total ticks spent waiting in the ready queues. */
+	long readyWaitTicks;
+
+	/** Time at which the thread was last made ready, or -1 if it is not waiting. */
+	long readySince = -1;
+
+	ThreadStats(String name) {
+	    this.name = name;
+	}
+
+    }
+
+    /** Number of threads dispatched on each CPU. */
+    private static long[] dispatches;
+
+    /** Number of switches from one thread to another on each CPU. */
+    private static long[] switches;
+
+    /** Ticks each CPU has spent idle. */
+    private static long[] idleTicks;
+
+    /** Time at which each CPU last went idle, or -1 if it is busy. */
+    private static long[] idleSince;
+
+    /** Number of threads each CPU has taken from another CPU's queues. */
+    private static long[] steals;
+
+    /** Ready-to-running latency of the threads dispatched on each CPU. */
+    private static Histogram[] readyLatency;
+
+    /** Length of the bursts run on each CPU. */
+    private static Histogram[] burstLength;
+
+    /** Is the report wanted (the -ss option)?  Set by init(). */
+    private static boolean enabled;
+
+    /**
+     * Counters of every thread created so far.  Threads are created from
+     * anywhere, including before the CPUs are running, so they are added to
+     * a lock-free queue, which only the report takes them from.
+     */
+    private static final MPSCQueue<ThreadStats> threads = new MPSCQueue<ThreadStats>();
+
+    /**
+     * Set up the per-CPU counters, with every CPU idle, and arrange for the
+     * report to be printed at shutdown, if it was asked for.  Called by the
+     * Scheduler constructor.
+     */
+    static void init() {
+	final String format = Nachos.options.SCHEDULER_STATS;
+	if(format == null)
+	    return;
+	enabled = true;
+	int n = Machine.NUM_CPUS;
+	dispatches = new long[n];
+	switches = new long[n];
+	idleTicks = new long[n];
+	idleSince = new long[n];
+	steals = new long[n];
+	readyLatency = new Histogram[n];
+	burstLength = new Histogram[n];
+	for(int i = 0; i < n; i++) {
+	    readyLatency[i] = new Histogram();
+	    burstLength[i] = new Histogram();
+	}
+	Runtime.getRuntime().addShutdownHook(new Thread() {
+	    public void run() {
+		List<ThreadStats> list = snapshot();
+		System.out.print(format.equals("json") ? toJSON(list) : toTable(list));
+		System.out.flush();
+	    }
+	});
+    }
+
+    /**
+     * Create the counters for a new thread or body, and keep them for the report.
+     * Threads may be created before init() is called, so this looks at the
+     * option itself.
+     *
+     * @param name  The name to report them under.
+     * @return  The counters, or null if the report was not asked for.
+     */
+    static ThreadStats newThreadStats(String name) {
+	if(Nachos.options.SCHEDULER_STATS == null)
+	    return null;
+	ThreadStats stats = new ThreadStats(name);
+	threads.offer(stats);
+	return stats;
+    }
+
+    /**
+     * Note that a thread has been put in the ready queues.
+     *
+     * @param thread  The thread.
+     */
+    static void readied(SubNachosThread thread) {
+	if(!enabled)
+	    return;
+	thread.getStats().readySince = Simulation.currentTime();
+    }
+
+    /**
+     * Note that a thread is being dispatched on a CPU.
+     *
+     * @param thread  The thread.
+     * @param unit  The unit number of the CPU.
+     * @param fromThread  true if the CPU is switching from another thread,
+     * false if it is idle.
+     */
+    static void dispatched(SubNachosThread thread, int unit, boolean fromThread) {
+	if(!enabled)
+	    return;
+	long now = Simulation.currentTime();
+	dispatches[unit]++;
+	if(fromThread) {
+	    switches[unit]++;
+	} else if(idleSince[unit] >= 0) {
+	    idleTicks[unit] += now - idleSince[unit];
+	    idleSince[unit] = -1;
+	}
+	ThreadStats stats = thread.getStats();
+	stats.dispatches++;
+	if(stats.readySince >= 0) {
+	    long wait = now - stats.readySince;
+	    stats.readyWaitTicks += wait;
+	    readyLatency[unit].record(wait);
+	    stats.readySince = -1;
+	}
+    }
+
+    /**
+     * Note that a CPU has gone idle.
+     *
+     * @param unit  The unit number of the CPU.
+     */
+    static void wentIdle(int unit) {
+	if(!enabled)
+	    return;
+	idleSince[unit] = Simulation.currentTime();
+    }
+
+    /**
+     * Note that a CPU has taken a thread from the queues of another CPU.
+     *
+     * @param unit  The unit number of the thief.
+     */
+    static void stole(int unit) {
+	if(!enabled)
+	    return;
+	steals[unit]++;
+    }
+
+    /**
+     * Note that a thread has finished a burst on a CPU.
+     *
+     * @param thread  The thread, whose burst ticks and queue level are those
+     * of the burst.
+     * @param unit  The unit number of the CPU.
+     */
+    static void burstEnded(SubNachosThread thread, int unit) {
+	if(!enabled)
+	    return;
+	int ticks = thread.getBurstTicks();
+	burstLength[unit].record(ticks);
+	thread.getStats().levelTicks[Math.min(thread.getQueueIndex(), LEVELS - 1)] += ticks;
+    }
+
+    /**
+     * Note that a policy has moved a thread from one queue level to another.
+     *
+     * @param thread  The thread.
+     * @param from  The old level.
+     * @param to  The new level.
+     */
+    static void levelChanged(SubNachosThread thread, int from, int to) {
+	if(!enabled)
+	    return;
+	if(to > from)
+	    thread.getStats().demotions++;
+	else if(to < from)
+	    thread.getStats().promotions++;
+    }
+
+    /**
+     * Merge the histograms of all the CPUs.
+     *
+     * @param perCPU  The histograms of each CPU.
+     * @return  A histogram of all their values.
+     */
+    private static Histogram merge(Histogram[] perCPU) {
+	Histogram total = new Histogram();
+	for(Histogram h : perCPU)
+	    total.add(h);
+	return total;
+    }
+
+    /**
+     * Get the idle ticks of a CPU, including the current idle period.
+     *
+     * @param unit  The unit number of the CPU.
+     * @return  The idle ticks.
+     */
+    private static long idleTicks(int unit) {
+	long ticks = idleTicks[unit];
+	if(idleSince[unit] >= 0)
+	    ticks += Simulation.currentTime() - idleSince[unit];
+	return ticks;
+    }
+
+    /**
+     * Format the statistics as text tables.
+     *
+     * @param list  The counters of every thread.
+     * @return  The report.
+     */
+    private static String toTable(List<ThreadStats> list) {
+	StringBuilder sb = new StringBuilder("\nScheduler statistics\n");
+	sb.append(String.format("%4s %12s %12s %12s %8s\n",
+		"CPU", "dispatches", "switches", "idle ticks", "steals"));
+	for(int i = 0; i < dispatches.length; i++)
+	    sb.append(String.format("%4d %12d %12d %12d %8d\n",
+		    i, dispatches[i], switches[i], idleTicks(i), steals[i]));
+	sb.append(String.format("\n%-40s %10s %12s %9s %10s  %s\n", "Thread", "dispatches",
+		"ready wait", "demotions", "promotions", "ticks at levels 0.." + (LEVELS - 1)));
+	for(ThreadStats t : list) {
+	    StringBuilder levels = new StringBuilder();
+	    for(int l = 0; l < LEVELS; l++)
+		levels.append(l == 0 ? "" : " ").append(t.levelTicks[l]);
+	    sb.append(String.format("%-40s %10d %12d %9d %10d  %s\n", t.name, t.dispatches,
+		    t.readyWaitTicks, t.demotions, t.promotions, levels));
+	}
+	sb.append('\n');
+	appendTable(sb, "Ready-to-run latency", merge(readyLatency));
+	appendTable(sb, "Burst length", merge(burstLength));
+	return sb.toString();
+    }
+
+    /**
+     * Format the statistics as a JSON object.
+     *
+     * @param list  The counters of every thread.
+     * @return  The report.
+     */
+    private static String toJSON(List<ThreadStats> list) {
+	StringBuilder sb = new StringBuilder("{\"cpus\":[");
+	for(int i = 0; i < dispatches.length; i++) {
+	    sb.append(i == 0 ? "" : ",").append(String.format(
+		    "{\"cpu\":%d,\"dispatches\":%d,\"switches\":%d,\"idleTicks\":%d,\"steals\":%d}",
+		    i, dispatches[i], switches[i], idleTicks(i), steals[i]));
+	}
+	sb.append("],\"threads\":[");
+	boolean first = true;
+	for(ThreadStats t : list) {
+	    sb.append(first ? "" : ",").append(String.format(
+		    "{\"name\":\"%s\",\"dispatches\":%d,\"readyWaitTicks\":%d,\"demotions\":%d,\"promotions\":%d,\"levelTicks\":[",
+		    t.name.replace("\\", "\\\\").replace("\"", "\\\""), t.dispatches,
+		    t.readyWaitTicks, t.demotions, t.promotions));
+	    for(int l = 0; l < LEVELS; l++)
+		sb.append(l == 0 ? "" : ",").append(t.levelTicks[l]);
+	    sb.append("]}");
+	    first = false;
+	}
+	sb.append("],\"readyLatency\":");
+	appendJSON(sb, merge(readyLatency));
+	sb.append(",\"burstLength\":");
+	appendJSON(sb, merge(burstLength));
+	sb.append("}\n");
+	return sb.toString();
+    }
+
+    /**
+     * Take the thread counters out of their queue.  Only the shutdown hook
+     * calls this, and only once, so it is the only consumer of the queue.
+     *
+     * @return  The counters of every thread.
+     */
+    private static List<ThreadStats> snapshot() {
+	List<ThreadStats> list = new ArrayList<ThreadStats>();
+	for(ThreadStats t = threads.poll(); t != null; t = threads.poll())
+	    list.add(t);
+	return list;
+    }
+
+    /**
+     * Append a one-line summary of a histogram to a table.
+     *
+     * @param sb  The table.
+     * @param title  What the histogram measures.
+     * @param h  The histogram.
+     */
+    private static void appendTable(StringBuilder sb, String title, Histogram h) {
+	sb.append(String.format("%-22s count %d  min %d  mean %.1f  p50 %d  p90 %d  p99 %d  max %d (ticks)\n",
+		title, h.getCount(), h.getMin(), h.getMean(), h.getPercentile(50),
+		h.getPercentile(90), h.getPercentile(99), h.getMax()));
+    }
+
+    /**
+     * Append a histogram summary as a JSON object.
+     *
+     * @param sb  The output.
+     * @param h  The histogram.
+     */
+    private static void appendJSON(StringBuilder sb, Histogram h) {
+	sb.append(String.format("{\"count\":%d,\"min\":%d,\"mean\":%.1f,\"p50\":%d,\"p90\":%d,\"p99\":%d,\"max\":%d}",
+		h.getCount(), h.getMin(), h.getMean(), h.getPercentile(50),
+		h.getPercentile(90), h.getPercentile(99), h.getMax()));
+    }
+
+}
@@ -0,0 +1,105 @@
+package nachos.kernel.threads;
+
+import nachos.machine.NachosThread;
+
+/**
+ * A scheduling policy holds the threads that are ready to run on a set of
+ * CPUs and decides which of them runs next and for how long.
+ * The Scheduler takes care of locking, CPU dispatching and context switching,
+ * and calls the policy with interrupts disabled and the lock protecting the
+ * policy held, so implementations do no synchronization of their own.
+ * Policies are selected with Options.SCHEDULING_POLICY.
+ *
+ * A thread's quantum is kept in the thread itself
+ * (SubNachosThread.resetRemainingTicks()), and the ticks it has used since it
+ * was last dispatched in SubNachosThread.getBurstTicks().
+ */
+public interface SchedulingPolicy {
+
+    /**
+     * Add a thread that has become ready to run, and give it a quantum.
+     * SubNachosThread.getAlreadyLoadedFlag() is false if this is the first
+     * time the thread has become ready.
+     *
+     * @param thread  The thread.
+     */
+    public void offer(SubNachosThread thread);
+
+    /**
+     * Remove a given thread from the ready threads, for example so that it
+     * can be offered again after its priority has changed.
+     *
+     * @param thread  The thread.
+     * @return  true if the thread was found and removed.
+     */
+    public boolean remove(SubNachosThread thread);
+
+    /**
+     * Remove and return the thread that should run next.
+     *
+     * @return  The thread, or null if no thread is ready.
+     */
+    public NachosThread poll();
+
+    /**
+     * Remove and return the thread that should run next on a given CPU,
+     * passing over, and leaving in place, the threads whose affinity masks
+     * do not allow that CPU (see SubNachosThread.canRunOn()).
+     *
+     * @param unit  The unit number of the CPU.
+     * @return  The thread, or null if no thread that may run on the CPU is ready.
+     */
+    public NachosThread poll(int unit);
+
+    /**
+     * Determine whether the last call of poll() or poll(int) returned null
+     * because the calling thread, whose quantum had expired, was chosen to
+     * keep its CPU for another quantum, rather than because no suitable
+     * thread was ready.  The Scheduler then does not look elsewhere for a
+     * thread to run.
+     *
+     * @return  true if the current thread is to keep its CPU.
+     */
+    public boolean currentWins();
+
+    /**
+     * Determine whether any thread is ready.
+     *
+     * @return  true if no thread is ready.
+     */
+    public boolean isEmpty();
+
+    /**
+     * Get the number of ready threads.
+     *
+     * @return  The number of ready threads.
+     */
+    public int size();
+
+    /**
+     * Account for the burst that a thread has just finished, as it leaves
+     * the CPU or starts a new quantum.  The burst is in
+     * SubNachosThread.getBurstTicks(); afterwards the Scheduler moves it to
+     * SubNachosThread.getLastBurstTicks() and starts a new burst.
+     *
+     * @param thread  The thread.
+     */
+    public void endBurst(SubNachosThread thread);
+
+    /**
+     * Give a new quantum to a thread that keeps its CPU because no other
+     * thread is ready.
+     *
+     * @param thread  The thread.
+     */
+    public void keepRunning(SubNachosThread thread);
+
+    /**
+     * Note that a thread has used up its quantum on a timer tick and is about
+     * to be preempted, charging the tick to its burst.
+     *
+     * @param thread  The thread.
+     */
+    public void quantumExpired(SubNachosThread thread);
+
+}
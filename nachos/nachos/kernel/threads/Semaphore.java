@@ -23,10 +23,10 @@ package nachos.kernel.threads;
 
 import nachos.Debug;
 import nachos.kernel.Nachos;
+import nachos.kernel.userprog.SleepListManager;
 import nachos.machine.CPU;
 import nachos.machine.NachosThread;
 import nachos.util.FIFOQueue;
-import nachos.util.Queue;
 
 /**
  * This class defines a "semaphore" whose value is a non-negative
@@ -57,7 +57,7 @@ public class Semaphore {
     private int value;
 
     /** Threads waiting in P() for the value to be > 0. */
-    private final Queue<NachosThread> queue;
+    private final FIFOQueue<NachosThread> queue;
 
     /**
      * Spin lock used to obtain exclusive access to semaphore state
@@ -107,6 +107,82 @@ public class Semaphore {
 	CPU.setLevel(oldLevel);				// restore interrupts
     }
 
+    /**
+     * 	Decrement the semaphore value if it is > 0, without waiting.
+     *
+     *	@return true if the value was decremented, false if it was 0.
+     */
+    public boolean tryP() {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	spinLock.acquire();
+	boolean taken = (value > 0);
+	if(taken) {
+	    Debug.println('s', "Semaphore " + name + ": value " + value
+		    + " -> " + (value-1));
+	    value--;
+	}
+	spinLock.release();
+	CPU.setLevel(oldLevel);
+	return taken;
+    }
+
+    /**
+     * 	Wait until semaphore value > 0, then decrement, but give up after
+     *	a number of ticks.  As with Condition.await(long), the timeout is
+     *	detected by the timer interrupt handler, so it is only as precise as
+     *	the timer interval, and it needs the CPU timers: without them, this
+     *	is a fatal error.
+     *
+     *	@param ticks  The longest time to wait.
+     *	@return true if the value was decremented, false if it timed out.
+     */
+    public boolean P(long ticks) {
+	SleepListManager.checkAlarms("Timed P() on semaphore " + name);
+	final NachosThread thread = NachosThread.currentThread();
+	final boolean[] expired = { ticks <= 0 };
+	// Set when this call is done, so that an alarm that went off too late
+	// to be cancelled leaves a later wait of the thread alone.
+	final boolean[] ended = new boolean[1];
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	spinLock.acquire();
+
+	Object alarm = null;
+	if(value == 0 && !expired[0]) {
+	    alarm = SleepListManager.setAlarm(new Runnable() {
+		public void run() {
+		    // Only wake the thread if it is still asleep here.
+		    spinLock.acquire();
+		    if(!ended[0]) {
+			expired[0] = true;
+			if(queue.remove(thread))
+			    Nachos.scheduler.readyToRun(thread);
+		    }
+		    spinLock.release();
+		}
+	    }, ticks);
+	}
+	while (value == 0 && !expired[0]) {
+	    queue.offer(thread);
+	    Nachos.scheduler.sleepThread(spinLock);
+	    spinLock.acquire();
+	}
+	ended[0] = true;
+	boolean fired = expired[0];
+	boolean taken = (value > 0);
+	if(taken) {
+	    Debug.println('s', "Semaphore " + name + ": value " + value
+		    + " -> " + (value-1));
+	    value--;
+	} else {
+	    Debug.println('s', "Semaphore " + name + ": timed out");
+	}
+	spinLock.release();
+	CPU.setLevel(oldLevel);
+	if(alarm != null && !fired)
+	    SleepListManager.cancelAlarm(alarm);
+	return taken;
+    }
+
     /**
      * 	Increment semaphore value, waking up a waiter if necessary.
      */
@@ -1,12 +1,29 @@
 package nachos.kernel.threads;
 
 import nachos.Debug;
+import nachos.machine.CPU;
 import nachos.machine.Machine;
 import nachos.machine.Releasable;
 import nachos.machine.TestAndSetVariable;
 
 /**
  * This class implements "spin locks" for multiprocessor synchronization.
+ *
+ * By default a spin lock is a test-and-set lock: a CPU that finds the lock
+ * busy backs off for an exponentially growing (but bounded) time before it
+ * tries again, watching the lock without writing to it in the meantime.
+ * This keeps CPUs from hammering the shared variable, but a CPU can still
+ * lose the race for the lock any number of times.
+ *
+ * A "queued" spin lock is an MCS lock instead: CPUs waiting for the lock
+ * form a FIFO queue, each spins only on a variable of its own, and the lock
+ * is handed directly to the first waiter when it is released, so no CPU can
+ * starve however many there are.  The hardware only offers test-and-set,
+ * not the atomic swap and compare-and-swap an MCS lock normally uses to
+ * join and leave the queue, so those steps are done while holding a
+ * test-and-set "guard", which is only ever held for a few instructions.
+ * The queue has one node per CPU, which is enough because a CPU waits for
+ * at most one spin lock at a time.
  * 
  * @author Eugene W. Stark
  * @version 20140106
@@ -20,14 +37,57 @@ public class SpinLock implements Releasable {
     /** Name of this lock, for debugging. */
     private final String name;
     
+    /** Longest time to back off between attempts on a busy test-and-set lock. */
+    private static final int MAX_BACKOFF = 1024;
+    
+    /** A CPU's place in the queue of a queued lock. */
+    private static class Node {
+	/** Set while the CPU waits; reset by its predecessor to hand it the lock. */
+	final TestAndSetVariable<Boolean> waiting = new TestAndSetVariable<Boolean>();
+	
+	/** The CPU queued behind this one, if any. */
+	volatile Node next;
+    }
+    
     /**
-     * Initialize a spin lock.
+     * Queue nodes, indexed by CPU unit number, for a queued lock;
+     * null for a test-and-set lock.  For a queued lock, the shared
+     * variable is the guard on tail and the next links.
+     */
+    private final Node[] nodes;
+    
+    /** Last CPU in the queue of a queued lock, or null if the lock is free. */
+    private Node tail;
+    
+    /** Node of the CPU that holds a queued lock. */
+    private volatile Node holder;
+    
+    /**
+     * Initialize a test-and-set spin lock.
      * 
      * @param name  Name of the lock, for debugging.
      */
     public SpinLock(String name) {
+	this(name, false);
+    }
+    
+    /**
+     * Initialize a spin lock.
+     * 
+     * @param name  Name of the lock, for debugging.
+     * @param queued  Whether the lock should be a queued (MCS) lock rather
+     * than a test-and-set lock.
+     */
+    public SpinLock(String name, boolean queued) {
 	this.name = name;
 	shared = new TestAndSetVariable<Boolean>();
+	if(queued && Machine.NUM_CPUS > 1) {
+	    nodes = new Node[Machine.NUM_CPUS];
+	    for(int i = 0; i < nodes.length; i++)
+		nodes[i] = new Node();
+	} else {
+	    nodes = null;
+	}
     }
     
     /**
@@ -37,8 +97,25 @@ public class SpinLock implements Releasable {
 	if(Machine.NUM_CPUS > 1) {
 	    Debug.printf('s', "Acquiring spin lock: %s\n", name);
 
-	    while(shared.testAndSet(true) != null)
-		/* spin */;
+	    if(nodes == null) {
+		acquireShared();
+	    } else {
+		Node node = nodes[CPU.currentCPU().unit];
+		node.next = null;
+		node.waiting.testAndSet(true);
+		acquireShared();
+		Node pred = tail;
+		tail = node;
+		if(pred != null)
+		    pred.next = node;
+		shared.reset();
+		if(pred != null) {
+		    // Wait for our predecessor to hand over the lock.
+		    while(node.waiting.testAndSet(true) != null)
+			/* spin */;
+		}
+		holder = node;
+	    }
 
 	    Debug.printf('s', "Acquired spin lock: %s\n", name);
 	}
@@ -51,7 +128,32 @@ public class SpinLock implements Releasable {
 	if(Machine.NUM_CPUS > 1) {
 	    Debug.printf('s', "Releasing spin lock: %s\n", name);
 
-	    shared.reset();
+	    if(nodes == null) {
+		shared.reset();
+	    } else {
+		Node node = holder;
+		holder = null;
+		acquireShared();
+		Node next = node.next;
+		if(next == null)
+		    tail = null;
+		shared.reset();
+		if(next != null)
+		    next.waiting.reset();
+	    }
+	}
+    }
+    
+    /**
+     * Acquire the shared test-and-set variable, backing off exponentially
+     * while it is busy.
+     */
+    private void acquireShared() {
+	int backoff = 1;
+	while(shared.testAndSet(true) != null) {
+	    for(int i = 0; i < backoff && shared.getValue() != null; i++)
+		/* back off */;
+	    backoff = Math.min(2 * backoff, MAX_BACKOFF);
 	}
     }
     
@@ -71,6 +173,8 @@ public class SpinLock implements Releasable {
      */
     public boolean isLocked() {
 	if(Machine.NUM_CPUS > 1) {
+	    if(nodes != null)
+		return holder != null;
 	    return shared.getValue() != null;
 	} else {
 	    return true;
@@ -0,0 +1,111 @@
+package nachos.kernel.threads;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import nachos.machine.NachosThread;
+import nachos.machine.Timer;
+
+/**
+ * Stride scheduling policy ("stride").
+ * Each thread advances its "pass" by its stride, which is inversely
+ * proportional to its tickets, scaled by the fraction of a quantum it
+ * actually used.  The ready thread with the smallest pass runs next, so over
+ * time each thread gets CPU time in proportion to its tickets.
+ * Ready threads are kept in a heap ordered by pass, so offer() and poll()
+ * take O(log n) time.
+ *
+ * A thread that becomes ready with a pass behind that of the threads that
+ * have been running (a new thread, or one that has been blocked for a long
+ * time) is moved up to the global pass, so that it cannot claim the CPU
+ * for the time it spent away.
+ */
+public class StrideScheduling implements SchedulingPolicy {
+
+    /** Stride of a thread holding one ticket, for a whole quantum. */
+    private static final long STRIDE1 = 1L << 20;
+
+    /** Ready threads, smallest pass first. */
+    private final PriorityQueue<SubNachosThread> heap =
+	new PriorityQueue<SubNachosThread>(16, new Comparator<SubNachosThread>() {
+	    public int compare(SubNachosThread a, SubNachosThread b) {
+		return Long.compare(a.getPass(), b.getPass());
+	    }
+	});
+
+    /** Pass of the thread most recently chosen to run. */
+    private long globalPass;
+
+    /** Quantum given to every thread. */
+    private final int quantum;
+
+    /**
+     * Initialize an empty stride scheduling policy.
+     *
+     * @param quantum  The quantum given to every thread, in ticks.
+     */
+    public StrideScheduling(int quantum) {
+	this.quantum = quantum;
+    }
+
+    public void offer(SubNachosThread thread) {
+	if(thread.getPass() < globalPass)
+	    thread.setPass(globalPass);
+	thread.resetRemainingTicks(quantum);
+	heap.offer(thread);
+    }
+
+    public NachosThread poll() {
+	SubNachosThread thread = heap.poll();
+	if(thread != null)
+	    globalPass = thread.getPass();
+	return thread;
+    }
+
+    public NachosThread poll(int unit) {
+	SubNachosThread thread = heap.peek();
+	if(thread == null || thread.canRunOn(unit))
+	    return poll();
+	// Search the heap for the smallest pass among the threads allowed on the CPU.
+	thread = null;
+	for(SubNachosThread t : heap) {
+	    if(t.canRunOn(unit) && (thread == null || t.getPass() < thread.getPass()))
+		thread = t;
+	}
+	if(thread != null) {
+	    heap.remove(thread);
+	    globalPass = thread.getPass();
+	}
+	return thread;
+    }
+
+    public boolean currentWins() {
+	return false;	// poll() only returns null when no thread is ready
+    }
+
+    public boolean remove(SubNachosThread thread) {
+	return heap.remove(thread);
+    }
+
+    public boolean isEmpty() {
+	return heap.isEmpty();
+    }
+
+    public int size() {
+	return heap.size();
+    }
+
+    public void endBurst(SubNachosThread thread) {
+	long stride = STRIDE1 / Math.max(thread.getTickets(), 1);
+	thread.setPass(thread.getPass() + stride * thread.getBurstTicks() / quantum);
+    }
+
+    public void keepRunning(SubNachosThread thread) {
+	thread.resetRemainingTicks(quantum);
+    }
+
+    public void quantumExpired(SubNachosThread thread) {
+	thread.addBurstTicks(Timer.DefaultInterval);
+    }
+
+}
@@ -1,9 +1,24 @@
 package nachos.kernel.threads;
 
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
 import nachos.machine.NachosThread;
 
 public class SubNachosThread extends NachosThread{
     
+    /** Value of getInheritedLevel() when no priority is inherited. */
+    public static final int NO_INHERITED_LEVEL = Integer.MAX_VALUE;
+    
+    /** Affinity mask that allows every CPU. */
+    public static final int ALL_CPUS = -1;
+    
+    /** Number of tickets a thread starts with. */
+    public static final int DEFAULT_TICKETS = 100;
+    
     private boolean exitFlag = false;
     
     private boolean alreadyLoadedFlag = false; 
@@ -12,19 +27,200 @@ public class SubNachosThread extends NachosThread{
     
     private int queueIndex;
     
-    private int sleepTicks;
-    
     private double prevEstimate;
     
+    /** Ticks charged to the burst this thread is currently running. */
+    private int burstTicks;
+    
+    /** Length of the burst this thread last finished. */
+    private int lastBurstTicks;
+    
     private boolean wakeupFlag;
     
+    /** Share of the CPU under the stride and lottery policies. */
+    private int tickets;
+    
+    /** Virtual time of this thread under the stride policy. */
+    private long pass;
+    
+    /** Unit number of the CPU this thread last ran on, or -1 if it has not run. */
+    private int lastCPU;
+    
+    /** Bit i is set if this thread may run on CPU i. */
+    private int affinityMask;
+    
+    /** Period of this thread in the real-time class, or 0 if it is not a member. */
+    private int period;
+    
+    /** Ticks this thread may run in each real-time period. */
+    private int budget;
+    
+    /** End of the current real-time period of this thread. */
+    private long deadline;
+    
+    /** Ticks of the budget this thread has left in the current period. */
+    private int budgetLeft;
+    
+    /** Utilization admitted for this thread, in millionths of a CPU. */
+    private long utilization;
+    
+    /** Best queue level among threads waiting for locks this thread holds. */
+    private int inheritedLevel;
+    
+    /** The lock this thread is waiting to acquire, if any. */
+    private Lock waitingFor;
+    
+    /**
+     * Locks through which this thread inherits a level, created when it
+     * first inherits; guarded by inheritanceLock.
+     */
+    private List<Lock> heldLocks;
+    
+    /** Spin lock guarding heldLocks and inheritedLevel while they change. */
+    private final SpinLock inheritanceLock = new SpinLock("inheritanceLock");
+    
+    /** Is this thread running on (or being dispatched on) some CPU? */
+    private volatile boolean onCPU;
+    
     private Semaphore sleepSem = new Semaphore("sleepSem", 0);
     
+    /** Scheduler statistics of this thread (or of its current body); null without -ss. */
+    private SchedulerStats.ThreadStats stats;
+    
+    /** Cache this thread is parked in when its body finishes, or null. */
+    private ThreadCache<?> cache;
+    
+    /** What a cached thread runs next. */
+    private volatile Runnable body;
+    
+    /**
+     * Thrown by Scheduler.finishThread() in a cached thread, to get back
+     * from wherever the body called it to the loop in runCached().
+     */
+    static final class Finished extends Error {
+	private static final long serialVersionUID = 1L;
+	
+	Finished() {
+	    super(null, null, false, false);
+	}
+    }
+    
     public SubNachosThread(String name, Runnable runObj) {
 	super(name, runObj);
+	resetState(name);
+	stats = SchedulerStats.newThreadStats(name);
+    }
+    
+    /**
+     * Create a thread that will be parked in a cache, rather than finish,
+     * each time its body finishes.
+     * 
+     * @param name  An arbitrary name, useful for debugging.
+     * @param runObj  The first body.
+     * @param cache  The cache.
+     */
+    protected SubNachosThread(String name, Runnable runObj, ThreadCache<?> cache) {
+	super(name);
+	this.cache = cache;
+	body = runObj;
+	setRunnable(new Runnable() {
+	    public void run() {
+		runCached();
+	    }
+	});
+	resetState(name);
+	stats = SchedulerStats.newThreadStats(name);
+    }
+    
+    /**
+     * Set up the name and the scheduling state of a thread that is about
+     * to start.
+     * 
+     * @param newName  The name of the thread, which a reused thread takes
+     * from its new body.
+     */
+    private void resetState(String newName) {
+	if(!newName.equals(name))
+	    rename(newName);
+	exitFlag = false;
+	alreadyLoadedFlag = false;
 	remainingTicks = 100;
+	queueIndex = 0;
 	prevEstimate = 0.0;
+	burstTicks = 0;
+	lastBurstTicks = 0;
 	wakeupFlag = false;
+	tickets = DEFAULT_TICKETS;
+	pass = 0;
+	lastCPU = -1;
+	affinityMask = ALL_CPUS;
+	period = 0;
+	budget = 0;
+	deadline = 0;
+	budgetLeft = 0;
+	utilization = 0;
+	inheritedLevel = NO_INHERITED_LEVEL;
+	waitingFor = null;
+	heldLocks = null;
+    }
+    
+    /**
+     * Change the name of this thread.  NachosThread.name is final, and
+     * belongs to the machine, so it is set reflectively.
+     * 
+     * @param newName  The new name.
+     */
+    private void rename(String newName) {
+	try {
+	    Field field = NachosThread.class.getField("name");
+	    field.setAccessible(true);
+	    field.set(this, newName);
+	} catch(ReflectiveOperationException e) {
+	    Debug.ASSERT(false, "Cannot rename thread " + name + " to " + newName + ": " + e);
+	}
+    }
+    
+    /**
+     * Give a thread taken from its cache a new body to run, and reset its
+     * name and scheduling state as if it were new.  The caller then makes it
+     * ready to run.
+     * 
+     * @param newName  The name of the new body, which the thread takes.
+     * @param runObj  The body.
+     */
+    public void reuse(String newName, Runnable runObj) {
+	Debug.ASSERT(cache != null && body == null, "Reuse of thread " + name + " that is not parked");
+	resetState(newName);
+	stats = SchedulerStats.newThreadStats(newName);
+	body = runObj;
+    }
+    
+    /**
+     * Determine whether this thread goes back to a cache when it finishes.
+     * 
+     * @return  true if it does.
+     */
+    public boolean isCached() {
+	return cache != null;
+    }
+    
+    /**
+     * The loop run by a cached thread: run the body, then wait in the cache
+     * for another one, until the cache is full.
+     */
+    private void runCached() {
+	for(;;) {
+	    try {
+		body.run();
+	    } catch(Finished e) {
+		// The body called Scheduler.finishThread().
+	    }
+	    body = null;
+	    if(!cache.park(this))
+		break;
+	}
+	cache = null;
+	Nachos.scheduler.finishThread();
     }
     
     public boolean isRemainingTicksZero() {
@@ -71,36 +267,36 @@ public class SubNachosThread extends NachosThread{
 	return alreadyLoadedFlag;
     }
     
-    public void setSleepTicks(int num) {
-	sleepTicks = num;
+    public Semaphore getSleepSem() {
+	return sleepSem;
+    }
+    
+    public void setPrevEstimate(double num) {
+	prevEstimate = num;
     }
     
-    public int getSleepTicks() {
-	return sleepTicks;
+    public double getPrevEstimate() {
+	return prevEstimate;
     }
     
-    public void decrementSleepTicks() {
-	sleepTicks = sleepTicks - 100;
+    public void addBurstTicks(int num) {
+	burstTicks = burstTicks + num;
     }
     
-    public boolean isSleepTicksBelowZero() {
-	if (sleepTicks <= 0) {
-	    return true;
-	} else {
-	    return false;
-	}
+    public void setBurstTicks(int num) {
+	burstTicks = num;
     }
     
-    public Semaphore getSleepSem() {
-	return sleepSem;
+    public int getBurstTicks() {
+	return burstTicks;
     }
     
-    public void setPrevEstimate(double num) {
-	prevEstimate = num;
+    public void setLastBurstTicks(int num) {
+	lastBurstTicks = num;
     }
     
-    public double getPrevEstimate() {
-	return prevEstimate;
+    public int getLastBurstTicks() {
+	return lastBurstTicks;
     }
     
     public void setWakeupFlag() {
@@ -114,4 +310,161 @@ public class SubNachosThread extends NachosThread{
     public boolean getWakeupFlag() {
 	return wakeupFlag;
     }
+    
+    /**
+     * Set the number of tickets the thread holds, which determine its share
+     * of the CPU under the stride and lottery policies (see the SetTickets
+     * system call).  The new number counts from the next time the thread is
+     * put in a ready queue.
+     *
+     * @param num  The number of tickets, at least 1.
+     */
+    public void setTickets(int num) {
+	tickets = num;
+    }
+    
+    public int getTickets() {
+	return tickets;
+    }
+    
+    public void setPass(long num) {
+	pass = num;
+    }
+    
+    public long getPass() {
+	return pass;
+    }
+    
+    /**
+     * Set the real-time parameters of this thread.  Only DeadlineScheduling
+     * should call this, as it also keeps the admitted utilization.
+     * 
+     * @param period  The period, or 0 to leave the real-time class.
+     * @param budget  The ticks the thread may run in each period.
+     * @param utilization  budget/period, in millionths of a CPU.
+     */
+    void setRealTime(int period, int budget, long utilization) {
+	this.period = period;
+	this.budget = budget;
+	this.utilization = utilization;
+    }
+    
+    public boolean isRealTime() {
+	return period > 0;
+    }
+    
+    public int getPeriod() {
+	return period;
+    }
+    
+    public int getBudget() {
+	return budget;
+    }
+    
+    long getUtilization() {
+	return utilization;
+    }
+    
+    public void setDeadline(long time) {
+	deadline = time;
+    }
+    
+    public long getDeadline() {
+	return deadline;
+    }
+    
+    public void setBudgetLeft(int ticks) {
+	budgetLeft = ticks;
+    }
+    
+    public int getBudgetLeft() {
+	return budgetLeft;
+    }
+    
+    public void setLastCPU(int unit) {
+	lastCPU = unit;
+    }
+    
+    public int getLastCPU() {
+	return lastCPU;
+    }
+    
+    public void setAffinityMask(int mask) {
+	affinityMask = mask;
+    }
+    
+    public int getAffinityMask() {
+	return affinityMask;
+    }
+    
+    /**
+     * Determine whether this thread's affinity mask allows it to run on a CPU.
+     * 
+     * @param unit  The unit number of the CPU.
+     * @return  true if the thread may run on that CPU.
+     */
+    public boolean canRunOn(int unit) {
+	return ((affinityMask >>> unit) & 1) != 0;
+    }
+    
+    /**
+     * Set the status of this thread.  The scheduler sets every status except
+     * RUNNING this way, as the thread leaves the CPU; RUNNING is set by the
+     * machine itself, so the scheduler calls setOnCPU() as it dispatches.
+     *
+     * @param status  The new status.
+     */
+    @Override
+    public synchronized void setStatus(int status) {
+	super.setStatus(status);
+	onCPU = (status == RUNNING);
+    }
+    
+    public void setOnCPU(boolean onCPU) {
+	this.onCPU = onCPU;
+    }
+    
+    public boolean isOnCPU() {
+	return onCPU;
+    }
+    
+    public void setInheritedLevel(int level) {
+	inheritedLevel = level;
+    }
+    
+    public int getInheritedLevel() {
+	return inheritedLevel;
+    }
+    
+    /**
+     * Get the queue level at which this thread competes for the CPU: its own
+     * level, or the level it has inherited through locks, whichever is better.
+     * 
+     * @return  The level; 0 is the highest priority.
+     */
+    public int getEffectiveLevel() {
+	return Math.min(queueIndex, inheritedLevel);
+    }
+    
+    public void setWaitingFor(Lock lock) {
+	waitingFor = lock;
+    }
+    
+    public Lock getWaitingFor() {
+	return waitingFor;
+    }
+    
+    public SchedulerStats.ThreadStats getStats() {
+	return stats;
+    }
+    
+    public SpinLock getInheritanceLock() {
+	return inheritanceLock;
+    }
+    
+    public List<Lock> getHeldLocks() {
+	if(heldLocks == null)
+	    heldLocks = new ArrayList<Lock>();
+	return heldLocks;
+    }
 }
@@ -3,7 +3,8 @@ package nachos.kernel.threads;
 import nachos.Debug;
 import nachos.kernel.Nachos;
 import nachos.machine.NachosThread;
-import nachos.util.FIFOQueue;
+import nachos.machine.TestAndSetVariable;
+import nachos.util.MPSCQueue;
 
 /**
  * This class provides a facility for scheduling work to be performed
@@ -22,77 +23,58 @@ import nachos.util.FIFOQueue;
  * for this purpose.
  *
  * NOTE: You may NOT disable interrupts or use spinlocks.
+ *
+ * The state of each Task changes by compare-and-set, built on the
+ * machine's test-and-set (see Task.changeState()), so the worker finishing
+ * a task and a thread cancelling it never wait for each other.  Requests
+ * are posted on a queue that producers append to with test-and-set too
+ * (see MPSCQueue), and a poster only wakes the parent thread if it is
+ * waiting, so neither side ever sleeps on the other except when the
+ * parent has nothing left to do.
  */
 public class TaskManager {
     
-    private class RequestQueue {
-	private FIFOQueue<Runnable> buffer;
-	private Semaphore bufferLock = new Semaphore("bufferLock", 1);
-	
-	public RequestQueue () {
-	    buffer = new FIFOQueue<>();
-	}
-	
-	public void add(Runnable runnable) {
-	    bufferLock.P();
-	    buffer.add(runnable);
-	    bufferLock.V();
-	}
-	
-	public Runnable poll() {
-	    Runnable runnable;
-	    bufferLock.P();
-	    runnable = buffer.remove();
-	    bufferLock.V();
-	    return(runnable);
-	}
-	
-	public boolean isEmpty() {
-	    boolean isEmpty = true;
-	    bufferLock.P();
-	    isEmpty = buffer.isEmpty();
-	    bufferLock.V();
-	    return isEmpty;
-	}
-    }
+    /* Data field*/
     
-    private class ChildThreadCounter {
-	private int counter;
-	Semaphore counterLock = new Semaphore("counterLock", 1);
-	
-	public ChildThreadCounter () {
-	    counter = 0;
-	}
-	
-	public void increment () {
-	    counterLock.P();
-	    ++counter;
-	    counterLock.V();
-	}
-	
-	public void decrement () {
-	    counterLock.P();
-	    --counter;
-	    counterLock.V();
-	}
-	
-	public boolean isZero() {
-	    boolean isZero = true;
-	    counterLock.P();
-	    if (counter > 0)
-		isZero = false;
-	    counterLock.V();
-	    return isZero;
-	}
-    }
+    /** Requests posted for the parent thread, by any number of threads. */
+    private final MPSCQueue<Runnable> requestQueue = new MPSCQueue<Runnable>();
     
-    /* Data field*/
+    /** Lock guarding changes to activeTasks. */
+    private final Lock countLock = new Lock("TaskManager count lock");
+    
+    /** Number of tasks executed whose completion request has not yet been run. */
+    private volatile int activeTasks;
+    
+    /**
+     * Set while the parent thread is asleep, or about to sleep, waiting for
+     * requests.  Only the parent changes it.
+     */
+    private volatile boolean parentWaiting;
+    
+    /**
+     * Set by the poster that wakes the parent thread, so that only one of
+     * the posters that find it waiting does.  Reset by the parent before
+     * it waits again.
+     */
+    private final TestAndSetVariable<Boolean> wakeupClaimed = new TestAndSetVariable<Boolean>();
+    
+    /** The parent thread sleeps on this while it waits for requests. */
+    private final Semaphore parentWakeup = new Semaphore("TaskManager parent wakeup", 0);
     
-    private Lock processRequestLock = new Lock("processRequestLock");
-    private Condition processRequestCondition = new Condition("processRequestCondition", processRequestLock);
-    //private Semaphore processRequestSem = new Semaphore("processRequestSem", 0);
-    private RequestQueue requestQueue;
-    ChildThreadCounter childThreadCounter;
+    /** Workers that run the tasks of all TaskManagers, created when first needed. */
+    private static volatile WorkerPool workerPool;
+    
+    /**
+     * Lock guarding the creation of workerPool.  It is only taken until the
+     * pool exists, and then only held for a moment, so it is adaptive.
+     */
+    private static final Lock workerPoolLock = new AdaptiveLock("task worker pool lock");
+    
+    /**
+     * Number of tasks that may wait for a worker, per worker, before
+     * execute() blocks.
+     */
+    private static final int QUEUED_TASKS_PER_WORKER = 4;
     
     /**
      * Initialize a new TaskManager object, and register the
@@ -103,8 +85,6 @@ public class TaskManager {
      * or onCancellation() requests on their behalf.
      */
     public TaskManager() {
-	requestQueue = new RequestQueue();
-	childThreadCounter = new ChildThreadCounter();
     }
     
     /**
@@ -120,11 +100,23 @@ public class TaskManager {
      * @param runnable  Runnable to be executed by the parent thread.
      */
     public void postRequest(Runnable runnable) {
-	requestQueue.add(runnable);
+	requestQueue.offer(runnable);
 	
-	processRequestLock.acquire();
-	processRequestCondition.signal(); // I just want to wake up the parent thread, if waiting
-	processRequestLock.release();
+	// Only pay for a wake-up if the parent thread is actually waiting.
+	if (parentWaiting && wakeupClaimed.testAndSet(true) == null)
+	    parentWakeup.V();
+    }
+    
+    /**
+     * Add to the number of active tasks.
+     *
+     * @param delta  1 for a task being executed, -1 for one whose
+     * completion request has been run.
+     */
+    private void countTask(int delta) {
+	countLock.acquire();
+	activeTasks += delta;
+	countLock.release();
     }
 
     /**
@@ -141,30 +133,45 @@ public class TaskManager {
      * registered as the parent thread for this TaskManager.
      */
     public void processRequests() throws IllegalStateException {
-	
-	Lock processRequestLock = this.processRequestLock;
-	processRequestLock.acquire();
-	
-	try {
-	    
-	    for (;;) { // Infinite loop until certain situations met to break
-		if (!requestQueue.isEmpty()) {
-		    Debug.println('+', "running 1st checking"); // Message for u to see in console
-		    Runnable instance = requestQueue.poll();
-		    instance.run();
-		} else if (requestQueue.isEmpty() && !childThreadCounter.isZero()) {
-		    Debug.println('+', "running 2nd checking"); // Message for u to see in console
-		    processRequestCondition.await();
-		} else if (requestQueue.isEmpty() && childThreadCounter.isZero()) {
-		    Debug.println('+', "running 3rd checking"); // Message for u to see in console
-		    break;
-		}
+	for (;;) { // Infinite loop until certain situations met to break
+	    Runnable request = requestQueue.poll();
+	    if (request != null) {
+		request.run();
+	    } else if (activeTasks == 0) {
+		break;
+	    } else {
+		wakeupClaimed.reset();
+		parentWaiting = true;
+		// Check again, so as not to sleep through a request posted
+		// before the flag was set.  A wake-up that turns out not to
+		// be needed just costs an extra trip round the loop.
+		if (requestQueue.isEmpty() && activeTasks != 0)
+		    parentWakeup.P();
+		parentWaiting = false;
 	    }
-	    
-	} finally {
-	    processRequestLock.release();
 	}
+    }
+
+    private static final int NEW = 0;	// not yet started by a worker
+    private static final int RUNNING = 1;	// doInBackground() is running
+    private static final int COMPLETED = 2;	// finished without being cancelled
+    private static final int CANCELLED = 3;	// cancelled before it finished
+
+    /**
+     * One state in the life of a Task, with a link to the state that
+     * replaced it, which can only be set once.
+     */
+    private static class TaskState {
 	
+	/** NEW, RUNNING, COMPLETED or CANCELLED. */
+	final int state;
+	
+	/** The next state, or unset while this is the task's latest. */
+	final TestAndSetVariable<TaskState> next = new TestAndSetVariable<TaskState>();
+	
+	TaskState(int state) {
+	    this.state = state;
+	}
     }
 
     /**
@@ -172,123 +179,69 @@ public class TaskManager {
      * by a child thread.  This class must be subclassed in order to
      * override the doInBackground() method and possibly also the
      * onCompletion() and onCancellation() methods.
+     * A task that produces a result of type T hands it over with
+     * setResult(), and other threads can wait for it through the
+     * NachosFuture returned by execute().  The workers are shared by all
+     * TaskManagers, so doInBackground() may not wait for the future of
+     * another task with get(); it throws IllegalStateException there.
      */
-    public class Task {
+    public class Task<T> {
 	
-	private class CancelFlag {
-	    private boolean cancelFlag;
-	    Semaphore cancelFlagLock = new Semaphore("cancelFlagLock", 1);
-	    
-	    public CancelFlag () {
-		cancelFlag = false;
-	    }
-	    
-	    public void action () {
-		cancelFlagLock.P();
-		cancelFlag = true;
-		cancelFlagLock.V();
-	    }
-	    
-	    public boolean check() {
-		boolean temFlag;
-		cancelFlagLock.P();
-		temFlag = cancelFlag;
-		cancelFlagLock.V();
-		return temFlag;
-	    }
-	}
-	
-	private class IsCancelledFlag {
-	    private boolean isCancelledFlag;
-	    Semaphore isCancelledFlagLock = new Semaphore("isCancelledFlagLock", 1);
-	    
-	    public IsCancelledFlag () {
-		isCancelledFlag = false;
-	    }
-	    
-	    public void action () {
-		isCancelledFlagLock.P();
-		isCancelledFlag = true;
-		isCancelledFlagLock.V();
-	    }
-	    
-	    public boolean check() {
-		boolean temFlag;
-		isCancelledFlagLock.P();
-		temFlag = isCancelledFlag;
-		isCancelledFlagLock.V();
-		return temFlag;
-	    }
-	}
+	/* Data field*/
 	
-	private class FinishFlag {
-	    private boolean finishFlag;
-	    Semaphore finishFlagLock = new Semaphore("finishFlagLock", 1);
-	    
-	    public FinishFlag () {
-		finishFlag = false;
-	    }
-	    
-	    public void action () {
-		finishFlagLock.P();
-		finishFlag = true;
-		finishFlagLock.V();
-	    }
-	    
-	    public boolean check() {
-		boolean temFlag;
-		finishFlagLock.P();
-		temFlag = finishFlag;
-		finishFlagLock.V();
-		return temFlag;
-	    }
-	}
+	/** The first state of this task, which links to the states after it. */
+	private final TaskState firstState = new TaskState(NEW);
 	
-	/* Data field*/
+	/** The result of this task, completed as doInBackground() finishes. */
+	private final NachosFuture<T> future = new NachosFuture<T>();
 	
-        private CancelFlag cancelFlag = new CancelFlag(); // Create the only instance of cancelFlag
-        private FinishFlag finishFlag= new FinishFlag();
-        private IsCancelledFlag isCancelledFlag = new IsCancelledFlag();
+	/** The value passed to setResult(). */
+	private T result;
 	
 	/**
-	 * Cause the current task to be executed by a new child thread.
-	 * In more detail, a new child thread is created, the child
-	 * thread runs the doInBackground() method and upon termination
-	 * of that method a request is posted for the parent thread to
-	 * run either onCancellation() or onCompletion(), respectively,
-	 * depending on	whether or not the task was cancelled.
+	 * Cause the current task to be executed by a child thread.
+	 * In more detail, the task is queued for one of a fixed set of
+	 * worker threads (see Options.TASK_WORKERS), which runs the
+	 * doInBackground() method and upon termination of that method
+	 * posts a request for the parent thread to run either
+	 * onCancellation() or onCompletion(), respectively, depending on
+	 * whether or not the task was cancelled.  If many tasks are
+	 * already waiting for a worker, this method waits for room.
+	 *
+	 * @return  A future that is completed with the value passed to
+	 * setResult() when doInBackground() returns, or cancelled if the
+	 * task was cancelled, without waiting for processRequests().
 	 */
-	public void execute() {
-	    childThreadCounter.increment();
+	public NachosFuture<T> execute() {
+	    countTask(1);
 	    
-	    NachosThread thread = new NachosThread("newChildThread",new Runnable() {
+	    getWorkerPool().submit(new Runnable() {
 		@Override
 	        public void run() {
 		    
-		    doInBackground(); // Must be called and return as the 1st job.
+		    // A task cancelled before it starts is not run at all.
+		    if (changeState(NEW, RUNNING))
+			doInBackground();
 		    
-		    finishFlag.action(); // Cancel() will return true if invoked before executing this statement
+		    // Whichever of this and cancel() changes the state first decides the outcome.
+		    final boolean completed = changeState(RUNNING, COMPLETED);
+		    if (completed)
+			future.complete(result);
+		    else
+			future.cancel();
 		    
-		    if (!cancelFlag.check()) {
-			postRequest(new Runnable(){ // Post onCompletion() runnable to queue
-			    public void run () {
+		    postRequest(new Runnable(){ // Post onCompletion() or onCancellation() runnable to queue
+			public void run () {
+			    if (completed)
 				onCompletion();
-			    }
-			});
-		    } else {
-			postRequest(new Runnable(){ // Post onCancellation() runnable to queue
-			    public void run () {
+			    else
 				onCancellation();
-			    }
-			});
-		    }
-		    
-		    childThreadCounter.decrement();
-		    
-		    Nachos.scheduler.finishThread(); // task terminates
+			    countTask(-1); // task terminates
+			}
+		    });
 	        }
 	    });
-	    Nachos.scheduler.readyToRun(thread);
+	    return future;
 	}
 
 	/**
@@ -302,14 +255,12 @@ public class TaskManager {
 	 * otherwise false.
 	 */
 	public boolean cancel() {
-	    
-	    cancelFlag.action();
-	    
-	    if (finishFlag.check()) { // Successful cancellation depends on timing of finishFlag 
-		return false; 
-	    } else {
-		isCancelledFlag.action(); // Successful cancellation is recorded in isCancellationFlag
-		return true;
+	    for (;;) {
+		TaskState current = currentState();
+		if (current.state != NEW && current.state != RUNNING)
+		    return current.state == CANCELLED;
+		if (current.next.testAndSet(new TaskState(CANCELLED)) == null)
+		    return true;
 	    }
 	}
 
@@ -320,7 +271,43 @@ public class TaskManager {
 	 * @return true if this Task has been cancelled, false otherwise.
 	 */
 	public boolean isCancelled() {
-	    return isCancelledFlag.check();
+	    return currentState().state == CANCELLED;
+	}
+
+	/**
+	 * Move this task from one state to another, if it is in the first:
+	 * a compare-and-set on the state.  The task is in its latest state,
+	 * whose link to a next state is unset; test-and-set on that link
+	 * succeeds for only one of the threads changing the state at once.
+	 * The others look again, and give up if the state is no longer the
+	 * one they expected.  Each retry follows a change made by another
+	 * thread, so the loop is lock-free.
+	 *
+	 * @param from  The state the task must be in.
+	 * @param to  The new state.
+	 * @return true if the task was in state from, and is now in state to.
+	 */
+	private boolean changeState(int from, int to) {
+	    for (;;) {
+		TaskState current = currentState();
+		if (current.state != from)
+		    return false;
+		if (current.next.testAndSet(new TaskState(to)) == null)
+		    return true;
+	    }
+	}
+
+	/**
+	 * Get the latest state of this task, at the end of the links from
+	 * its first state.  A task changes state at most twice.
+	 *
+	 * @return  The latest state.
+	 */
+	private TaskState currentState() {
+	    TaskState state = firstState;
+	    for (TaskState next = state.next.getValue(); next != null; next = state.next.getValue())
+		state = next;
+	    return state;
 	}
 
 	/**
@@ -337,6 +324,17 @@ public class TaskManager {
 	    // This method will be overriden by user decision.
 	}
 
+	/**
+	 * Set the result of this task, to be given to the future returned
+	 * by execute().  Called from doInBackground(); the last value set
+	 * before it returns is the one that counts.
+	 *
+	 * @param value  The result.
+	 */
+	protected void setResult(T value) {
+	    result = value;
+	}
+
 	/**
 	 * Method to be executed by the main thread upon termination of
 	 * of doInBackground().  Will not be executed if the task was
@@ -371,6 +369,24 @@ public class TaskManager {
 
     }
 
+    /**
+     * Get the pool of workers that run tasks, creating it if necessary.
+     * 
+     * @return  The pool.
+     */
+    private static WorkerPool getWorkerPool() {
+	WorkerPool pool = workerPool;
+	if(pool != null)
+	    return pool;
+	workerPoolLock.acquire();
+	if(workerPool == null) {
+	    int workers = Nachos.options.TASK_WORKERS;
+	    workerPool = new WorkerPool("task", workers, workers * QUEUED_TASKS_PER_WORKER);
+	}
+	workerPoolLock.release();
+	return workerPool;
+    }
+
     /** Semaphore used by allowTimeToPass above. */
     private static Semaphore dummy = new Semaphore("Time waster", 1);
 
@@ -399,7 +415,7 @@ public class TaskManager {
 	TaskManager mgr = new TaskManager();
 	for(int i = 0; i < 5; i++) {
 	    final int tn = i;
-	    Task task = mgr.new Task() {
+	    Task<Void> task = mgr.new Task<Void>() {
 		protected void doInBackground() {
 		    Debug.println('+', "Thread " + NachosThread.currentThread().name + " is starting task " + tn);
 		    for(int j = 0; j < 10; j++) {
@@ -0,0 +1,114 @@
+package nachos.kernel.threads;
+
+import java.util.ArrayDeque;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.machine.CPU;
+import nachos.machine.Machine;
+
+/**
+ * Per-CPU free lists of finished threads that are kept for reuse, so that
+ * starting a thread can be a pop from a list rather than the creation of a
+ * new thread (and its stack), and finishing one a push rather than its
+ * destruction.
+ *
+ * A thread that belongs to a cache runs a loop (see SubNachosThread) in
+ * which it runs the body it has been given, and then, instead of finishing,
+ * parks itself on the free list of its CPU and sleeps until someone takes it
+ * off the list with a new body.  A thread that finds the list of its CPU
+ * full finishes for real.  Each list has its own spin lock, so CPUs do not
+ * contend for them unless one has to take a thread from another's list.
+ */
+public class ThreadCache<T extends SubNachosThread> {
+
+    /** Printable name useful for debugging. */
+    public final String name;
+
+    /** Maximum number of threads on each list. */
+    private final int capacity;
+
+    /** The free list of each CPU. */
+    private final ArrayDeque<T>[] lists;
+
+    /** Spin lock guarding the list of each CPU. */
+    private final SpinLock[] locks;
+
+    /**
+     * Initialize a cache with an empty list for each CPU.
+     *
+     * @param name  Name of the cache.
+     * @param capacity  Maximum number of threads kept on each CPU's list.
+     */
+    @SuppressWarnings("unchecked")
+    public ThreadCache(String name, int capacity) {
+	this.name = name;
+	this.capacity = capacity;
+	lists = (ArrayDeque<T>[])new ArrayDeque<?>[Machine.NUM_CPUS];
+	locks = new SpinLock[Machine.NUM_CPUS];
+	for(int i = 0; i < Machine.NUM_CPUS; i++) {
+	    lists[i] = new ArrayDeque<T>();
+	    locks[i] = new SpinLock(name + " lock " + i);
+	}
+    }
+
+    /**
+     * Take a parked thread off the list of the current CPU, or failing that
+     * off the list of some other CPU.  The caller gives it a new body with
+     * SubNachosThread.reuse() and then makes it ready to run.
+     *
+     * @return  A parked thread, or null if all the lists are empty.
+     */
+    public T get() {
+	int unit = currentUnit();
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	T thread = null;
+	for(int i = 0; i < lists.length && thread == null; i++) {
+	    int u = (unit + i) % lists.length;
+	    locks[u].acquire();
+	    thread = lists[u].pollFirst();
+	    locks[u].release();
+	}
+	CPU.setLevel(oldLevel);
+	if(thread != null)
+	    Debug.println('t', "Taking thread " + thread.name + " from " + name);
+	return thread;
+    }
+
+    /**
+     * Put the current thread on the list of its CPU and put it to sleep,
+     * until it is taken off the list again.
+     *
+     * @param thread  The current thread, which has finished its body.
+     * @return true once the thread has been taken off the list to be reused;
+     * false at once if the list was full, in which case the thread should
+     * finish.
+     */
+    @SuppressWarnings("unchecked")
+    boolean park(SubNachosThread thread) {
+	int unit = currentUnit();
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	locks[unit].acquire();
+	if(lists[unit].size() >= capacity) {
+	    locks[unit].release();
+	    CPU.setLevel(oldLevel);
+	    return false;
+	}
+	Debug.println('t', "Parking thread " + thread.name + " in " + name);
+	lists[unit].offerFirst((T)thread);
+	Nachos.scheduler.sleepThread(locks[unit]);
+	CPU.setLevel(oldLevel);
+	return true;
+    }
+
+    /**
+     * Get the unit number of the current CPU.
+     *
+     * @return  The unit number, or 0 if not called on a CPU.
+     */
+    private static int currentUnit() {
+	CPU cpu = CPU.currentCPU();
+	return (cpu == null ? 0 : cpu.unit);
+    }
+
+}
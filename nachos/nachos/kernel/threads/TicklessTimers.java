@@ -0,0 +1,185 @@
+package nachos.kernel.threads;
+
+import nachos.Debug;
+import nachos.kernel.userprog.SleepListManager;
+import nachos.machine.CPU;
+import nachos.machine.Machine;
+import nachos.machine.Simulation;
+
+/**
+ * This class keeps track of which CPU time-slice timers are running when
+ * the scheduler works "tickless" (see Options.TICKLESS).
+ * A CPU's timer is only needed if the CPU has threads waiting for it to
+ * preempt the one it is running, or if it is the only CPU left whose timer
+ * can wake up sleeping threads.  Otherwise the timer is stopped, and it is
+ * started again when a thread is dispatched on the CPU, when a thread becomes
+ * ready while the CPU is running alone, or when a thread goes to sleep and no
+ * timer is running.
+ *
+ * The hardware timers only tick at a fixed interval, so there is no true
+ * one-shot mode: a stopped timer stands in for a one-shot timer that is
+ * set far in the future, and the ticks a busy CPU runs with its timer stopped
+ * are still charged to the running thread's burst.
+ *
+ * All methods must be called with interrupts disabled.
+ */
+class TicklessTimers {
+
+    /** Spin lock guarding all the state below. */
+    private final SpinLock lock = new SpinLock("tickless timer lock");
+
+    /** Has the timer of each CPU been stopped? */
+    private final boolean[] stopped;
+
+    /** Was each stopped CPU running a thread when its timer was last examined? */
+    private final boolean[] stoppedBusy;
+
+    /** Time from which ticks of a busy stopped CPU have still to be counted. */
+    private final int[] stoppedSince;
+
+    /** Ticks run by each busy stopped CPU, not yet charged to a thread. */
+    private final int[] uncharged;
+
+    /** Number of timers that are running. */
+    private int running;
+
+    /**
+     * Number of CPUs that stopped their timers while running a thread.
+     * Written with the lock held, but read without it by startBusy(), so
+     * that readyToRun() only takes the lock when there is a timer to start.
+     */
+    private volatile int stoppedBusyCount;
+
+    /**
+     * Initialize the bookkeeping, assuming that all the timers have been started.
+     */
+    TicklessTimers() {
+	stopped = new boolean[Machine.NUM_CPUS];
+	stoppedBusy = new boolean[Machine.NUM_CPUS];
+	stoppedSince = new int[Machine.NUM_CPUS];
+	uncharged = new int[Machine.NUM_CPUS];
+	running = Machine.NUM_CPUS;
+    }
+
+    /**
+     * Stop the timer of the current CPU, unless something needs it.
+     *
+     * @param busy  Whether the CPU is running a thread.
+     * @param othersReady  Whether other threads are waiting for this CPU.
+     */
+    void stopIfUnneeded(boolean busy, boolean othersReady) {
+	CPU cpu = CPU.currentCPU();
+	int unit = cpu.unit;
+	lock.acquire();
+	if(stopped[unit]) {
+	    count(unit);
+	    setStoppedBusy(unit, busy);
+	} else if(!(busy && othersReady)
+		  && (running > 1 || !SleepListManager.hasSleepers())) {
+	    Debug.println('t', "Stopping timer on " + cpu.name + (busy ? " (running alone)" : " (idle)"));
+	    cpu.timer.stop();
+	    stopped[unit] = true;
+	    setStoppedBusy(unit, busy);
+	    stoppedSince[unit] = Simulation.currentTime();
+	    running--;
+	}
+	lock.release();
+    }
+
+    /**
+     * Start the timer of a CPU, if it has been stopped.
+     *
+     * @param cpu  The CPU.
+     */
+    void start(CPU cpu) {
+	lock.acquire();
+	startLocked(cpu);
+	lock.release();
+    }
+
+    /**
+     * Start the timers of all CPUs that stopped them while running a thread
+     * alone, because a thread has become ready that may have to preempt one.
+     */
+    void startBusy() {
+	if(stoppedBusyCount == 0)
+	    return;
+	lock.acquire();
+	for(int i = 0; i < stopped.length; i++) {
+	    if(stopped[i] && stoppedBusy[i])
+		startLocked(Machine.getCPU(i));
+	}
+	lock.release();
+    }
+
+    /**
+     * Make sure that some timer is running, because a thread is going to
+     * sleep.  If none is, the timer of the current CPU is started.
+     */
+    void startIfNoneRunning() {
+	lock.acquire();
+	if(running == 0)
+	    startLocked(CPU.currentCPU());
+	lock.release();
+    }
+
+    /**
+     * Take the ticks that the current CPU has run with its timer stopped,
+     * so that they can be charged to the thread it is running.
+     *
+     * @return  The number of ticks.
+     */
+    int takeUncharged() {
+	int unit = CPU.currentCPU().unit;
+	lock.acquire();
+	count(unit);
+	int ticks = uncharged[unit];
+	uncharged[unit] = 0;
+	lock.release();
+	return ticks;
+    }
+
+    /**
+     * Start the timer of a CPU, if it has been stopped.  The lock must be held.
+     *
+     * @param cpu  The CPU.
+     */
+    private void startLocked(CPU cpu) {
+	int unit = cpu.unit;
+	if(stopped[unit]) {
+	    Debug.println('t', "Restarting timer on " + cpu.name);
+	    count(unit);
+	    stopped[unit] = false;
+	    setStoppedBusy(unit, false);
+	    running++;
+	    cpu.timer.start();
+	}
+    }
+
+    /**
+     * Record whether a CPU was running a thread when its timer was last
+     * examined, keeping stoppedBusyCount up to date.  The lock must be held.
+     *
+     * @param unit  The CPU unit number.
+     * @param busy  Whether the CPU is stopped and running a thread.
+     */
+    private void setStoppedBusy(int unit, boolean busy) {
+	if(busy != stoppedBusy[unit])
+	    stoppedBusyCount += (busy ? 1 : -1);
+	stoppedBusy[unit] = busy;
+    }
+
+    /**
+     * Add the ticks since the last count to the uncharged ticks of a CPU,
+     * if it is stopped and busy.  The lock must be held.
+     *
+     * @param unit  The CPU unit number.
+     */
+    private void count(int unit) {
+	int now = Simulation.currentTime();
+	if(stopped[unit] && stoppedBusy[unit])
+	    uncharged[unit] += now - stoppedSince[unit];
+	stoppedSince[unit] = now;
+    }
+
+}
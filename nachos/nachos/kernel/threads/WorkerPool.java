@@ -0,0 +1,123 @@
+package nachos.kernel.threads;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.machine.NachosThread;
+import nachos.util.FIFOQueue;
+
+/**
+ * A fixed set of long-lived worker threads that run Runnables taken
+ * from a bounded queue, so that work can be handed off to another thread
+ * without paying for the creation and destruction of a thread each time.
+ * When the queue is full, submit() blocks until a worker takes something
+ * off it, so that producers cannot get arbitrarily far ahead of the workers.
+ *
+ * The workers never finish; when there is no work they simply stay blocked.
+ * A Runnable that waits for another Runnable submitted to the same pool
+ * can deadlock it once all the workers are waiting, so NachosFuture.get()
+ * refuses to wait in a worker (see isWorker()); a Runnable that needs the
+ * result of another should chain on to its future instead.
+ */
+public class WorkerPool {
+
+    /** Printable name useful for debugging. */
+    public final String name;
+
+    /** Runnables waiting for a worker. */
+    private final FIFOQueue<Runnable> queue;
+
+    /** Maximum number of Runnables in the queue. */
+    private final int capacity;
+
+    /** Lock guarding the queue. */
+    private final Lock lock;
+
+    /** Signalled when the queue stops being full. */
+    private final Condition notFull;
+
+    /** Signalled when the queue stops being empty. */
+    private final Condition notEmpty;
+
+    /**
+     * Create a pool and start its workers.
+     *
+     * @param name  Name of the pool, used to name the workers.
+     * @param workers  Number of worker threads.
+     * @param capacity  Maximum number of Runnables waiting for a worker.
+     */
+    public WorkerPool(String name, int workers, int capacity) {
+	Debug.ASSERT(workers > 0 && capacity > 0, "Empty worker pool " + name);
+	this.name = name;
+	this.capacity = capacity;
+	queue = new FIFOQueue<Runnable>();
+	lock = new AdaptiveLock(name + " lock");
+	notFull = new Condition(name + " not full", lock);
+	notEmpty = new Condition(name + " not empty", lock);
+	for(int i = 0; i < workers; i++) {
+	    SubNachosThread worker = new Worker(name + " worker " + i, new Runnable() {
+		public void run() {
+		    work();
+		}
+	    });
+	    Nachos.scheduler.readyToRun(worker);
+	}
+    }
+
+    /**
+     * Queue a Runnable to be run by one of the workers, waiting while
+     * the queue is full.
+     *
+     * @param runnable  The Runnable.
+     */
+    public void submit(Runnable runnable) {
+	lock.acquire();
+	while(queue.size() >= capacity)
+	    notFull.await();
+	queue.offer(runnable);
+	notEmpty.signal();
+	lock.release();
+    }
+
+    /**
+     * Determine whether a thread is a worker of some pool.
+     *
+     * @param thread  The thread.
+     * @return true if the thread is a worker.
+     */
+    public static boolean isWorker(NachosThread thread) {
+	return thread instanceof Worker;
+    }
+
+    /**
+     * Body of each worker: run Runnables from the queue, forever.
+     */
+    private void work() {
+	for(;;) {
+	    lock.acquire();
+	    while(queue.isEmpty())
+		notEmpty.await();
+	    Runnable runnable = queue.poll();
+	    notFull.signal();
+	    lock.release();
+	    runnable.run();
+	}
+    }
+
+    /**
+     * The threads of the pools, told apart from other threads by their class.
+     */
+    private static class Worker extends SubNachosThread {
+
+	/**
+	 * Create a worker thread.
+	 *
+	 * @param name  An arbitrary name, useful for debugging.
+	 * @param runObj  The body of the worker.
+	 */
+	Worker(String name, Runnable runObj) {
+	    super(name, runObj);
+	}
+
+    }
+
+}
@@ -0,0 +1,57 @@
+package nachos.kernel.threads.test;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.kernel.threads.SubNachosThread;
+import nachos.machine.CPU;
+import nachos.machine.Machine;
+import nachos.machine.NachosThread;
+
+/**
+ * This class tests/demonstrates CPU affinity masks.
+ * It creates a number of kernel threads that each pin themselves, while
+ * running, to CPU 1 or CPU 2, which makes the scheduler migrate them off any
+ * other CPU, and then work in short steps, yielding after each one and
+ * checking each time that they are running on the CPU they were pinned to.
+ * Unpinned threads run alongside, so that the pinned ones have to be passed
+ * over by the other CPUs.  At least three CPUs (-ncpu 3) are required.
+ */
+
+public class AffinityTest {
+    /**
+     * Entry point for the test.
+     */
+    public static void start() {
+	Debug.println('+', "Entering AffinityTest");
+	Debug.ASSERT(Machine.NUM_CPUS >= 3, "AffinityTest requires at least 3 CPUs");
+	for(int i = 0; i < 8; i++) {
+	    final int unit = (i % 2 == 0 ? 1 : 2);
+	    final boolean pinned = (i < 4);
+	    SubNachosThread looper =
+		    new SubNachosThread
+		    ((pinned ? "Pinned" : "Free") + i,
+		     new Runnable() {
+			public void run() {
+			    SubNachosThread self = (SubNachosThread)NachosThread.currentThread();
+			    if(pinned)
+				self.setAffinityMask(1 << unit);
+			    int wrongCPU = 0;
+			    for(int i = 0; i < 20; i++) {
+				// Each step gives the other CPUs a chance to take the
+				// thread; the first yield moves it to its CPU.
+				for(int step = 0; step < 5; step++) {
+				    Nachos.scheduler.yieldThread();
+				    if(pinned && CPU.currentCPU().unit != unit)
+					wrongCPU++;
+				}
+			    }
+			    Debug.println('+', self.name + " finished on " + CPU.getName()
+					  + (pinned ? ", " + wrongCPU + " times on the wrong CPU" : ""));
+			    Debug.ASSERT(wrongCPU == 0, self.name + " ran on a CPU it was not pinned to");
+			    Nachos.scheduler.finishThread();
+			}
+		     });
+	    Nachos.scheduler.readyToRun(looper);
+	}
+    }
+}
@@ -17,6 +17,7 @@ import nachos.Debug;
 import nachos.machine.NachosThread;
 import nachos.kernel.Nachos;
 import nachos.kernel.threads.CyclicBarrier;
+import nachos.kernel.threads.SubNachosThread;
 import nachos.kernel.threads.TaskManager;
 
 /**
@@ -40,7 +41,7 @@ public class ThreadTest implements Runnable {
      */
     public ThreadTest(int w) {
 	which = w;
-	NachosThread t = new NachosThread("Test thread " + w, this);
+	NachosThread t = new SubNachosThread("Test thread " + w, this);
 	Nachos.scheduler.readyToRun(t);
     }
 
@@ -19,15 +19,19 @@
 
 package nachos.kernel.userprog;
 
+import java.util.Arrays;
+
 import nachos.Debug;
 import nachos.machine.CPU;
 import nachos.machine.MIPS;
 import nachos.machine.Machine;
+import nachos.machine.NachosThread;
 import nachos.machine.TranslationEntry;
 import nachos.noff.NoffHeader;
 import nachos.kernel.filesys.OpenFile;
 import nachos.kernel.threads.Semaphore;
 import nachos.kernel.userprog.MemoryManager;
+import nachos.util.FIFOQueue;
 /**
  * This class manages "address spaces", which are the contexts in which
  * user programs execute.  For now, an address space contains a
@@ -91,34 +95,72 @@ public class AddrSpace {
   
   private Semaphore processLock;
   
-  /** Default size of the user stack area -- increase this as necessary! */
-  private static final int UserStackSize = 1024;
+  /**
+   * Threads of this address space that are in the scheduler's ready queues,
+   * in gang scheduling mode; guarded by the scheduler mutex.
+   */
+  private final FIFOQueue<UserThread> readyThreads = new FIFOQueue<UserThread>();
+  
+  /** The executable that pages of code and initialized data are loaded from. */
+  private OpenFile executable;
+  
+  /** Header of the executable, describing where its segments are. */
+  private NoffHeader noffH;
+  
+  /** Identity of the executable file, for the page cache (see OpenFile.getFileId()). */
+  private String executableId;
+  
+  /**
+   * Default size of the user stack area -- increase this as necessary!
+   * Stack pages are only given memory once they are touched.
+   */
+  static final int UserStackSize = 4096;
+
+  /**
+   * Size of the top part of each stack, for which backing is reserved when
+   * the stack is set up.  Backing for the rest is only reserved when a page
+   * of it is first touched (see MemoryManager.deferReservation()), so the
+   * deeper stack costs nothing in programs that do not use it.
+   */
+  static final int ReservedStackSize = 1024;
 
   /**
    * Create a new address space.
    */
   public AddrSpace() { 
-      SpaceIdManager.AddrSpaceArray.add(this);
-      this.SpaceId = SpaceIdManager.AddrSpaceArray.indexOf(this);
+      this.SpaceId = SpaceIdManager.register(this);
       processLock = new Semaphore("processLock", 0);
       threadCounter = new ThreadCounter();
   }
 
 
+  /**
+   * Get the threads of this address space that are ready to run, for gang
+   * scheduling (see Scheduler).  Only the scheduler may use the queue, with
+   * its mutex held.
+   *
+   * @return  The queue of ready threads.
+   */
+  public FIFOQueue<UserThread> getReadyThreads() {
+      return readyThreads;
+  }
+
   /**
    * Load the program from a file "executable", and set everything
    * up so that we can start executing user instructions.
    *
    * Assumes that the object code file is in NOFF format.
    *
-   * First, set up the translation from program memory to physical 
-   * memory.  For now, this is really simple (1:1), since we are
-   * only uniprogramming.
+   * The pages are not loaded here: every page table entry starts out
+   * invalid, and each page is brought in by MemoryManager when it is first
+   * touched.  All that is needed now is to reserve backing for the pages.
+   * Pages of code and initialized data are shared with every other address
+   * space that runs the same executable file (see sharedFileId()).
    *
    * @param executable The file containing the object code to 
    * 	load into memory
-   * @return -1 if an error occurs while reading the object file,
-   *    otherwise 0.
+   * @return -1 if an error occurs while reading the object file, or if
+   *    there is not enough memory and swap for the program, otherwise 0.
    */
   public int exec(OpenFile executable) {
     NoffHeader noffH;
@@ -134,71 +176,105 @@ public class AddrSpace {
     
     this.currentSize = size;
     int numPages = (int)(size / Machine.PageSize);
+    int deferredPages = (UserStackSize - ReservedStackSize) / Machine.PageSize;
     
-    Debug.ASSERT((numPages<=MemoryManager.numberOfPMPLeft), "AddrSpace constructor: Not enough memory!");
+    if(!MemoryManager.reserve(numPages - deferredPages)) {
+      Debug.println('a', "Not enough memory and swap for " + numPages + " pages");
+      return(-1);
+    }
+    this.executable = executable;
+    this.noffH = noffH;
+    this.executableId = executable.getFileId();
     
     Debug.println('a', "Initializing address space, numPages=" + numPages + ", size=" + size);
     
     // first, set up the translation 
     pageTable = new TranslationEntry[numPages];
     
-    int[] PMPArray = MemoryManager.allocatePMP(numPages);
-
     for (int i = 0; i < numPages; i++) {
       pageTable[i] = new TranslationEntry();
      
       pageTable[i].virtualPage = i; 
-      pageTable[i].physicalPage = PMPArray[i];
-      pageTable[i].valid = true;
+      pageTable[i].physicalPage = -1;
+      pageTable[i].valid = false;	// loaded on demand
       pageTable[i].use = false;
       pageTable[i].dirty = false;
       pageTable[i].readOnly = false;  // if code and data segments live on				      
       				      // separate pages, we could set code 
 				      // pages to be read-only
     }
+    int stackStart = numPages - UserStackSize / Machine.PageSize;
+    MemoryManager.deferReservation(pageTable, stackStart, stackStart + deferredPages);
     
-    if (noffH.code.size > 0) {
-	int VA = 0;
-	int PA = 0;
-	for(int i = 0; i< noffH.code.size;i++){
-	    VA = noffH.code.virtualAddr + i;
-	    PA = this.convertPA(VA);
-	    executable.seek(noffH.code.inFileAddr + i);
-	    executable.read(Machine.mainMemory,PA,1);
-	}
-	
-	Debug.println('a', "Storing code segment");
-    }
-
-    if (noffH.initData.size > 0) {
-  	int VA = 0;
-  	int PA = 0;
-  	for(int i = 0; i< noffH.initData.size;i++){
-  	    VA = noffH.initData.virtualAddr + i;
-  	    PA = this.convertPA(VA);
-  	    executable.seek(noffH.initData.inFileAddr + i);
-  	    executable.read(Machine.mainMemory,PA,1);
-  	}
-  	Debug.println('a', "Storing initData segment");
-    }
-    
-    if(noffH.uninitData.size>0){
-	int VA = 0;
-  	int PA = 0;
-  	for(int i = 0; i< noffH.uninitData.size;i++){
-  	    VA = noffH.uninitData.virtualAddr + i;
-  	    PA = this.convertPA(VA);
-  	    executable.seek(noffH.uninitData.inFileAddr + i);
-  	    executable.read(Machine.mainMemory,PA,1);
-  	}
-  	Debug.println('a', "Storing uninitData segment");
-    }
     MemoryManager.allocatePM(size);
     return(0);
   }
   
   
 
+  /**
+   * Fill a frame with the initial contents of a page: the parts of the
+   * code and initialized data segments that fall in the page, read from the
+   * executable, and zeros everywhere else (uninitialized data and stack).
+   * Called by MemoryManager with the paging lock held.
+   *
+   * @param vpn  The virtual page number.
+   * @param PA  The physical address of the frame.
+   */
+  void loadPage(int vpn, int PA) {
+    Arrays.fill(Machine.mainMemory, PA, PA + Machine.PageSize, (byte)0);
+    if (noffH.code.size > 0)
+      loadSegment(noffH.code, vpn, PA);
+    if (noffH.initData.size > 0)
+      loadSegment(noffH.initData, vpn, PA);
+  }
+
+  /**
+   * Get the file under which MemoryManager keeps a page in its page cache,
+   * with its page number, if the page can be shared with other address
+   * spaces running the same executable file.  Those are the pages that hold
+   * any code or initialized data, whose initial contents come from the
+   * executable; they stay shared until they are written to.
+   *
+   * @param vpn  The virtual page number.
+   * @return  The identity of the executable file, or null if the page is
+   * not shared.
+   */
+  String sharedFileId(int vpn) {
+    if (!(inSegment(noffH.code, vpn) || inSegment(noffH.initData, vpn)))
+      return null;
+    return executableId;
+  }
+
+  /**
+   * Determine whether part of a segment of the executable falls in a page.
+   *
+   * @param segment  The segment.
+   * @param vpn  The virtual page number.
+   * @return  true if the segment and the page overlap.
+   */
+  private boolean inSegment(NoffHeader.NoffSegment segment, int vpn) {
+    int pageStart = vpn * Machine.PageSize;
+    return segment.size > 0 && segment.virtualAddr < pageStart + Machine.PageSize
+	&& segment.virtualAddr + segment.size > pageStart;
+  }
+
+  /**
+   * Read the part of a segment of the executable that falls in a page.
+   *
+   * @param segment  The segment.
+   * @param vpn  The virtual page number.
+   * @param PA  The physical address of the frame.
+   */
+  private void loadSegment(NoffHeader.NoffSegment segment, int vpn, int PA) {
+    int pageStart = vpn * Machine.PageSize;
+    int start = Math.max(pageStart, segment.virtualAddr);
+    int end = Math.min(pageStart + Machine.PageSize, segment.virtualAddr + segment.size);
+    if (start < end)
+      executable.readAt(Machine.mainMemory, PA + start - pageStart, end - start,
+	  segment.inFileAddr + start - segment.virtualAddr);
+  }
+
   /**
    * Initialize the user-level register set to values appropriate for
    * starting execution of a user program loaded in this address space.
@@ -281,59 +357,14 @@ public class AddrSpace {
     return(Machine.PageSize * ((size+(Machine.PageSize-1))/Machine.PageSize));
   }
   
-  /*the address free the physical address and return an integer array that contains the physical page number being free*/
-  public int[] free(){
-      int i = 0;
-      /*count the size of the page table*/
-      int count = 0;
-      int PA = 0;
-      /*check whether there is a translation entry*/
-      count = pageTable.length;
-      /*after get the number of pages used*/
-      int[] result = new int[count];
-      i = 0;
-      for( i = 0; i< count; i++){
-	  result[i] =  pageTable[i].physicalPage;
-      }
-      /*free Everything inside the memory*/
-      for(i = 0; i<currentSize; i++){
-	 PA = this.convertPA(i);
-	  Machine.mainMemory[PA]=0;
-      }
-      return result;   
-  }
-  
-  /*return an array store pages in each element*/
-  /*free stack of any thread according to its page table*/
-  public int[] freeStack(TranslationEntry pageTable[])
-  {
-      
-      int PA =0;
-      int StackSize = 1024;
-      int numPages = (int)(this.currentSize/Machine.PageSize);
-      int StackPages = (int)(StackSize/Machine.PageSize);
-      int[] PMPArray = new int[StackPages];
-      for(int i = numPages - StackPages; i < numPages; i++){
-	  PMPArray[i-numPages+StackPages] = pageTable[i].physicalPage;
-      }
-      /*free Everyting inside the memory Stack*/
-   
-      for(long i = currentSize- StackSize; i<currentSize;i++){
-	  PA = this.convertPA((int)i);
-	  Machine.mainMemory[PA]=0;
-      }
-      
-      return PMPArray;
-  }
-
   public String ReadString(int VA){
       String result = "";
       int PA = 0;
       byte read = 0;
 
+      PA = this.pin(VA, false);
       do{
 	 
-	  PA  = this.convertPA(VA);
 	  read = Machine.mainMemory[PA];
 	  if(read == 0){
 	      break;
@@ -341,24 +372,102 @@ public class AddrSpace {
 	  result = result + (char)read;
 	  Debug.println('+',""+(char)read);
 	  VA++;
+	  PA++;
+	  if (VA % Machine.PageSize == 0) {	// On to the next page
+	      MemoryManager.unpin((PA - 1) / Machine.PageSize);
+	      PA = this.pin(VA, false);
+	  }
       }while(true);
+      MemoryManager.unpin(PA / Machine.PageSize);
       
       Debug.println('+', "The name pass to exec is: " + result);
       return result;
   }
   
-  public int convertPA (int VA) {
+  /**
+   * Copy bytes from user memory into a kernel buffer.
+   *
+   * @param VA  The user virtual address to copy from.
+   * @param buffer  The buffer.
+   * @param offset  Where to start in the buffer.
+   * @param length  The number of bytes.
+   */
+  public void copyIn(int VA, byte[] buffer, int offset, int length) {
+      while (length > 0) {
+	  int PA = pin(VA, false);
+	  int n = Math.min(length, Machine.PageSize - VA % Machine.PageSize);
+	  System.arraycopy(Machine.mainMemory, PA, buffer, offset, n);
+	  MemoryManager.unpin(PA / Machine.PageSize);
+	  VA += n;
+	  offset += n;
+	  length -= n;
+      }
+  }
+  
+  /**
+   * Copy bytes from a kernel buffer into user memory.  The pages written
+   * are made writable (copy-on-write pages are copied) and marked dirty
+   * first, as the MMU would do if the user program wrote them itself.
+   *
+   * @param VA  The user virtual address to copy to.
+   * @param buffer  The buffer.
+   * @param offset  Where to start in the buffer.
+   * @param length  The number of bytes.
+   * @return  The number of bytes copied, which is less than length if a
+   *    read-only page was reached.
+   */
+  public int copyOut(int VA, byte[] buffer, int offset, int length) {
+      int copied = 0;
+      while (copied < length) {
+	  int PA = pin(VA, true);
+	  if (PA == -1)
+	      break;
+	  int n = Math.min(length - copied, Machine.PageSize - VA % Machine.PageSize);
+	  System.arraycopy(buffer, offset + copied, Machine.mainMemory, PA, n);
+	  MemoryManager.unpin(PA / Machine.PageSize);
+	  VA += n;
+	  copied += n;
+      }
+      return copied;
+  }
+  
+  /**
+   * Translate a user virtual address to a physical address, bringing the
+   * page in if it is not resident, and pin its frame (see
+   * MemoryManager.pin()).  The caller must unpin the frame once it has
+   * finished copying.
+   *
+   * @param VA  The virtual address.
+   * @param write  true if the kernel is going to write at the address.
+   * @return  The physical address, or -1 if write is true and the page is
+   *    read-only or a stack page that memory and swap cannot back.
+   */
+  private int pin(int VA, boolean write) {
       int VPN = 0;
       int OFF = 0;
       int PPN = 0;
-      int PA = 0;
-      
-      VPN = ((VA >>7 )& 0x1ffffff);
-      OFF = (VA & 0x7f);
-      PPN = pageTable[VPN].physicalPage;
-      PA = ((PPN<<7) | OFF);
       
-      return PA;
+      VPN = VA / Machine.PageSize;
+      OFF = VA % Machine.PageSize;
+      PPN = MemoryManager.pin(this, currentPageTable()[VPN], write);
+      Debug.ASSERT(PPN != -1 || write, "Kernel read from a stack page that memory and swap cannot back: " + VA);
+      if (PPN == -1)
+	  return -1;
+      return PPN * Machine.PageSize + OFF;
+  }
+  
+  /**
+   * Get the page table of the current thread if it runs in this address
+   * space (its stack pages are its own), otherwise that of the address space.
+   *
+   * @return  The page table.
+   */
+  private TranslationEntry[] currentPageTable() {
+      NachosThread current = NachosThread.currentThread();
+      if (current instanceof UserThread && ((UserThread)current).space == this
+	      && ((UserThread)current).getPageTable() != null)
+	  return ((UserThread)current).getPageTable();
+      return pageTable;
   }
   
   //Load function, and set everything
@@ -366,6 +475,7 @@ public class AddrSpace {
   //the start virtual address for the function should be passed
   //because the new stack should be allocated
   //The code and data pages are the same for all the threads executing in the same address space
+  //Returns null if there is not enough memory and swap for the new stack
   public TranslationEntry[] StackAllocate(int func) {
       int FunctionStackSize = UserStackSize;
      //allocate stack for process the function which is equal to the 
@@ -379,22 +489,55 @@ public class AddrSpace {
 	 FunctionpageTable[i] = pageTable[i];
      }
      
-     int[] PMPArray = MemoryManager.allocatePMP(StackPages);
+     int deferredPages = (UserStackSize - ReservedStackSize) / Machine.PageSize;
+     if (!MemoryManager.reserve(StackPages - deferredPages))
+	 return null;
      
      for(int k = numPages-StackPages; k<numPages; k++){
 	FunctionpageTable[k] = new TranslationEntry();    
 	FunctionpageTable[k].virtualPage = k; 
-	FunctionpageTable[k].physicalPage = PMPArray[k-numPages+StackPages];
-	FunctionpageTable[k].valid = true;
+	FunctionpageTable[k].physicalPage = -1;
+	FunctionpageTable[k].valid = false;	// loaded on demand
 	FunctionpageTable[k].use = false;
 	FunctionpageTable[k].dirty = false;
 	FunctionpageTable[k].readOnly = false;	
      }
+     int stackStart = numPages - StackPages;
+     MemoryManager.deferReservation(FunctionpageTable, stackStart, stackStart + deferredPages);
      return FunctionpageTable;
   }
   
  
   
+  /**
+   * Create a copy of this address space for a forked process, in the way
+   * of UNIX fork(): the copy has the code, data and stack of the forking
+   * thread, and shares their pages with it copy-on-write (see
+   * MemoryManager.forkPageTable()), so a page is only copied when one of the
+   * two processes first writes to it.  The other threads of this address
+   * space, and their stacks, are not copied.
+   *
+   * @param threadTable  The page table of the forking thread.
+   * @return  The new address space, or null if there is not enough memory
+   *    and swap to back its pages.
+   */
+  public AddrSpace fork(TranslationEntry[] threadTable) {
+    TranslationEntry[] table = MemoryManager.forkPageTable(threadTable);
+    if (table == null) {
+      Debug.println('a', "Not enough memory and swap to fork address space " + SpaceId);
+      return null;
+    }
+    AddrSpace child = new AddrSpace();
+    child.executable = executable;
+    child.noffH = noffH;
+    child.executableId = executableId;
+    child.currentSize = currentSize;
+    child.pageTable = table;
+    MemoryManager.allocatePM(currentSize);
+    Debug.println('a', "Forked address space " + SpaceId + " as " + child.SpaceId);
+    return child;
+  }
+  
   public int getSpaceId(){
       return this.SpaceId;
   }
@@ -0,0 +1,67 @@
+package nachos.kernel.userprog;
+
+import nachos.machine.TranslationEntry;
+
+/**
+ * Aging page replacement ("aging"), a closer approximation of LRU than
+ * CLOCK.  Each frame has an 8-bit age counter.  Whenever a victim is needed
+ * the use bits are sampled: every counter is shifted right one place, the use
+ * bit of its page is shifted in at the top, and the use bit is cleared.  The
+ * page with the smallest counter, the one least recently used over the last
+ * eight samples, is evicted, preferring a clean page (which need not be
+ * written to swap) among pages of equal age.
+ *
+ * Samples are taken at each eviction rather than on a timer, so the counters
+ * measure recency in units of page faults.  Each sample, and the search,
+ * takes time proportional to the number of frames.
+ */
+public class AgingReplacement implements PageReplacementPolicy {
+
+    /** Page table entry of the page in each frame (MemoryManager's frame table). */
+    private final TranslationEntry[] frames;
+
+    /** Age counter of each frame; larger means more recently used. */
+    private final int[] age;
+
+    /** Frame at which the search starts, so that ties do not always go the same way. */
+    private int start;
+
+    /**
+     * Initialize the policy.
+     *
+     * @param frames  The frame table, giving the page in each frame, or null.
+     */
+    public AgingReplacement(TranslationEntry[] frames) {
+	this.frames = frames;
+	age = new int[frames.length];
+    }
+
+    public void loaded(int frame) {
+	age[frame] = 0x80;	// Just used, by the access that faulted it in
+    }
+
+    public void freed(int frame) {
+	age[frame] = 0;
+    }
+
+    public int chooseVictim(int[] pins) {
+	int victim = -1;
+	int victimKey = Integer.MAX_VALUE;
+	for(int i = 0; i < frames.length; i++) {
+	    int frame = (start + i) % frames.length;
+	    TranslationEntry entry = frames[frame];
+	    if(entry == null)	// Free, or its page is in transit
+		continue;
+	    age[frame] = (age[frame] >>> 1) | (entry.use ? 0x80 : 0);
+	    entry.use = false;
+	    int key = (age[frame] << 1) | (entry.dirty ? 1 : 0);
+	    if(pins[frame] == 0 && key < victimKey) {
+		victim = frame;
+		victimKey = key;
+	    }
+	}
+	start = (victim + 1) % frames.length;
+	return victim;
+    }
+
+}
@@ -0,0 +1,49 @@
+package nachos.kernel.userprog;
+
+import nachos.machine.TranslationEntry;
+
+/**
+ * CLOCK, or second-chance, page replacement ("clock").  A hand sweeps round
+ * the frames; a page whose use bit is set has been accessed since the hand
+ * last passed, so it has its bit cleared and is given a second chance, and
+ * the first page found with its bit clear is evicted.  This approximates
+ * LRU at the cost of one bit per page, which the MMU sets for free.
+ */
+public class ClockReplacement implements PageReplacementPolicy {
+
+    /** Page table entry of the page in each frame (MemoryManager's frame table). */
+    private final TranslationEntry[] frames;
+
+    /** Next frame the hand looks at. */
+    private int hand;
+
+    /**
+     * Initialize the policy.
+     *
+     * @param frames  The frame table, giving the page in each frame, or null.
+     */
+    public ClockReplacement(TranslationEntry[] frames) {
+	this.frames = frames;
+    }
+
+    public void loaded(int frame) {
+	// The MMU sets the use bit when the page is first accessed.
+    }
+
+    public void freed(int frame) { }
+
+    public int chooseVictim(int[] pins) {
+	while(true) {
+	    int frame = hand;
+	    hand = (hand + 1) % frames.length;
+	    TranslationEntry entry = frames[frame];
+	    if(pins[frame] > 0)
+		continue;
+	    if(entry.use)
+		entry.use = false;
+	    else
+		return frame;
+	}
+    }
+
+}
@@ -86,13 +86,8 @@ public class ExceptionHandler implements nachos.machine.ExceptionHandler {
 		//The length of the buffer
 		int len1 = CPU.readRegister(5);
 		byte buf1[] = new byte[len1];
-		int tem1 = 0;
 		AddrSpace space1 = ((UserThread)NachosThread.currentThread()).space;
-		for(int i = 0; i<len1; i++){
-		    tem1 = space1.convertPA(ptr1);
-		    System.arraycopy(Machine.mainMemory, tem1, buf1, i, 1);
-		    ptr1++;
-		}
+		space1.copyIn(ptr1, buf1, 0, len1);
 		Syscall.write(buf1, len1, CPU.readRegister(6));
 		break;
 	    
@@ -104,21 +99,11 @@ public class ExceptionHandler implements nachos.machine.ExceptionHandler {
 		
 		byte buf2[] = new byte[len2];
 		
-		int tem2 = 0;			
-		
 		int max = Syscall.read(buf2, len2, CPU.readRegister(6));
 		
 		AddrSpace space2 = ((UserThread)NachosThread.currentThread()).space;
-		/*store everything into the memory*/
-		for(int i = 0; i<len2; i++)
-		{
-		    /*the physical address*/
-		    tem2 = space2.convertPA(ptr2);
-		    System.arraycopy(buf2, i, Machine.mainMemory, tem2, 1);
-		    ptr2++;
-		    /*only this amount of characters to be printed*/
-		    if(i==max-1)break;
-		}
+		/*store everything into the memory, only this amount of characters*/
+		space2.copyOut(ptr2, buf2, 0, Math.min(max, len2));
 		
 		// Remember Read() sys call returns an integer
 		CPU.writeRegister(2, max);
@@ -140,6 +125,22 @@ public class ExceptionHandler implements nachos.machine.ExceptionHandler {
 		Syscall.sleep(CPU.readRegister(4));
 		break;
 		
+	    case Syscall.SC_SetAffinity:
+		CPU.writeRegister(2, Syscall.setAffinity(CPU.readRegister(4))); // Sys call & write back return value to r2
+		break;
+		
+	    case Syscall.SC_SetTickets:
+		CPU.writeRegister(2, Syscall.setTickets(CPU.readRegister(4))); // Sys call & write back return value to r2
+		break;
+		
+	    case Syscall.SC_SetRealTime:
+		CPU.writeRegister(2, Syscall.setRealTime(CPU.readRegister(4), CPU.readRegister(5))); // Sys call & write back return value to r2
+		break;
+		
+	    case Syscall.SC_ForkSpace:
+		CPU.writeRegister(2, Syscall.forkSpace()); // Sys call & write back return value to r2
+		break;
+		
 	    case Syscall.SC_Mmap:
 		
 		String execFileName3 ="";
@@ -150,8 +151,6 @@ public class ExceptionHandler implements nachos.machine.ExceptionHandler {
 		execFileName3 = space3.ReadString(VA3);
 		
 		Syscall.mmap(execFileName3, CPU.readRegister(5));
-		
-		    MemoryManager.pageFaultHanle();
 		break;
 	    }
 	    
@@ -166,6 +165,24 @@ public class ExceptionHandler implements nachos.machine.ExceptionHandler {
 	    return;
 	}
 
+	if (which == MachineException.PageFaultException) {
+	    // Bring the page in; the faulting instruction is restarted on return.
+	    if (MemoryManager.handlePageFault(CPU.readRegister(MIPS.BadVAddrReg)))
+		return;
+	    Debug.println('+', "No memory or swap left for stack page at " + CPU.readRegister(MIPS.BadVAddrReg));
+	    Syscall.exit(-1);
+	    return;
+	}
+
+	if (which == MachineException.ReadOnlyException) {
+	    // Copy a copy-on-write page; the faulting instruction is restarted on return.
+	    if (MemoryManager.handleReadOnlyFault(CPU.readRegister(MIPS.BadVAddrReg)))
+		return;
+	    Debug.println('+', "Write to read-only page at " + CPU.readRegister(MIPS.BadVAddrReg));
+	    Syscall.exit(-1);
+	    return;
+	}
+
 	System.out.println("Unexpected user mode exception " + which + ", " + type);
 	Debug.ASSERT(false);
 
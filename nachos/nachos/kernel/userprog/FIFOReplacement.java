@@ -0,0 +1,65 @@
+package nachos.kernel.userprog;
+
+/**
+ * First-in first-out page replacement ("fifo"): the page that has been
+ * resident longest is evicted, however much it is used.  The resident frames
+ * form a doubly linked list in the order their pages were loaded, kept in
+ * arrays indexed by frame number, so every operation takes constant time.
+ */
+public class FIFOReplacement implements PageReplacementPolicy {
+
+    /** Marks the end of the list. */
+    private static final int NONE = -1;
+
+    /** Next frame in load order, for each frame on the list. */
+    private final int[] next;
+
+    /** Previous frame in load order, for each frame on the list. */
+    private final int[] prev;
+
+    /** Frame loaded longest ago, or NONE. */
+    private int head = NONE;
+
+    /** Frame loaded most recently, or NONE. */
+    private int tail = NONE;
+
+    /**
+     * Initialize the policy, with no pages resident.
+     *
+     * @param numFrames  The number of frames.
+     */
+    public FIFOReplacement(int numFrames) {
+	next = new int[numFrames];
+	prev = new int[numFrames];
+    }
+
+    public void loaded(int frame) {
+	next[frame] = NONE;
+	prev[frame] = tail;
+	if(tail == NONE)
+	    head = frame;
+	else
+	    next[tail] = frame;
+	tail = frame;
+    }
+
+    public void freed(int frame) {
+	if(prev[frame] == NONE)
+	    head = next[frame];
+	else
+	    next[prev[frame]] = next[frame];
+	if(next[frame] == NONE)
+	    tail = prev[frame];
+	else
+	    prev[next[frame]] = prev[frame];
+    }
+
+    public int chooseVictim(int[] pins) {
+	int frame = head;
+	while(pins[frame] > 0)
+	    frame = next[frame];
+	freed(frame);
+	return frame;
+    }
+
+}
@@ -20,8 +20,13 @@ public class ForkFunction implements Runnable{
     	    //space.funcArray.add(this);
     	    Debug.println('+', "Start Fork");
         
-    	    UserThread t = new UserThread("children thread forked at "+startLocation, this, space);
     	    this.FunctionpageTable = space.StackAllocate(startLocation);
+    	    if(FunctionpageTable == null) {
+    		Debug.println('+', "Not enough memory and swap for the stack of a forked thread");
+    		space.getThreadCounter().decrement(); // The thread is not going to run
+    		return;
+    	    }
+    	    UserThread t = UserThread.create("children thread forked at "+startLocation, this, space);
             t.setPageTable(FunctionpageTable);	  
     	    Nachos.scheduler.readyToRun(t);
         }
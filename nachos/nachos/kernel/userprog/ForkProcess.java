@@ -0,0 +1,52 @@
+package nachos.kernel.userprog;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.machine.CPU;
+import nachos.machine.MIPS;
+
+/**
+ * The first thread of a process created by the ForkSpace system call.
+ * It starts out with a copy of the user registers of the forking thread,
+ * taken while that thread is in the system call, so it returns from the
+ * same system call, with 0 as the result.
+ */
+public class ForkProcess implements Runnable {
+
+    /** The address space of the new process. */
+    private final AddrSpace space;
+
+    /** User registers to start with. */
+    private final int registers[] = new int[MIPS.NumTotalRegs];
+
+    /**
+     * Copy the user registers of the current thread, which is forking, and
+     * make a thread to run the new process ready to run.
+     *
+     * @param space  The address space of the new process.
+     */
+    public ForkProcess(AddrSpace space) {
+	this.space = space;
+	for(int i = 0; i < MIPS.NumTotalRegs; i++)
+	    registers[i] = CPU.readRegister(i);
+	// Skip the SYSCALL instruction, as the exception handler does for the parent.
+	registers[MIPS.PrevPCReg] = registers[MIPS.PCReg];
+	registers[MIPS.PCReg] = registers[MIPS.NextPCReg];
+	registers[MIPS.NextPCReg] += 4;
+	registers[2] = 0;	// The result of ForkSpace() in the child
+	Debug.println('+', "Forking process " + space.getSpaceId());
+	UserThread t = UserThread.create("process " + space.getSpaceId() + " (forked)", this, space);
+	t.setPageTable(space.getPageTable());
+	Nachos.scheduler.readyToRun(t);
+    }
+
+    @Override
+    public void run() {
+	for(int i = 0; i < MIPS.NumTotalRegs; i++)
+	    CPU.writeRegister(i, registers[i]);
+	space.restoreState();		// load page table register
+	CPU.runUserCode();		// return to the user program
+	Debug.ASSERT(false);
+    }
+
+}
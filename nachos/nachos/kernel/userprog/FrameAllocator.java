@@ -0,0 +1,255 @@
+package nachos.kernel.userprog;
+
+import nachos.Debug;
+import nachos.kernel.threads.SpinLock;
+import nachos.machine.CPU;
+import nachos.machine.Machine;
+
+/**
+ * Allocator of physical page frames.
+ *
+ * Free frames are recorded in a bitmap packed 64 to a word (a set bit is an
+ * allocated frame).  A free frame is found by skipping full words and then
+ * taking the lowest clear bit of a word with Long.numberOfTrailingZeros(),
+ * starting from the first word that may have one, so an allocation looks at
+ * one or two words when memory is not nearly full.  Runs of contiguous
+ * frames can also be allocated, for callers that need physically contiguous
+ * memory.
+ *
+ * In front of the bitmap each CPU has a small cache of free frames, so
+ * that CPUs allocating and freeing frames at the same time do not all
+ * contend for the bitmap's lock: a CPU takes frames from its own cache,
+ * refilling it from the bitmap a batch at a time, and frees frames into its
+ * cache, giving half of them back to the bitmap when it is full.  A CPU
+ * that finds both its cache and the bitmap empty takes a frame from the
+ * cache of another CPU.  Each cache and the bitmap have their own spin lock,
+ * and all methods disable interrupts while they hold one, so they may be
+ * called from any kernel code.  Since a cached frame is marked in the
+ * bitmap, frames handed out are also flagged one by one, so that freeing a
+ * frame that is free (cached or not) is caught.
+ */
+public class FrameAllocator {
+
+    /** Number of frames each CPU's cache can hold. */
+    private static final int CACHE_SIZE = 8;
+
+    /** Number of frames moved between a cache and the bitmap at a time. */
+    private static final int BATCH = CACHE_SIZE / 2;
+
+    /** Number of frames managed. */
+    private final int numFrames;
+
+    /** Bit i of word i/64 is set if frame i is allocated or cached. */
+    private final long[] words;
+
+    /** No word before this one has a clear bit. */
+    private int firstFree;
+
+    /** Number of frames that are neither allocated nor cached. */
+    private int bitmapFree;
+
+    /**
+     * Whether each frame is allocated, rather than free or cached.  Each
+     * frame's flag is only set by the CPU that allocates it and cleared by
+     * the one that frees it, so it needs no lock.
+     */
+    private final boolean[] allocated;
+
+    /** Spin lock guarding the bitmap. */
+    private final SpinLock bitmapLock = new SpinLock("frame bitmap lock");
+
+    /** Free frames cached by each CPU, as a stack. */
+    private final int[][] caches;
+
+    /** Number of frames in each CPU's cache. */
+    private final int[] cacheCounts;
+
+    /** Spin lock guarding each CPU's cache. */
+    private final SpinLock[] cacheLocks;
+
+    /**
+     * Initialize an allocator with every frame free.
+     *
+     * @param numFrames  The number of frames.
+     */
+    public FrameAllocator(int numFrames) {
+	this.numFrames = numFrames;
+	words = new long[(numFrames + 63) / 64];
+	if(numFrames % 64 != 0)	// Frames past the end are never free
+	    words[words.length - 1] = -1L << (numFrames % 64);
+	bitmapFree = numFrames;
+	allocated = new boolean[numFrames];
+	caches = new int[Machine.NUM_CPUS][CACHE_SIZE];
+	cacheCounts = new int[Machine.NUM_CPUS];
+	cacheLocks = new SpinLock[Machine.NUM_CPUS];
+	for(int i = 0; i < Machine.NUM_CPUS; i++)
+	    cacheLocks[i] = new SpinLock("frame cache lock " + i);
+    }
+
+    /**
+     * Allocate a frame.
+     *
+     * @return  The frame number, or -1 if every frame is allocated.
+     */
+    public int allocate() {
+	int unit = currentUnit();
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	int frame = -1;
+	cacheLocks[unit].acquire();
+	if(cacheCounts[unit] == 0) {
+	    bitmapLock.acquire();
+	    while(cacheCounts[unit] < BATCH && bitmapFree > 0)
+		caches[unit][cacheCounts[unit]++] = takeFromBitmap();
+	    bitmapLock.release();
+	}
+	if(cacheCounts[unit] > 0)
+	    frame = caches[unit][--cacheCounts[unit]];
+	cacheLocks[unit].release();
+	for(int i = 1; i < caches.length && frame == -1; i++) {
+	    int u = (unit + i) % caches.length;
+	    cacheLocks[u].acquire();
+	    if(cacheCounts[u] > 0)
+		frame = caches[u][--cacheCounts[u]];
+	    cacheLocks[u].release();
+	}
+	CPU.setLevel(oldLevel);
+	if(frame != -1)
+	    allocated[frame] = true;
+	return frame;
+    }
+
+    /**
+     * Free a frame.
+     *
+     * @param frame  The frame number.
+     */
+    public void free(int frame) {
+	Debug.ASSERT(frame >= 0 && frame < numFrames && allocated[frame], "Freeing a free frame: " + frame);
+	allocated[frame] = false;
+	int unit = currentUnit();
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	cacheLocks[unit].acquire();
+	if(cacheCounts[unit] == CACHE_SIZE) {
+	    bitmapLock.acquire();
+	    while(cacheCounts[unit] > CACHE_SIZE - BATCH)
+		giveToBitmap(caches[unit][--cacheCounts[unit]]);
+	    bitmapLock.release();
+	}
+	caches[unit][cacheCounts[unit]++] = frame;
+	cacheLocks[unit].release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Allocate a run of contiguous frames.  Frames held in the CPUs' caches
+     * are not considered, so this can fail while that many frames are free.
+     *
+     * @param count  The number of frames.
+     * @return  The first frame of the run, or -1 if there is no such run.
+     */
+    public int allocateRun(int count) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	bitmapLock.acquire();
+	int first = -1;
+	int run = 0;
+	for(int frame = firstFree * 64; frame < numFrames && run < count; frame++) {
+	    if(isSet(frame)) {
+		run = 0;
+	    } else if(run++ == 0) {
+		first = frame;
+	    }
+	}
+	if(run == count) {
+	    for(int frame = first; frame < first + count; frame++) {
+		words[frame / 64] |= 1L << (frame % 64);
+		allocated[frame] = true;
+	    }
+	    bitmapFree -= count;
+	} else {
+	    first = -1;
+	}
+	bitmapLock.release();
+	CPU.setLevel(oldLevel);
+	return first;
+    }
+
+    /**
+     * Free a run of contiguous frames, straight back to the bitmap.
+     *
+     * @param first  The first frame of the run.
+     * @param count  The number of frames.
+     */
+    public void freeRun(int first, int count) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	bitmapLock.acquire();
+	for(int frame = first; frame < first + count; frame++) {
+	    Debug.ASSERT(allocated[frame], "Freeing a free frame: " + frame);
+	    allocated[frame] = false;
+	    giveToBitmap(frame);
+	}
+	bitmapLock.release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Get the number of free frames, including those in the CPUs' caches.
+     * The caches are read without their locks, so the number may be out of
+     * date by the time it is returned.
+     *
+     * @return  The number of free frames.
+     */
+    public int numFree() {
+	int free = bitmapFree;
+	for(int count : cacheCounts)
+	    free += count;
+	return free;
+    }
+
+    /**
+     * Take a free frame out of the bitmap.  The bitmap lock must be held,
+     * and the bitmap must have a free frame.
+     *
+     * @return  The frame number.
+     */
+    private int takeFromBitmap() {
+	while(words[firstFree] == -1L)
+	    firstFree++;
+	int bit = Long.numberOfTrailingZeros(~words[firstFree]);
+	words[firstFree] |= 1L << bit;
+	bitmapFree--;
+	return firstFree * 64 + bit;
+    }
+
+    /**
+     * Put a frame back in the bitmap.  The bitmap lock must be held.
+     *
+     * @param frame  The frame number.
+     */
+    private void giveToBitmap(int frame) {
+	words[frame / 64] &= ~(1L << (frame % 64));
+	bitmapFree++;
+	if(frame / 64 < firstFree)
+	    firstFree = frame / 64;
+    }
+
+    /**
+     * Determine whether a frame is marked in the bitmap (allocated or cached).
+     *
+     * @param frame  The frame number.
+     * @return  true if the frame's bit is set.
+     */
+    private boolean isSet(int frame) {
+	return (words[frame / 64] & (1L << (frame % 64))) != 0;
+    }
+
+    /**
+     * Get the unit number of the current CPU.
+     *
+     * @return  The unit number, or 0 if not called on a CPU.
+     */
+    private static int currentUnit() {
+	CPU cpu = CPU.currentCPU();
+	return (cpu == null ? 0 : cpu.unit);
+    }
+
+}
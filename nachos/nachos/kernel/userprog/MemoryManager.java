@@ -1,99 +1,951 @@
 package nachos.kernel.userprog;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.kernel.filesys.BitMap;
+import nachos.kernel.filesys.OpenFile;
+import nachos.kernel.threads.Condition;
+import nachos.kernel.threads.Lock;
+import nachos.kernel.threads.SpinLock;
 import nachos.machine.CPU;
-import nachos.machine.MIPS;
 import nachos.machine.Machine;
+import nachos.machine.NachosThread;
+import nachos.machine.Simulation;
 import nachos.machine.TranslationEntry;
-import nachos.noff.NoffHeader;
-import nachos.kernel.filesys.OpenFile;
-/*This class is to manage the address space and keep track of what process is 
+/*This class is to manage the address space and keep track of what process is
  * using each page of memory
- *multiple processes work together in memory. 
+ *multiple processes work together in memory.
  *Each memory has its own virtual address space.
- *VPN != PPN virtual memoty space != 
+ *VPN != PPN virtual memoty space !=
  *initialize the page tables to refer to memory allocated by the memory manager.
  * */
 /*This is the physical memory address manager*/
+/**
+ * Physical memory manager, which also pages user address spaces on demand.
+ *
+ * Every user page starts out invalid, and is brought into a physical page
+ * (a "frame") when it is first touched, either by the user program (a page
+ * fault, see handlePageFault()) or by the kernel on its behalf (see
+ * pin()).  A page is filled from the executable if it holds
+ * code or initialized data, with zeros otherwise, or from the swap file if it
+ * was written to before being evicted.  When no frame is free, the
+ * PageReplacementPolicy selected by Options.PAGE_REPLACEMENT chooses a page
+ * to evict, which is written out to the swap file first if it is dirty.
+ * The swap file is kept in the Nachos file system, and has
+ * Options.SWAP_PAGES pages; it is only created when the address spaces
+ * reserve more pages than physical memory holds, so that a workload that
+ * fits in memory leaves the disk alone.  Paging activity, including the
+ * page fault rate, is printed when the simulation stops (see -pfr).
+ *
+ * So that a page fault can always be serviced, an address space reserves
+ * backing for its pages before it starts (see reserve()), and exec
+ * fails if physical memory and swap together cannot back them.  The
+ * exception is the part of each stack beyond AddrSpace.ReservedStackSize,
+ * which most programs never touch: backing for one of those pages is only
+ * reserved when the page is first touched (see deferReservation()), and a
+ * thread that touches one when memory and swap are full is terminated.
+ *
+ * A forked process shares its parent's pages copy-on-write (see
+ * forkPageTable()): a resident page is mapped by the page tables of both,
+ * read-only, until one of them writes to it and gets a copy of its own (see
+ * makeWritable()), and an evicted page shares its swap slot.  Evicting a
+ * shared frame evicts the page from every table that maps it; each of them
+ * then pages in a private copy when it next touches the page.
+ *
+ * Pages of code and initialized data are also shared between all the
+ * address spaces running the same executable, through a page cache keyed by
+ * the identity of the executable file (OpenFile.getFileId(), which does
+ * not depend on the path it was opened by) and the page number (see
+ * AddrSpace.sharedFileId()).  A page that is in the cache is mapped
+ * copy-on-write instead of being read in again, so each extra process only
+ * needs frames for its stack and the data it writes.  The cache holds a
+ * frame for as long as some page table maps it, and forgets it when its
+ * last mapping goes away, when the one remaining mapping writes to it, or
+ * when it is evicted.  The filesystems call fileChanged() when a file is
+ * written or removed, which forgets all the cached pages of the file, so
+ * that a program started after that reads the new contents; processes
+ * already running it keep the pages they have.  The cache has a spin lock
+ * of its own, so that fileChanged() can be called from any file write,
+ * whether or not the writer holds the paging lock.
+ *
+ * The kernel copies to and from user memory with the frames pinned (see
+ * pin()), so that the replacement policy cannot choose them while the copy
+ * is going on.
+ *
+ * A single lock guards the frame table, the swap map and the reservations,
+ * but it is not held while a page is read from the executable or the swap
+ * file, or written to swap.  Instead, the frame is pinned for the duration
+ * of the transfer, so that it is not chosen for eviction, and the entries
+ * of the page are marked as in transit (see inTransit), so that a thread
+ * faulting on the same page waits for the transfer to finish rather than
+ * starting another one.  Page faults that find their page in memory, or
+ * in the page cache, go ahead meanwhile.
+ */
 public class MemoryManager {
-    public static int startFreePMP = 0;
-    //PMP is the number of physical page. This represents the number of physical memory page left
-    public static int numberOfPMPLeft = Machine.NumPhysPages;
+    /*The allocator of the physical pages (frames), which does its own locking*/
+    private static final FrameAllocator frames = new FrameAllocator(Machine.NumPhysPages);
     /*get the processes according to the physical page*/
     /*The physical memory manager allocate the physical memory for virtual address space*/
-    public static long numberOfPMLeft = Machine.MemorySize;
+    /*Bytes of memory not yet given to address spaces; guarded by the paging lock*/
+    private static long numberOfPMLeft = Machine.MemorySize;
+
+    /** Name of the swap file in the Nachos file system. */
+    private static final String SWAP_FILE_NAME = "SWAP";
+
+    /** Lock guarding all the paging state below. */
+    private static final Lock pagingLock = new Lock("paging lock");
+
+    /** Signalled when a page has been read into or written out of its frame. */
+    private static final Condition transferDone = new Condition("paging transfer done", pagingLock);
+
+    /**
+     * Entries whose page is being read in or written out, with the paging
+     * lock released; nobody else may touch them until they leave the set.
+     */
+    private static final Set<TranslationEntry> inTransit = new HashSet<TranslationEntry>();
+
+    /**
+     * Page table entry of the page held in each frame, or null if the frame
+     * is free.  Of a shared frame, one of the entries that map it, which is
+     * the one whose use and dirty bits the replacement policy looks at.
+     */
+    private static final TranslationEntry[] frameEntry = new TranslationEntry[Machine.NumPhysPages];
+
+    /** All the entries mapping each frame that is mapped by more than one. */
+    private static final Map<Integer, List<TranslationEntry>> sharedFrames =
+	new HashMap<Integer, List<TranslationEntry>>();
+
+    /** Spin lock guarding the page cache; taken after the paging lock. */
+    private static final SpinLock cacheLock = new SpinLock("page cache lock");
+
+    /** Frame holding each cached page, by the file it comes from and its page number. */
+    private static final Map<String, Map<Integer, Integer>> pageCache =
+	new HashMap<String, Map<Integer, Integer>>();
+
+    /** File whose page is cached in each frame, or null if the frame is not cached. */
+    private static final String[] frameFile = new String[Machine.NumPhysPages];
+
+    /** Page number of the page cached in each frame. */
+    private static final int[] framePage = new int[Machine.NumPhysPages];
+
+    /** Number of calls to fileChanged() so far; guarded by cacheLock. */
+    private static int fileChanges;
+
+    /** Number of times each frame is pinned by the kernel (see pin()). */
+    private static final int[] pins = new int[Machine.NumPhysPages];
+
+    /** Entries that are read-only only until their page is copied on a write. */
+    private static final Set<TranslationEntry> copyOnWrite = new HashSet<TranslationEntry>();
+
+    /** Entries of stack pages that have never been touched, and have no backing reserved. */
+    private static final Set<TranslationEntry> unreserved = new HashSet<TranslationEntry>();
+
+    /** Policy choosing the pages to evict; null until the first address space starts. */
+    private static PageReplacementPolicy policy;
+
+    /** Number of pages brought in, on faults or for the kernel. */
+    private static long pageIns;
+
+    /** Number of those pages read from the swap file. */
+    private static long swapIns;
+
+    /** Number of pages evicted. */
+    private static long evictions;
+
+    /** Number of those pages written to the swap file. */
+    private static long pageOuts;
+
+    /** Number of copy-on-write pages copied. */
+    private static long copies;
+
+    /** Number of pages mapped from the page cache instead of being read in. */
+    private static long cacheHits;
+
+    /** Swap slot holding each evicted page that was dirty. */
+    private static final Map<TranslationEntry, Integer> swapSlots = new HashMap<TranslationEntry, Integer>();
+
+    /** The swap file, or null if it has not been needed yet (or could not be created). */
+    private static OpenFile swapFile;
+
+    /** Which slots of the swap file are in use; null until swap is first needed. */
+    private static BitMap swapMap;
+
+    /** Number of entries sharing each slot of the swap file that is in use. */
+    private static int[] slotRefs;
+
+    /** Number of pages in the swap file; 0 until it is created. */
+    private static int swapPages;
+
+    /** Number of pages that address spaces have reserved backing for. */
+    private static int reservedPages;
+
     /*constructor for the memory manager*/
     public MemoryManager(){
-	
+
     }
-    
-    
-    /*An integer array start from 0 record which physical page is being used*/
-    public static int[]PMP = new int[Machine.NumPhysPages];
-    
+
+
     /*get the number of physical number of pages needed for the virtual memory*/
     /*number of pages needed for the space*/
     public static int getStartNumberOfPMP(){
-	return numberOfPMPLeft;
+	return frames.numFree();
     }
-    
+
     public static void allocatePM(long size){
+	pagingLock.acquire();
 	numberOfPMLeft = numberOfPMLeft - size;
+	pagingLock.release();
 	//Debug.println('+', "allocate size " + size);
     }
-    
+
     public static void freePM(long size){
+	pagingLock.acquire();
 	numberOfPMLeft = numberOfPMLeft + size;
+	pagingLock.release();
 	//Debug.println('+', "free size " + size);
     }
     /*free the AddrSpace. According to the translationEntry, get the number of physical page is used and get the corresponding
      * physical page number to free them.*/
     public static void freePMP(AddrSpace addressSpace){
-	int[] PMArray = addressSpace.free();
-	//Debug.println('+', "Physical page deallocated:");
-	for(int i = 0; i < PMArray.length ;i++) {
-	    
-	    PMP[PMArray[i]]=0;
-	    /*free the main memory need to be implemented*/
-	    //Debug.println('+', PMArray[i]+"");
-	}
-	/*free the physical pages*/
-	numberOfPMPLeft = numberOfPMPLeft + PMArray.length;
+	TranslationEntry[] pageTable = addressSpace.getPageTable();
+	freePages(pageTable, 0, pageTable.length);
 	freePM(addressSpace.currentSize);
     }
-    
-    public static void freeStackPMP(int[] PMPArray){
-	//Debug.println('+', "Physical page deallocated:");
-	for(int i = 0; i< PMPArray.length; i++){
-	    PMP[PMPArray[i]]= 0;
-	    //Debug.println('+', PMPArray[i]+"");
-	}
-	numberOfPMPLeft = numberOfPMPLeft + PMPArray.length;
-	freePM(1024);
-    }
-    
-    /*This method return an integer array store an array of stored the physical page number in each element */
-    public static int[] allocatePMP(int numPages){
-	int[] result = new int[numPages];
-	int count = 0;
-	//Debug.println('+', "Physical page allocated:");
-	for(int i = (PMP.length-1);i>=0; i--){
-	    if(count == numPages) 
-		break;
-	    if(PMP[i]==0){
-		result[count] = i;
-		count++;
-		PMP[i]=1;
+
+    /*free the stack pages of a thread that exits while others in its AddrSpace go on*/
+    public static void freeStackPMP(AddrSpace addressSpace, TranslationEntry[] pageTable){
+	int stackPages = AddrSpace.UserStackSize / Machine.PageSize;
+	freePages(pageTable, pageTable.length - stackPages, pageTable.length);
+	freePM(AddrSpace.UserStackSize);
+    }
+
+    /**
+     * Reserve backing (a frame or a swap slot) for some pages of an address
+     * space that is starting up, or for the stack of a new thread.
+     *
+     * @param numPages  The number of pages.
+     * @return  true if the pages were reserved; false if physical memory and
+     * swap are already fully reserved.
+     */
+    public static boolean reserve(int numPages) {
+	pagingLock.acquire();
+	boolean ok = reserveLocked(numPages);
+	pagingLock.release();
+	return ok;
+    }
+
+    /**
+     * Reserve backing for some pages, as reserve() does.  The paging lock
+     * must be held.
+     *
+     * @param numPages  The number of pages.
+     * @return  true if the pages were reserved.
+     */
+    private static boolean reserveLocked(int numPages) {
+	if(policy == null)
+	    init();
+	if(swapMap == null && reservedPages + numPages > Machine.NumPhysPages)
+	    initSwap();
+	// Keep one slot spare for the page being evicted while the faulting
+	// page still holds its own slot.
+	boolean ok = (reservedPages + numPages <= Machine.NumPhysPages + Math.max(swapPages - 1, 0));
+	if(ok)
+	    reservedPages += numPages;
+	else
+	    Debug.println('a', "Cannot reserve " + numPages + " pages: memory and swap are full");
+	return ok;
+    }
+
+    /**
+     * Note that some pages of a page table, which must never have been
+     * touched, have no backing reserved, so that backing is reserved for
+     * each of them when it is first touched.
+     *
+     * @param pageTable  The page table.
+     * @param from  The first page.
+     * @param to  The page after the last.
+     */
+    public static void deferReservation(TranslationEntry[] pageTable, int from, int to) {
+	pagingLock.acquire();
+	for(int i = from; i < to; i++)
+	    unreserved.add(pageTable[i]);
+	pagingLock.release();
+    }
+
+    /**
+     * Give back reserved backing for some pages.
+     *
+     * @param numPages  The number of pages.
+     */
+    public static void unreserve(int numPages) {
+	pagingLock.acquire();
+	reservedPages -= numPages;
+	pagingLock.release();
+    }
+
+    /**
+     * Service a page fault taken by the current user thread.  The faulting
+     * instruction is restarted when the exception handler returns.
+     *
+     * @param badVAddr  The virtual address that caused the fault.
+     * @return  false if the page is a stack page touched for the first
+     * time, and memory and swap are too full to back it.
+     */
+    public static boolean handlePageFault(int badVAddr) {
+	UserThread thread = (UserThread)NachosThread.currentThread();
+	TranslationEntry[] pageTable = thread.getPageTable();
+	int vpn = badVAddr / Machine.PageSize;
+	Debug.ASSERT(vpn >= 0 && vpn < pageTable.length, "Page fault outside address space: " + badVAddr);
+	return pageIn(thread.space, pageTable[vpn]);
+    }
+
+    /**
+     * Make a page resident, if it is not already.
+     *
+     * @param space  The address space that the page belongs to.
+     * @param entry  The page table entry of the page.
+     * @return  false if backing for the page could not be reserved.
+     */
+    public static boolean pageIn(AddrSpace space, TranslationEntry entry) {
+	pagingLock.acquire();
+	boolean ok = loaded(space, entry);
+	pagingLock.release();
+	return ok;
+    }
+
+    /**
+     * Make a page resident and writable, copying it if it is shared
+     * copy-on-write, and mark it dirty.  Called on a write fault; the kernel
+     * writes to user memory through pin() instead.
+     *
+     * @param space  The address space that the page belongs to.
+     * @param entry  The page table entry of the page.
+     * @return  false if the page is read-only (and not copy-on-write), or
+     * if backing for it could not be reserved.
+     */
+    public static boolean makeWritable(AddrSpace space, TranslationEntry entry) {
+	pagingLock.acquire();
+	boolean ok = writable(space, entry);
+	pagingLock.release();
+	return ok;
+    }
+
+    /**
+     * Make a page resident and keep it in its frame until unpin() is
+     * called, so that the kernel can copy to or from the frame without the
+     * page being evicted (and the frame reused) on another CPU meanwhile.
+     * If the kernel is going to write to the page, it is first made writable
+     * and marked dirty, as makeWritable() does.
+     *
+     * @param space  The address space that the page belongs to.
+     * @param entry  The page table entry of the page.
+     * @param write  true if the kernel is going to write to the page.
+     * @return  The frame, or -1 if write is true and the page is read-only,
+     * or if backing for the page could not be reserved (in which case
+     * nothing is pinned).
+     */
+    public static int pin(AddrSpace space, TranslationEntry entry, boolean write) {
+	pagingLock.acquire();
+	int frame = -1;
+	if(write ? writable(space, entry) : loaded(space, entry)) {
+	    frame = entry.physicalPage;
+	    pins[frame]++;
+	}
+	pagingLock.release();
+	return frame;
+    }
+
+    /**
+     * Let the page in a frame pinned by pin() be evicted again.
+     *
+     * @param frame  The frame.
+     */
+    public static void unpin(int frame) {
+	pagingLock.acquire();
+	Debug.ASSERT(pins[frame] > 0, "Unpinning a frame that is not pinned: " + frame);
+	pins[frame]--;
+	pagingLock.release();
+    }
+
+    /**
+     * Make a page resident.  The paging lock must be held.
+     *
+     * @param space  The address space that the page belongs to.
+     * @param entry  The page table entry of the page.
+     * @return  false if backing for the page could not be reserved.
+     */
+    private static boolean loaded(AddrSpace space, TranslationEntry entry) {
+	awaitTransfer(entry);
+	if(!entry.valid)	// It may have been brought in while we waited
+	    return loadEntry(space, entry);
+	return true;
+    }
+
+    /**
+     * Make a page resident and writable, and mark it dirty, as
+     * makeWritable() does.  The paging lock must be held.
+     *
+     * @param space  The address space that the page belongs to.
+     * @param entry  The page table entry of the page.
+     * @return  false if the page is read-only (and not copy-on-write), or
+     * if backing for it could not be reserved.
+     */
+    private static boolean writable(AddrSpace space, TranslationEntry entry) {
+	awaitTransfer(entry);
+	boolean ok = !entry.readOnly || copyOnWrite.contains(entry);
+	// Allocating a frame for the copy can evict the page itself, so check again.
+	while(ok && (!entry.valid || entry.readOnly)) {
+	    if(!entry.valid)
+		ok = loadEntry(space, entry);
+	    else
+		copyPage(entry);
+	    awaitTransfer(entry);
+	}
+	if(ok)
+	    entry.dirty = true;
+	return ok;
+    }
+
+    /**
+     * Wait until a page is no longer being read in or written out.
+     * The paging lock must be held; it is released while waiting.
+     *
+     * @param entry  The page table entry of the page.
+     */
+    private static void awaitTransfer(TranslationEntry entry) {
+	while(inTransit.contains(entry))
+	    transferDone.await();
+    }
+
+    /**
+     * Wait until none of the pages of a page table is being read in or
+     * written out.  The paging lock must be held; it is released while
+     * waiting.
+     *
+     * @param pageTable  The page table.
+     */
+    private static void awaitTransfers(TranslationEntry[] pageTable) {
+	boolean waited;
+	do {
+	    waited = false;
+	    for(TranslationEntry entry : pageTable) {
+		if(inTransit.contains(entry)) {
+		    awaitTransfer(entry);
+		    waited = true;	// Others may have started meanwhile
+		}
+	    }
+	} while(waited);
+    }
+
+    /**
+     * Service a write fault taken by the current user thread on a read-only
+     * page.  The faulting instruction is restarted when the exception
+     * handler returns.
+     *
+     * @param badVAddr  The virtual address that caused the fault.
+     * @return  false if the page really is read-only, rather than copy-on-write.
+     */
+    public static boolean handleReadOnlyFault(int badVAddr) {
+	UserThread thread = (UserThread)NachosThread.currentThread();
+	TranslationEntry[] pageTable = thread.getPageTable();
+	int vpn = badVAddr / Machine.PageSize;
+	Debug.ASSERT(vpn >= 0 && vpn < pageTable.length, "Write fault outside address space: " + badVAddr);
+	return makeWritable(thread.space, pageTable[vpn]);
+    }
+
+    /**
+     * Make a copy-on-write duplicate of a page table, for a forked process.
+     * Every page is shared: a resident page is mapped by both tables and
+     * made read-only in both, and an evicted page shares its swap slot.
+     * Backing is reserved for all the pages of the copy, as for exec, since
+     * each of them may need a frame of its own later, except for the stack
+     * pages that the forking thread has never touched, which stay that way.
+     *
+     * @param pageTable  The page table of the forking thread.
+     * @return  The new page table, or null if physical memory and swap
+     * cannot back it.
+     */
+    public static TranslationEntry[] forkPageTable(TranslationEntry[] pageTable) {
+	pagingLock.acquire();
+	awaitTransfers(pageTable);
+	int untouched = 0;
+	for(TranslationEntry entry : pageTable) {
+	    if(unreserved.contains(entry))
+		untouched++;
+	}
+	if(!reserveLocked(pageTable.length - untouched)) {
+	    pagingLock.release();
+	    return null;
+	}
+	TranslationEntry[] copy = new TranslationEntry[pageTable.length];
+	for(int i = 0; i < pageTable.length; i++) {
+	    TranslationEntry entry = pageTable[i];
+	    TranslationEntry child = new TranslationEntry();
+	    child.virtualPage = entry.virtualPage;
+	    child.physicalPage = -1;
+	    if(unreserved.contains(entry)) {
+		unreserved.add(child);
+	    } else if(entry.valid) {
+		if(!entry.readOnly) {
+		    entry.readOnly = true;
+		    copyOnWrite.add(entry);
+		}
+		if(copyOnWrite.contains(entry))
+		    copyOnWrite.add(child);
+		child.readOnly = true;
+		child.dirty = entry.dirty;
+		child.physicalPage = entry.physicalPage;
+		addMapping(entry.physicalPage, child);
+		child.valid = true;
+	    } else {
+		Integer slot = swapSlots.get(entry);
+		if(slot != null) {
+		    swapSlots.put(child, slot);
+		    slotRefs[slot]++;
+		}
+	    }
+	    copy[i] = child;
+	}
+	pagingLock.release();
+	return copy;
+    }
+
+    /**
+     * Bring a page into a frame, or map it from the page cache if it is
+     * there.  The paging lock must be held; it is released while the page
+     * is read in, with the entry in transit and the frame pinned.
+     *
+     * @param space  The address space that the page belongs to.
+     * @param entry  The page table entry of the page, which is invalid and
+     * not in transit.
+     * @return  false if the page had no backing reserved, and none could be.
+     */
+    private static boolean loadEntry(AddrSpace space, TranslationEntry entry) {
+	if(unreserved.contains(entry)) {
+	    if(!reserveLocked(1))
+		return false;
+	    unreserved.remove(entry);
+	}
+	String file = (swapSlots.containsKey(entry) ? null : space.sharedFileId(entry.virtualPage));
+	Integer cached = null;
+	int changes = 0;
+	if(file != null) {
+	    int oldLevel = CPU.setLevel(CPU.IntOff);
+	    cacheLock.acquire();
+	    Map<Integer, Integer> pages = pageCache.get(file);
+	    if(pages != null)
+		cached = pages.get(entry.virtualPage);
+	    changes = fileChanges;
+	    cacheLock.release();
+	    CPU.setLevel(oldLevel);
+	}
+	if(cached != null) {
+	    Debug.println('a', "Mapping page " + entry.virtualPage + " from the page cache, frame " + cached);
+	    entry.physicalPage = cached;
+	    entry.use = false;
+	    entry.dirty = false;
+	    entry.readOnly = true;
+	    copyOnWrite.add(entry);
+	    addMapping(cached, entry);
+	    entry.valid = true;
+	    cacheHits++;
+	    return true;
+	}
+	inTransit.add(entry);
+	int frame = allocateFrame();
+	int PA = frame * Machine.PageSize;
+	Integer slot = swapSlots.remove(entry);
+	pagingLock.release();
+	if(slot != null) {
+	    Debug.println('a', "Paging in page " + entry.virtualPage + " from swap slot " + slot);
+	    swapFile.readAt(Machine.mainMemory, PA, Machine.PageSize, (long)slot * Machine.PageSize);
+	} else {
+	    Debug.println('a', "Paging in page " + entry.virtualPage + " from the executable");
+	    space.loadPage(entry.virtualPage, PA);
+	}
+	pagingLock.acquire();
+	if(slot != null)
+	    releaseSlot(slot);
+	if(file != null) {
+	    // A page read while its file was being written may be stale, so
+	    // it is not offered to anyone else; nor is it if another address
+	    // space read in and cached the same page meanwhile.
+	    int oldLevel = CPU.setLevel(CPU.IntOff);
+	    cacheLock.acquire();
+	    Map<Integer, Integer> pages = pageCache.get(file);
+	    if(fileChanges == changes && (pages == null || !pages.containsKey(entry.virtualPage))) {
+		if(pages == null) {
+		    pages = new HashMap<Integer, Integer>();
+		    pageCache.put(file, pages);
+		}
+		pages.put(entry.virtualPage, frame);
+		frameFile[frame] = file;
+		framePage[frame] = entry.virtualPage;
+	    }
+	    cacheLock.release();
+	    CPU.setLevel(oldLevel);
+	    entry.readOnly = true;
+	    copyOnWrite.add(entry);
+	}
+	entry.physicalPage = frame;
+	entry.use = false;
+	// A page read back from swap has given up its slot, so it has to be
+	// written out again if it is evicted.
+	entry.dirty = (slot != null);
+	frameEntry[frame] = entry;
+	entry.valid = true;
+	policy.loaded(frame);
+	pins[frame]--;
+	inTransit.remove(entry);
+	transferDone.broadcast();
+	pageIns++;
+	if(slot != null)
+	    swapIns++;
+	return true;
+    }
+
+    /**
+     * Give a copy-on-write page a frame of its own, if it shares one, and
+     * make it writable.  The paging lock must be held; it may be released
+     * while a page is evicted to make room for the copy, in which case the
+     * entry may have changed, and the caller has to check it again.
+     *
+     * @param entry  The page table entry of the page, which is valid.
+     */
+    private static void copyPage(TranslationEntry entry) {
+	int frame = entry.physicalPage;
+	if(sharedFrames.containsKey(frame)) {
+	    int copy = allocateFrame();
+	    pins[copy]--;
+	    // The shared frame may have been the one evicted, or have stopped
+	    // being shared, while the lock was released.
+	    if(!entry.valid || entry.physicalPage != frame || !sharedFrames.containsKey(frame)) {
+		frames.free(copy);
+		return;
+	    }
+	    Debug.println('a', "Copying shared page " + entry.virtualPage + " from frame " + frame);
+	    System.arraycopy(Machine.mainMemory, frame * Machine.PageSize,
+		    Machine.mainMemory, copy * Machine.PageSize, Machine.PageSize);
+	    removeMapping(frame, entry);
+	    entry.physicalPage = copy;
+	    entry.use = true;
+	    frameEntry[copy] = entry;
+	    policy.loaded(copy);
+	    copies++;
+	} else {
+	    uncache(frame);	// It is about to be written
+	}
+	entry.readOnly = false;
+	copyOnWrite.remove(entry);
+    }
+
+    /**
+     * Record that one more entry maps a frame.  The paging lock must be held.
+     *
+     * @param frame  The frame, which is in use.
+     * @param entry  The new entry.
+     */
+    private static void addMapping(int frame, TranslationEntry entry) {
+	List<TranslationEntry> entries = sharedFrames.get(frame);
+	if(entries == null) {
+	    entries = new ArrayList<TranslationEntry>();
+	    entries.add(frameEntry[frame]);
+	    sharedFrames.put(frame, entries);
+	}
+	entries.add(entry);
+    }
+
+    /**
+     * Record that an entry no longer maps a frame.  The paging lock must be held.
+     *
+     * @param frame  The frame.
+     * @param entry  The entry.
+     * @return  true if no entry maps the frame any more.
+     */
+    private static boolean removeMapping(int frame, TranslationEntry entry) {
+	List<TranslationEntry> entries = sharedFrames.get(frame);
+	if(entries == null)
+	    return true;
+	entries.remove(entry);
+	if(entries.size() == 1)
+	    sharedFrames.remove(frame);
+	frameEntry[frame] = entries.get(0);
+	return false;
+    }
+
+    /**
+     * Take a frame out of the page cache, if it is in it.
+     * The paging lock must be held.
+     *
+     * @param frame  The frame.
+     */
+    private static void uncache(int frame) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	cacheLock.acquire();
+	String file = frameFile[frame];
+	if(file != null) {
+	    Map<Integer, Integer> pages = pageCache.get(file);
+	    pages.remove(framePage[frame]);
+	    if(pages.isEmpty())
+		pageCache.remove(file);
+	    frameFile[frame] = null;
+	}
+	cacheLock.release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Forget the cached pages of a file that has been written or removed,
+     * so that programs started from now on read it afresh.  The frames stay
+     * mapped, copy-on-write, by the address spaces that already use them.
+     * Called by the filesystems; may be called with or without the paging
+     * lock.
+     *
+     * @param file  The identity of the file (see OpenFile.getFileId()).
+     */
+    public static void fileChanged(String file) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	cacheLock.acquire();
+	fileChanges++;
+	Map<Integer, Integer> pages = pageCache.remove(file);
+	if(pages != null) {
+	    for(int frame : pages.values())
+		frameFile[frame] = null;
+	}
+	cacheLock.release();
+	CPU.setLevel(oldLevel);
+	if(pages != null)
+	    Debug.println('a', "Forgetting the cached pages of " + file);
+    }
+
+    /**
+     * Drop one reference to a swap slot, freeing it if it was the last.
+     * The paging lock must be held.
+     *
+     * @param slot  The slot.
+     */
+    private static void releaseSlot(int slot) {
+	if(--slotRefs[slot] == 0)
+	    swapMap.clear(slot);
+    }
+
+    /**
+     * Free the frames and swap slots of a range of pages of a page table,
+     * and give back the reservation of those that had one.
+     *
+     * @param pageTable  The page table.
+     * @param from  The first page.
+     * @param to  The page after the last.
+     */
+    private static void freePages(TranslationEntry[] pageTable, int from, int to) {
+	pagingLock.acquire();
+	for(int i = from; i < to; i++) {
+	    TranslationEntry entry = pageTable[i];
+	    awaitTransfer(entry);
+	    if(entry.valid) {
+		entry.valid = false;
+		if(removeMapping(entry.physicalPage, entry))
+		    freeFrame(entry.physicalPage);
 	    }
-	    //Debug.println('+', i+"");
+	    copyOnWrite.remove(entry);
+	    if(!unreserved.remove(entry))
+		reservedPages--;
+	    Integer slot = swapSlots.remove(entry);
+	    if(slot != null)
+		releaseSlot(slot);
+	}
+	pagingLock.release();
+    }
+
+    /**
+     * Get a frame, evicting the page in some other frame if none is free.
+     * The frame is returned pinned, so that it cannot be chosen for
+     * eviction before the caller has put a page in it and unpinned it.
+     * The paging lock must be held; it is released while the evicted page
+     * is written to swap.
+     *
+     * @return  The frame number.
+     */
+    private static int allocateFrame() {
+	int frame = frames.allocate();
+	if(frame < 0) {
+	    frame = policy.chooseVictim(pins);
+	    pins[frame]++;
+	    evict(frame);
+	} else {
+	    pins[frame]++;
+	}
+	return frame;
+    }
+
+    /**
+     * Take the page out of a frame, writing it to swap if it is dirty.
+     * A shared frame is taken away from every entry that maps it, and any
+     * copy-on-write sharing of the page ends: the entries share the swap
+     * slot, if it is written out, and each reads in a copy of its own.
+     * The frame stays allocated, for the caller to reuse.
+     * The paging lock must be held; it is released while the page is
+     * written out, with its entries in transit and the frame pinned (by
+     * the caller).
+     *
+     * @param frame  The frame.
+     */
+    private static void evict(int frame) {
+	List<TranslationEntry> entries = sharedFrames.remove(frame);
+	if(entries == null) {
+	    entries = new ArrayList<TranslationEntry>(1);
+	    entries.add(frameEntry[frame]);
+	}
+	boolean dirty = false;
+	for(TranslationEntry entry : entries) {
+	    entry.valid = false;	// Further accesses fault, and wait for the transfer
+	    dirty |= entry.dirty;
+	    if(copyOnWrite.remove(entry))
+		entry.readOnly = false;
+	}
+	int vpn = frameEntry[frame].virtualPage;
+	uncache(frame);
+	frameEntry[frame] = null;
+	evictions++;
+	if(dirty) {
+	    int slot = swapMap.find();
+	    Debug.ASSERT(slot >= 0, "Out of swap space");
+	    slotRefs[slot] = entries.size();
+	    inTransit.addAll(entries);
+	    Debug.println('a', "Paging out page " + vpn + " to swap slot " + slot);
+	    pagingLock.release();
+	    swapFile.writeAt(Machine.mainMemory, frame * Machine.PageSize, Machine.PageSize,
+		    (long)slot * Machine.PageSize);
+	    pagingLock.acquire();
+	    for(TranslationEntry entry : entries)
+		swapSlots.put(entry, slot);
+	    inTransit.removeAll(entries);
+	    transferDone.broadcast();
+	    pageOuts++;
+	} else {
+	    Debug.println('a', "Dropping clean page " + vpn);
 	}
-	numberOfPMPLeft = numberOfPMPLeft - numPages;
-	
-	return result;
     }
-    
-    public static void pageFaultHanle() {
-	
+
+    /**
+     * Return a frame to the free pool.
+     * The paging lock must be held.
+     *
+     * @param frame  The frame.
+     */
+    private static void freeFrame(int frame) {
+	policy.freed(frame);
+	uncache(frame);
+	frameEntry[frame] = null;
+	frames.free(frame);
     }
-    
+
+    /**
+     * Create the page replacement policy selected by
+     * Options.PAGE_REPLACEMENT: "fifo", "clock" or "aging".
+     *
+     * @return  The new policy.
+     */
+    private static PageReplacementPolicy newPolicy() {
+	String name = Nachos.options.PAGE_REPLACEMENT;
+	if(name.equals("fifo")) {
+	    return new FIFOReplacement(Machine.NumPhysPages);
+	} else if(name.equals("aging")) {
+	    return new AgingReplacement(frameEntry);
+	} else {
+	    Debug.ASSERT(name.equals("clock"), "Unknown page replacement policy: " + name);
+	    return new ClockReplacement(frameEntry);
+	}
+    }
+
+    /**
+     * Set up paging when the first address space starts: create the
+     * replacement policy and, if -pfr was given, arrange for paging
+     * activity to be reported when the simulation stops, which it does by
+     * exiting the Java virtual machine.
+     * The paging lock must be held.
+     */
+    private static void init() {
+	policy = newPolicy();
+	if(Nachos.options.PAGING_REPORT) {
+	    Runtime.getRuntime().addShutdownHook(new Thread() {
+		public void run() {
+		    System.out.print(report());
+		    System.out.flush();
+		}
+	    });
+	}
+    }
+
+    /**
+     * Set up swap when the address spaces first reserve more pages than
+     * physical memory holds: create the swap file of Options.SWAP_PAGES
+     * pages, if that is not 0, or say so and run without swap if it cannot
+     * be created.  The paging lock must be held.
+     */
+    private static void initSwap() {
+	int pages = Nachos.options.SWAP_PAGES;
+	Debug.println('a', "More pages reserved than memory holds, setting up " + pages + " pages of swap");
+	if(pages > 0 && Nachos.fileSystem != null)
+	    swapFile = openSwapFile((long)pages * Machine.PageSize);
+	if(swapFile != null) {
+	    swapPages = pages;
+	} else if(pages > 0) {
+	    System.out.println("Unable to create a swap file of " + pages
+		    + " pages, running without swap (see -swap)");
+	}
+	swapMap = new BitMap(Math.max(swapPages, 1));
+	slotRefs = new int[Math.max(swapPages, 1)];
+	if(swapPages == 0)
+	    swapMap.mark(0);
+    }
+
+    /**
+     * Open the swap file, creating it if there is none.  A swap file left
+     * on the disk by an earlier run is reused if it is the right size, and
+     * otherwise replaced.  Its old contents do not matter: every slot starts
+     * out free.
+     *
+     * @param size  The size of the swap file, in bytes.
+     * @return  The swap file, or null if it could not be created.
+     */
+    private static OpenFile openSwapFile(long size) {
+	OpenFile file = Nachos.fileSystem.open(SWAP_FILE_NAME);
+	if(file != null) {
+	    if(file.length() == size)
+		return file;
+	    Debug.println('a', "Replacing swap file of " + file.length() + " bytes");
+	    file.close();
+	    Nachos.fileSystem.remove(SWAP_FILE_NAME);
+	}
+	if(!Nachos.fileSystem.create(SWAP_FILE_NAME, size))
+	    return null;
+	return Nachos.fileSystem.open(SWAP_FILE_NAME);
+    }
+
+    /**
+     * Describe the paging activity so far.  Page faults taken by the MMU
+     * are counted by the machine; some of them find the page already brought
+     * in by another thread, so pageIns can be smaller.
+     *
+     * @return  The report.
+     */
+    private static String report() {
+	long userTicks = 0;
+	for(int ticks : Simulation.stats.userTicks)
+	    userTicks += ticks;
+	int faults = Simulation.stats.numPageFaults;
+	return String.format("Paging (%s): faults %d, page-ins %d (%d from swap), evictions %d (%d written to swap),"
+		+ " page cache hits %d, copy-on-write copies %d, %.2f faults per 1000 user ticks\n",
+		Nachos.options.PAGE_REPLACEMENT, faults, pageIns, swapIns, evictions, pageOuts, cacheHits, copies,
+		(userTicks == 0 ? 0.0 : 1000.0 * faults / userTicks));
+    }
+
 }
@@ -0,0 +1,39 @@
+package nachos.kernel.userprog;
+
+/**
+ * A page replacement policy decides which resident user page MemoryManager
+ * evicts when it needs a frame and none is free.  Policies are selected with
+ * Options.PAGE_REPLACEMENT, and see the pages through the frame table, whose
+ * entries have the use and dirty bits that the MMU sets on each access.
+ * MemoryManager calls the policy with the paging lock held, so
+ * implementations do no synchronization of their own.
+ */
+public interface PageReplacementPolicy {
+
+    /**
+     * Note that a page has been loaded into a frame.
+     *
+     * @param frame  The frame.
+     */
+    public void loaded(int frame);
+
+    /**
+     * Note that the page in a frame has been discarded (its address space
+     * or thread has exited), leaving the frame free.
+     *
+     * @param frame  The frame.
+     */
+    public void freed(int frame);
+
+    /**
+     * Choose the frame whose page is to be evicted.  Only called when every
+     * frame holds a page.  The caller evicts the page, and then loads another
+     * page into the frame.  Frames that the kernel has pinned are never
+     * chosen; at least one frame is not pinned.
+     *
+     * @param pins  The number of times each frame is pinned.
+     * @return  The frame.
+     */
+    public int chooseVictim(int[] pins);
+
+}
@@ -3,13 +3,138 @@ package nachos.kernel.userprog;
 import java.util.ArrayList;
 import java.util.List;
 
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.kernel.threads.SpinLock;
 import nachos.kernel.threads.SubNachosThread;
+import nachos.machine.CPU;
+import nachos.machine.Simulation;
+import nachos.machine.Timer;
+import nachos.util.TimingWheel;
 
 /*
- * This is the class for keeping track of sleeping threads
+ * This is the class for keeping track of sleeping threads.
+ * Sleepers are kept in a timing wheel keyed on the timer interval in which they
+ * are due to wake, so going to sleep takes constant time and a timer tick only
+ * touches the threads that actually wake up.  Wake-up times are absolute, so
+ * it does not matter how many CPUs' timers call wakeExpired().
+ * The same wheel holds "alarms", which the timed waits of the kernel
+ * synchronization classes use to give up waiting.  Like sleeps, alarms only
+ * go off if the CPU timers are running (the -ps option), so the timed waits
+ * refuse to start without them (see checkAlarms()).
  * */
 public class SleepListManager {
-   
-    public static List<SubNachosThread> SleepListArray = new ArrayList<>();
+    
+    /** Resolution of sleeps, in ticks: one timer interval. */
+    private static final int RESOLUTION = Timer.DefaultInterval;
+    
+    private static final TimingWheel<Runnable> sleepWheel =
+	    new TimingWheel<Runnable>(Simulation.currentTime() / RESOLUTION);
+    
+    /** Alarms found due by the current call of wakeExpired(). */
+    private static final List<Runnable> expired = new ArrayList<>();
+    
+    private static final SpinLock sleepLock = new SpinLock("sleep list lock");
+    
+    /**
+     * Arrange for a thread to be woken, by a V() on its sleep semaphore, at the
+     * first timer interrupt at least a given number of ticks from now.
+     * The thread should P() its sleep semaphore after calling this.
+     * 
+     * @param thread  The thread that is going to sleep.
+     * @param ticks  The number of ticks to sleep.
+     */
+    public static void sleep(final SubNachosThread thread, int ticks) {
+	setAlarm(new Runnable() {
+	    public void run() {
+		thread.setWakeupFlag();
+		thread.getSleepSem().V();
+	    }
+	}, ticks);
+    }
+    
+    /**
+     * Arrange for an alarm to go off at the first timer interrupt at least a
+     * given number of ticks from now.  The alarm is run from the timer
+     * interrupt handler with interrupts disabled, so it must not block.
+     * An alarm that is no longer wanted should be withdrawn with
+     * cancelAlarm().  That can come too late, since alarms are run after
+     * they have been taken out of the wheel, so an alarm must still find
+     * out for itself whether it has anything to do.
+     * 
+     * @param alarm  What to do when the time comes.
+     * @param ticks  The number of ticks from now.
+     * @return  A handle by which the alarm can be withdrawn.
+     */
+    public static Object setAlarm(Runnable alarm, long ticks) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	sleepLock.acquire();
+	long due = ((long)Simulation.currentTime() + ticks + RESOLUTION - 1) / RESOLUTION;
+	Object handle = sleepWheel.add(alarm, due);
+	sleepLock.release();
+	Nachos.scheduler.timerNeeded();
+	CPU.setLevel(oldLevel);
+	return handle;
+    }
+    
+    /**
+     * Make sure that alarms will go off, before a timed wait relies on one
+     * to end it.  Without the CPU timers there are no timer interrupts to
+     * run the alarms, and the wait would never time out, so that is a
+     * fatal error rather than a hang.
+     * 
+     * @param what  The timed wait, for the error message.
+     */
+    public static void checkAlarms(String what) {
+	Debug.ASSERT(Nachos.options.CPU_TIMERS,
+		what + " needs the CPU timers (-ps) to time out");
+    }
+    
+    /**
+     * Withdraw an alarm that has not yet gone off.
+     * 
+     * @param handle  The handle that setAlarm() returned for the alarm.
+     * @return  true if the alarm was withdrawn, false if it has already
+     * been taken out to be run, or was withdrawn before.
+     */
+    public static boolean cancelAlarm(Object handle) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	sleepLock.acquire();
+	boolean cancelled = sleepWheel.cancel(handle);
+	sleepLock.release();
+	CPU.setLevel(oldLevel);
+	return cancelled;
+    }
+    
+    /**
+     * Determine whether any thread is sleeping.  The answer may be out of
+     * date by the time it is used, unless the caller excludes sleep().
+     * 
+     * @return  true if some thread is waiting to be woken up.
+     */
+    public static boolean hasSleepers() {
+	return sleepWheel.size() > 0;
+    }
+    
+    /**
+     * Wake every sleeping thread, and set off every alarm, whose time has
+     * come.  Called from the timer interrupt handler, with interrupts disabled.
+     * The alarms are run after the sleep list lock has been released, so
+     * that they can take the locks of whatever they wake up.
+     */
+    public static void wakeExpired() {
+	List<Runnable> due;
+	sleepLock.acquire();
+	sleepWheel.advance(Simulation.currentTime() / RESOLUTION, expired);
+	if(expired.isEmpty()) {
+	    sleepLock.release();
+	    return;
+	}
+	due = new ArrayList<Runnable>(expired);
+	expired.clear();
+	sleepLock.release();
+	for(Runnable alarm : due)
+	    alarm.run();
+    }
     
 }
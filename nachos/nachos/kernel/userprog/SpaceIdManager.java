@@ -3,6 +3,8 @@ package nachos.kernel.userprog;
 import java.util.ArrayList;
 import java.util.List;
 
+import nachos.kernel.threads.ReadWriteLock;
+
 /*
  * This is the class for keeping track of the Space Id
  * */
@@ -12,6 +14,40 @@ public class SpaceIdManager {
      * An array stored all the AddrSpace element the location
      *  number is the space id. 
      * */
-    public static List<AddrSpace> AddrSpaceArray = new ArrayList<>();
+    private static List<AddrSpace> AddrSpaceArray = new ArrayList<>();
+    
+    /*
+     * Lookups of AddrSpaceArray (such as those made by join) hold this
+     * lock for reading, so they can proceed in parallel; adding a new
+     * address space holds it for writing.
+     * */
+    private static final ReadWriteLock arrayLock = new ReadWriteLock("space id lock");
+    
+    /**
+     * Give a new address space the next space id.
+     * 
+     * @param space  The address space.
+     * @return  Its space id.
+     */
+    public static int register(AddrSpace space) {
+	arrayLock.writeLock();
+	int id = AddrSpaceArray.size();
+	AddrSpaceArray.add(space);
+	arrayLock.writeUnlock();
+	return id;
+    }
+    
+    /**
+     * Find the address space with a given space id.
+     * 
+     * @param id  The space id.
+     * @return  The address space.
+     */
+    public static AddrSpace get(int id) {
+	arrayLock.readLock();
+	AddrSpace space = AddrSpaceArray.get(id);
+	arrayLock.readUnlock();
+	return space;
+    }
     
 }
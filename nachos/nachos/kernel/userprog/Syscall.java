@@ -12,11 +12,14 @@ import java.util.List;
 import nachos.Debug;
 import nachos.kernel.Nachos;
 import nachos.kernel.devices.ConsoleDriver;
+import nachos.kernel.threads.DeadlineScheduling;
 import nachos.kernel.threads.Scheduler;
 import nachos.kernel.threads.SpinLock;
+import nachos.kernel.threads.SubNachosThread;
 import nachos.kernel.userprog.test.ProgTest;
 import nachos.machine.CPU;
 import nachos.machine.MIPS;
+import nachos.machine.Machine;
 import nachos.machine.NachosThread;
 import nachos.machine.Simulation;
 
@@ -73,9 +76,21 @@ public class Syscall {
     /** Integer code identifying the "Sleep" system call. */
     public static final byte SC_Sleep = 12;
 
+    /** Integer code identifying the "SetAffinity" system call. */
+    public static final byte SC_SetAffinity = 13;
+
+    /** Integer code identifying the "SetRealTime" system call. */
+    public static final byte SC_SetRealTime = 14;
+
     /** Integer code identifying the "Sleep" system call. */
     public static final byte SC_Mmap = 15;
 
+    /** Integer code identifying the "ForkSpace" system call. */
+    public static final byte SC_ForkSpace = 16;
+
+    /** Integer code identifying the "SetTickets" system call. */
+    public static final byte SC_SetTickets = 17;
+
     /**
      * Stop Nachos, and print out performance stats.
      */
@@ -96,8 +111,6 @@ public class Syscall {
     public static void exit(int status) {
 	((UserThread)NachosThread.currentThread()).setExitFlag(); // Stop timer interrupt disrupting current thread
 	
-	Nachos.scheduler.getMultilevelQueueOperator().setCurrentBurst(Nachos.scheduler.getEachBurstCounter()); // Fetch burst actually used
-	
 	Debug.println('+', "User program exits with status=" + status + ": " + NachosThread.currentThread().name);
 	
 	AddrSpace space =  ((UserThread)NachosThread.currentThread()).space;
@@ -115,8 +128,7 @@ public class Syscall {
 	    
 	    space.getSemaphore().V(); // I cant call V() directly cuz over one thread in a address will call exit(int)
 	} else{
-	    int[] PMPArray = space.freeStack(((UserThread)NachosThread.currentThread()).getPageTable());
-	    MemoryManager.freeStackPMP(PMPArray);
+	    MemoryManager.freeStackPMP(space, ((UserThread)NachosThread.currentThread()).getPageTable());
 	}
 	
 	space.getThreadCounter().decrement();; // Decrement 
@@ -159,7 +171,7 @@ public class Syscall {
     public static int join(int id) {
 	Debug.println('+', "Space id in join: "+id);
 	
-	AddrSpace space = SpaceIdManager.AddrSpaceArray.get(id); // Get the space context mapping to id
+	AddrSpace space = SpaceIdManager.get(id); // Get the space context mapping to id
 	
 	space.getSemaphore().P(); // Freeze the thread that invokes join()
 	
@@ -319,6 +331,25 @@ public class Syscall {
 	new ForkFunction(func, space);
     }
 
+    /**
+     * Fork the calling process, in the way of UNIX fork(): create a new
+     * address space that is a copy of the caller's, sharing its pages
+     * copy-on-write, with one thread that continues from the same point as
+     * the calling thread.  Only the calling thread is copied.
+     *
+     * @return  In the caller, the space id of the new process (which can be
+     * passed to Join()), or -1 if there is not enough memory and swap for it;
+     * in the new process, 0.
+     */
+    public static int forkSpace() {
+	UserThread thread = (UserThread)NachosThread.currentThread();
+	AddrSpace space = thread.space.fork(thread.getPageTable());
+	if(space == null)
+	    return -1;
+	new ForkProcess(space);
+	return space.getSpaceId();
+    }
+
     /**
      * Yield the CPU to another runnable thread, whether in this address space 
      * or not. 
@@ -334,13 +365,79 @@ public class Syscall {
     public static void sleep(int ticks) {
 	Debug.println('+', "Printing ticks passed to sleep sys call: "+ticks);
 	
-	((UserThread)NachosThread.currentThread()).setSleepTicks(ticks);
-	
-	SleepListManager.SleepListArray.add((UserThread)NachosThread.currentThread()); // Add to sleep list
+	SleepListManager.sleep((UserThread)NachosThread.currentThread(), ticks); // Add to sleep list
 	
 	((UserThread)NachosThread.currentThread()).getSleepSem().P(); // Block for number of ticks
     }
     
+    /**
+     * Restrict the calling thread to a set of CPUs.  If the thread is running
+     * on a CPU that the new mask does not allow, it moves to one that it does.
+     * 
+     * @param mask  Bit i is set to allow the thread to run on CPU i.
+     * @return  The previous mask, or -1 (leaving the mask unchanged) if the new
+     * mask allows none of the CPUs of this machine.
+     */
+    public static int setAffinity(int mask) {
+	int allCPUs = (Machine.NUM_CPUS >= 32 ? SubNachosThread.ALL_CPUS : (1 << Machine.NUM_CPUS) - 1);
+	if((mask & allCPUs) == 0)
+	    return -1;
+	
+	SubNachosThread thread = (SubNachosThread)NachosThread.currentThread();
+	int oldMask = thread.getAffinityMask() & allCPUs;
+	thread.setAffinityMask(mask & allCPUs);
+	Debug.println('+', "Affinity of " + thread.name + " set to " + Integer.toHexString(mask & allCPUs));
+	if(!thread.canRunOn(CPU.currentCPU().unit))
+	    Nachos.scheduler.yieldThread(); // Move to an allowed CPU
+	return oldMask;
+    }
+    
+    /**
+     * Set the number of tickets held by the calling thread.  Under the
+     * stride and lottery policies (-sp stride, -sp lottery) each thread gets
+     * a share of the CPU in proportion to its tickets; every thread starts
+     * with SubNachosThread.DEFAULT_TICKETS.  Other policies ignore tickets.
+     * 
+     * @param tickets  The new number of tickets, at least 1.
+     * @return  The previous number of tickets, or -1 (leaving it unchanged)
+     * if tickets is less than 1.
+     */
+    public static int setTickets(int tickets) {
+	if(tickets < 1)
+	    return -1;
+	SubNachosThread thread = (SubNachosThread)NachosThread.currentThread();
+	int oldTickets = thread.getTickets();
+	thread.setTickets(tickets);
+	Debug.println('+', "Tickets of " + thread.name + " set to " + tickets);
+	return oldTickets;
+    }
+
+    /**
+     * Make the calling thread a member of the real-time class, which runs
+     * ahead of all other threads in earliest-deadline-first order, or change
+     * its period and budget (see DeadlineScheduling).  A thread that overruns
+     * its budget is throttled until its next period begins.
+     * 
+     * @param period  The period, in ticks, or 0 to leave the real-time class.
+     * @param budget  The ticks the thread may run in each period, from 1 up
+     * to the period.
+     * @return  0 if the thread was admitted (or left the class), or -1 if the
+     * arguments are invalid or admitting the thread would overcommit the CPUs,
+     * in which case its parameters are unchanged.
+     */
+    public static int setRealTime(int period, int budget) {
+	SubNachosThread thread = (SubNachosThread)NachosThread.currentThread();
+	if(period == 0) {
+	    DeadlineScheduling.leave(thread);
+	    return 0;
+	}
+	if(period < 0 || budget <= 0 || budget > period
+		|| !DeadlineScheduling.admit(thread, period, budget))
+	    return -1;
+	Nachos.scheduler.yieldThread(); // Requeue by deadline
+	return 0;
+    }
+    
     public static void mmap(String name, int reference) {
 	
 	
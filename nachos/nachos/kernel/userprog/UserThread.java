@@ -10,7 +10,10 @@
 
 package nachos.kernel.userprog;
 
+import nachos.Debug;
+import nachos.kernel.Nachos;
 import nachos.kernel.threads.SubNachosThread;
+import nachos.kernel.threads.ThreadCache;
 import nachos.machine.MIPS;
 import nachos.machine.NachosThread;
 import nachos.machine.CPU;
@@ -21,6 +24,11 @@ import nachos.machine.TranslationEntry;
  * executing user code.  It is kept separate from AddrSpace to provide
  * for the possibility of having multiple UserThreads running in a
  * single AddrSpace.
+ *
+ * With the -tc option, threads created with create() rather than the
+ * constructor come from a ThreadCache: when such a thread exits, it waits
+ * in the cache to run another user program or forked function, instead of
+ * being destroyed.
  * 
  * @author Thomas Anderson (UC Berkeley), original C++ version
  * @author Peter Druschel (Rice University), Java translation
@@ -29,12 +37,20 @@ import nachos.machine.TranslationEntry;
 public class UserThread extends SubNachosThread {
 
     /** The context in which this thread will execute. */
-    public final AddrSpace space;
+    public volatile AddrSpace space;
+    
+    /** Finished user threads kept for reuse, or null if there is no caching. */
+    private static final ThreadCache<UserThread> cache =
+	(Nachos.options.THREAD_CACHE_SIZE == 0 ? null
+		: new ThreadCache<UserThread>("user thread cache", Nachos.options.THREAD_CACHE_SIZE));
     
     private int status;
 
     private TranslationEntry[] pageTable = null;
     
+    /** Term of the running gang this thread is counted in (see Scheduler), or 0 if none. */
+    private int gangTerm;
+    
     // A thread running a user program actually has *two* sets of 
     // CPU registers -- one for its state while executing user code,
     // and one for its state while executing kernel code.
@@ -58,6 +74,46 @@ public class UserThread extends SubNachosThread {
 	space = addrSpace;
     }
 
+    /**
+     * Initialize a new user thread that belongs to the cache.
+     *
+     * @param name  An arbitrary name, useful for debugging.
+     * @param runObj  The first body of the thread.
+     * @param addrSpace  The first context of the thread.
+     * @param cache  The cache.
+     */
+    private UserThread(String name, Runnable runObj, AddrSpace addrSpace,
+	    ThreadCache<UserThread> cache) {
+	super(name, runObj, cache);
+	space = addrSpace;
+    }
+
+    /**
+     * Get a user thread, reusing a finished one if there is one in the cache.
+     * Takes the same arguments as the constructor; a reused thread is
+     * renamed to the given name.
+     *
+     * @param name  An arbitrary name, useful for debugging.
+     * @param runObj Execution of the thread will begin with the run()
+     * method of this object.
+     * @param addrSpace  The context to be installed when this thread
+     * is executing in user mode.
+     * @return  The thread, which has not been made ready to run.
+     */
+    public static UserThread create(String name, Runnable runObj, AddrSpace addrSpace) {
+	if(cache == null)
+	    return new UserThread(name, runObj, addrSpace);
+	UserThread thread = cache.get();
+	if(thread == null)
+	    return new UserThread(name, runObj, addrSpace, cache);
+	Debug.println('t', "Thread " + thread.name + " now runs " + name);
+	thread.reuse(name, runObj);
+	thread.space = addrSpace;
+	thread.pageTable = null;
+	thread.status = 0;
+	return thread;
+    }
+
     public TranslationEntry[] getPageTable() {
 	return this.pageTable;
     }
@@ -96,6 +152,18 @@ public class UserThread extends SubNachosThread {
 
 	// Restore state associated with the address space.
 	space.restoreState();
+	
+	// A forked thread has its own page table, for its own stack.
+	if(pageTable != null)
+	    CPU.setPageTable(pageTable);
+    }
+    
+    public void setGangTerm(int term) {
+	gangTerm = term;
+    }
+    
+    public int getGangTerm() {
+	return gangTerm;
     }
     
     public void setStauts(int value) {
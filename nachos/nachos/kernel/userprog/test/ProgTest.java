@@ -46,7 +46,7 @@ public class ProgTest implements Runnable {
 
 	execName = filename;
 	space = new AddrSpace();
-	UserThread t = new UserThread(name, this, space);
+	UserThread t = UserThread.create(name, this, space);
 	
 	Nachos.scheduler.readyToRun(t);
     }
@@ -72,7 +72,9 @@ public class ProgTest implements Runnable {
 
 	AddrSpace space = ((UserThread)NachosThread.currentThread()).space;
 	if(space.exec(executable) == -1) {
-	    Debug.println('+', "Unable to read executable file: " + execName);
+	    Debug.println('+', "Unable to load executable file: " + execName);
+	    space.setStauts(-1);	// Let a Join() of the program return
+	    space.getSemaphore().V();
 	    Nachos.scheduler.finishThread();
 	    return;
 	}
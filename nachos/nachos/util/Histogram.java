@@ -0,0 +1,159 @@
+package nachos.util;
+
+/**
+ * A histogram of non-negative integer values (for example latencies in
+ * ticks), with buckets whose width grows with the value, in the manner of
+ * an HDR histogram: values below 16 each have their own bucket, and every
+ * power of two above that is split into 16 buckets, so that any value is
+ * known to within about 6%.  The buckets live in one array allocated up
+ * front, so record() allocates nothing and takes constant time.
+ *
+ * A histogram is not synchronized; a value recorded concurrently by two
+ * CPUs may be lost.  Keep one per CPU and merge them to report.
+ */
+public class Histogram {
+
+    /** Number of bits of each value that select the bucket within its power of two. */
+    private static final int SUB_BITS = 4;
+
+    /** Number of buckets per power of two. */
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    /** Number of buckets, enough for any int value. */
+    private static final int BUCKETS = (32 - SUB_BITS) * SUB_BUCKETS;
+
+    /** Number of values in each bucket. */
+    private final long[] counts = new long[BUCKETS];
+
+    /** Number of values recorded. */
+    private long count;
+
+    /** Sum of the values recorded. */
+    private long sum;
+
+    /** Smallest value recorded. */
+    private long min = Long.MAX_VALUE;
+
+    /** Largest value recorded. */
+    private long max;
+
+    /**
+     * Record a value.  Negative values are counted as 0, and values beyond
+     * the range of int as Integer.MAX_VALUE.
+     *
+     * @param value  The value.
+     */
+    public void record(long value) {
+	if(value < 0)
+	    value = 0;
+	else if(value > Integer.MAX_VALUE)
+	    value = Integer.MAX_VALUE;
+	counts[bucketFor(value)]++;
+	count++;
+	sum += value;
+	if(value < min)
+	    min = value;
+	if(value > max)
+	    max = value;
+    }
+
+    /**
+     * Add the values recorded in another histogram to this one.
+     *
+     * @param other  The other histogram.
+     */
+    public void add(Histogram other) {
+	for(int i = 0; i < BUCKETS; i++)
+	    counts[i] += other.counts[i];
+	count += other.count;
+	sum += other.sum;
+	min = Math.min(min, other.min);
+	max = Math.max(max, other.max);
+    }
+
+    /**
+     * Get the number of values recorded.
+     *
+     * @return  The number of values.
+     */
+    public long getCount() {
+	return count;
+    }
+
+    /**
+     * Get the smallest value recorded.
+     *
+     * @return  The smallest value, or 0 if nothing has been recorded.
+     */
+    public long getMin() {
+	return (count == 0 ? 0 : min);
+    }
+
+    /**
+     * Get the largest value recorded.
+     *
+     * @return  The largest value, or 0 if nothing has been recorded.
+     */
+    public long getMax() {
+	return max;
+    }
+
+    /**
+     * Get the mean of the values recorded.
+     *
+     * @return  The mean, or 0 if nothing has been recorded.
+     */
+    public double getMean() {
+	return (count == 0 ? 0.0 : (double)sum / count);
+    }
+
+    /**
+     * Get a percentile of the values recorded.
+     *
+     * @param percent  The percentile, from 0 to 100.
+     * @return  The largest value that falls in the same bucket as the value
+     * at that percentile, but no more than the largest value recorded;
+     * 0 if nothing has been recorded.
+     */
+    public long getPercentile(double percent) {
+	if(count == 0)
+	    return 0;
+	long rank = Math.max(1, (long)Math.ceil(percent / 100.0 * count));
+	long seen = 0;
+	for(int i = 0; i < BUCKETS; i++) {
+	    seen += counts[i];
+	    if(seen >= rank)
+		return Math.min(highestInBucket(i), max);
+	}
+	return max;
+    }
+
+    /**
+     * Find the bucket that holds a value.
+     *
+     * @param value  The value, from 0 to Integer.MAX_VALUE.
+     * @return  The index of the bucket.
+     */
+    private static int bucketFor(long value) {
+	if(value < SUB_BUCKETS)
+	    return (int)value;
+	int exponent = 63 - Long.numberOfLeadingZeros(value);
+	int shift = exponent - SUB_BITS;
+	return shift * SUB_BUCKETS + (int)(value >>> shift);
+    }
+
+    /**
+     * Find the largest value that a bucket holds.
+     *
+     * @param bucket  The index of the bucket.
+     * @return  The largest value in the bucket.
+     */
+    private static long highestInBucket(int bucket) {
+	if(bucket < 2 * SUB_BUCKETS)
+	    return bucket;
+	int shift = bucket / SUB_BUCKETS - 1;
+	long lowest = (long)(bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+	return lowest + (1L << shift) - 1;
+    }
+
+}
@@ -1,12 +1,117 @@
 package nachos.util;
 
-public class LevelQueue<T> extends FIFOQueue<T> {
+/**
+ * One level of a multilevel ready queue: a first-in, first-out queue held
+ * in a circular array, together with the time quantum given to the threads
+ * that are taken from it.  The array doubles in size when it fills up and
+ * never shrinks, so once a level has grown to its working size, offer() and
+ * poll() run in constant time without allocating anything.
+ */
+public class LevelQueue<T> implements Queue<T> {
+
+    /** Default initial capacity; must be a power of two. */
+    private static final int DEFAULT_CAPACITY = 16;
+
+    /** Circular buffer of elements; its length is always a power of two. */
+    private Object[] elements;
+
+    /** Index of the element at the head of the queue. */
+    private int head;
+
+    /** Number of elements in the queue. */
+    private int size;
+
     private int quantum;
-    
+
+    public LevelQueue() {
+	elements = new Object[DEFAULT_CAPACITY];
+    }
+
+    public boolean offer(T e) {
+	if(size == elements.length)
+	    grow();
+	elements[(head + size) & (elements.length - 1)] = e;
+	size++;
+	return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T peek() {
+	return (size == 0 ? null : (T)elements[head]);
+    }
+
+    @SuppressWarnings("unchecked")
+    public T poll() {
+	if(size == 0)
+	    return null;
+	T e = (T)elements[head];
+	elements[head] = null;
+	head = (head + 1) & (elements.length - 1);
+	size--;
+	return e;
+    }
+
+    /**
+     * Get an element without removing it.
+     *
+     * @param i  The position of the element, 0 being the head of the queue.
+     * @return the element, or null if the queue has no such position.
+     */
+    @SuppressWarnings("unchecked")
+    public T get(int i) {
+	return (i < 0 || i >= size ? null : (T)elements[(head + i) & (elements.length - 1)]);
+    }
+
+    public boolean isEmpty() {
+	return size == 0;
+    }
+
+    /**
+     * Get the number of elements in this queue.
+     *
+     * @return the number of elements in this queue.
+     */
+    public int size() {
+	return size;
+    }
+
+    /**
+     * Remove a given element from this queue, keeping the others in order.
+     * This takes time linear in the size of the queue.
+     *
+     * @param e  The element to remove.
+     * @return true if the element was found and removed.
+     */
+    public boolean remove(T e) {
+	int mask = elements.length - 1;
+	for(int i = 0; i < size; i++) {
+	    if(elements[(head + i) & mask] == e) {
+		for(int j = i; j < size - 1; j++)
+		    elements[(head + j) & mask] = elements[(head + j + 1) & mask];
+		elements[(head + size - 1) & mask] = null;
+		size--;
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    /**
+     * Double the capacity of the buffer, unwrapping its contents so that
+     * the head of the queue ends up at index 0.
+     */
+    private void grow() {
+	Object[] larger = new Object[2 * elements.length];
+	for(int i = 0; i < size; i++)
+	    larger[i] = elements[(head + i) & (elements.length - 1)];
+	elements = larger;
+	head = 0;
+    }
+
     public void setQuantum(int num) {
 	quantum = num;
     }
-    
+
     public int getQuantum() {
 	return quantum;
     }
@@ -0,0 +1,92 @@
+package nachos.util;
+
+import nachos.machine.TestAndSetVariable;
+
+/**
+ * A FIFO queue for many producers and a single consumer, in which nobody
+ * ever waits for anybody else.  offer() may be called by any number of
+ * threads at once; peek(), poll() and isEmpty() must only be called by the
+ * one consuming thread.
+ *
+ * The elements form a linked list whose links are set with the machine's
+ * test-and-set, which only sets a link that is still unset.  A producer
+ * appends its node by test-and-setting the link of the last node, so of
+ * several producers appending at once exactly one succeeds; the others
+ * move on to the node that was just linked and try again.  A retry only
+ * happens because some other producer has appended, so the queue is
+ * lock-free.  The tail is only a hint of where the last node is, which
+ * producers start looking from; it can lag behind.  An element is visible
+ * to the consumer as soon as it has been linked in.
+ */
+public class MPSCQueue<T> implements Queue<T> {
+
+    /** A link in the list. */
+    private static class Node<T> {
+	T item;
+	final TestAndSetVariable<Node<T>> next = new TestAndSetVariable<Node<T>>();
+
+	Node(T item) {
+	    this.item = item;
+	}
+    }
+
+    /** The last node, or a node some way before it. */
+    private volatile Node<T> tail;
+
+    /** The node before the first element; only the consumer touches it. */
+    private Node<T> head;
+
+    /**
+     * Initialize an empty queue.
+     */
+    public MPSCQueue() {
+	head = new Node<T>(null);
+	tail = head;
+    }
+
+    /**
+     * Add an element at the end of the queue.  Safe to call from any thread.
+     *
+     * @param e  The element.
+     * @return true.
+     */
+    @Override
+    public boolean offer(T e) {
+	Node<T> node = new Node<T>(e);
+	Node<T> last = tail;
+	for(;;) {
+	    Node<T> next = last.next.getValue();
+	    if(next == null) {
+		if(last.next.testAndSet(node) == null)
+		    break;
+		next = last.next.getValue();	// Another producer got there first
+	    }
+	    last = next;
+	}
+	tail = node;
+	return true;
+    }
+
+    @Override
+    public T peek() {
+	Node<T> next = head.next.getValue();
+	return (next == null ? null : next.item);
+    }
+
+    @Override
+    public T poll() {
+	Node<T> next = head.next.getValue();
+	if(next == null)
+	    return null;
+	T item = next.item;
+	next.item = null;	// next becomes the new head
+	head = next;
+	return item;
+    }
+
+    @Override
+    public boolean isEmpty() {
+	return head.next.getValue() == null;
+    }
+
+}
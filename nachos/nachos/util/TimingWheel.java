@@ -0,0 +1,204 @@
+package nachos.util;
+
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel, for keeping a large number of items that are
+ * each due at some absolute time, measured in whole "units" of a clock.
+ * Level 0 has one slot per unit for the next 64 units, level 1 one slot per
+ * 64 units for the next 64*64 units, and so on.  Adding an item takes
+ * constant time.  Advancing the clock touches only the items that fall due,
+ * except that every 64^k units the items in one slot of level k are moved
+ * down to a finer level, which costs at most one move per item per level.
+ * Items due beyond the span of the top level wait in its last slot and are
+ * moved again each time it comes round.
+ *
+ * An item can also be withdrawn before it falls due, in constant time,
+ * through the handle that add() returns for it.
+ *
+ * This class does no synchronization of its own; callers must provide it.
+ */
+public class TimingWheel<T> {
+
+    /** Number of bits of the due time resolved by each level. */
+    private static final int SLOT_BITS = 6;
+
+    /** Number of slots in each level. */
+    private static final int SLOTS = 1 << SLOT_BITS;
+
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    /** Number of levels. */
+    private static final int LEVELS = 4;
+
+    /** Number of units covered by the whole wheel. */
+    private static final long SPAN = 1L << (SLOT_BITS * LEVELS);
+
+    /** An item together with its due time, linked into one slot. */
+    private static class Entry<T> {
+	final T item;
+	final long due;
+	Entry<T> prev;
+	Entry<T> next;
+	/** Level and slot of the list the entry is in; level is -1 once it is in none. */
+	int level = -1;
+	int slot;
+
+	Entry(T item, long due) {
+	    this.item = item;
+	    this.due = due;
+	}
+    }
+
+    /** Heads of the slot lists, indexed by level and slot. */
+    private final Entry<T>[][] wheel;
+
+    /** The latest time up to which the wheel has been advanced. */
+    private long current;
+
+    /** Number of items in the wheel. */
+    private int size;
+
+    /**
+     * Initialize an empty timing wheel.
+     *
+     * @param start  The current time, in units.
+     */
+    public TimingWheel(long start) {
+	wheel = newWheel();
+	current = start;
+    }
+
+    /**
+     * Create the slot list heads.  Arrays of a generic type can only be
+     * made through a wildcard type and a cast.
+     *
+     * @return  An array with a null head for each level and slot.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> Entry<T>[][] newWheel() {
+	return (Entry<T>[][])new Entry<?>[LEVELS][SLOTS];
+    }
+
+    /**
+     * Add an item to the wheel.  An item that is due no later than the time
+     * the wheel has reached is delivered on the next advance.
+     *
+     * @param item  The item to add.
+     * @param due  The time at which the item falls due, in units.
+     * @return  A handle by which the item can be withdrawn with cancel().
+     */
+    public Object add(T item, long due) {
+	Entry<T> e = new Entry<T>(item, Math.max(due, current + 1));
+	insert(e);
+	size++;
+	return e;
+    }
+
+    /**
+     * Withdraw an item that has not yet fallen due.
+     *
+     * @param handle  The handle that add() returned for the item.
+     * @return  true if the item was withdrawn, false if it had already
+     * fallen due or been withdrawn.
+     */
+    @SuppressWarnings("unchecked")
+    public boolean cancel(Object handle) {
+	Entry<T> e = (Entry<T>)handle;
+	if(e.level < 0)
+	    return false;
+	unlink(e);
+	size--;
+	return true;
+    }
+
+    /**
+     * Advance the wheel to a given time, collecting the items that have
+     * fallen due, in order of due time.
+     *
+     * @param now  The current time, in units.
+     * @param expired  List to which the items that have fallen due are appended.
+     */
+    public void advance(long now, List<T> expired) {
+	if(size == 0) {
+	    current = Math.max(current, now);
+	    return;
+	}
+	while(current < now && size > 0) {
+	    current++;
+	    // At the start of each coarser period, spread its slot over the finer levels.
+	    int index = (int)(current & SLOT_MASK);
+	    for(int level = 1; index == 0 && level < LEVELS; level++) {
+		index = (int)((current >> (SLOT_BITS * level)) & SLOT_MASK);
+		Entry<T> e = wheel[level][index];
+		wheel[level][index] = null;
+		while(e != null) {
+		    Entry<T> next = e.next;
+		    e.level = -1;
+		    insert(e);
+		    e = next;
+		}
+	    }
+	    int slot = (int)(current & SLOT_MASK);
+	    Entry<T> e = wheel[0][slot];
+	    wheel[0][slot] = null;
+	    while(e != null) {
+		Entry<T> next = e.next;
+		e.level = -1;
+		e.prev = e.next = null;
+		expired.add(e.item);
+		size--;
+		e = next;
+	    }
+	}
+	current = Math.max(current, now);
+    }
+
+    /**
+     * Get the number of items in the wheel.
+     *
+     * @return  The number of items that have not yet fallen due.
+     */
+    public int size() {
+	return size;
+    }
+
+    /**
+     * Link an entry into the slot for its due time, at the finest level
+     * whose span, counted from the current time, covers it.
+     *
+     * @param e  The entry, which must be due after the current time.
+     */
+    private void insert(Entry<T> e) {
+	long delta = e.due - current;
+	long when = (delta < SPAN ? e.due : current + SPAN - 1);
+	int level = 0;
+	while(level < LEVELS - 1 && (when - current) >= (1L << (SLOT_BITS * (level + 1))))
+	    level++;
+	int slot = (int)((when >> (SLOT_BITS * level)) & SLOT_MASK);
+	e.level = level;
+	e.slot = slot;
+	e.prev = null;
+	e.next = wheel[level][slot];
+	if(e.next != null)
+	    e.next.prev = e;
+	wheel[level][slot] = e;
+    }
+
+    /**
+     * Take an entry out of the slot list it is in.
+     *
+     * @param e  The entry, which must be in a slot list.
+     */
+    private void unlink(Entry<T> e) {
+	if(e.prev != null)
+	    e.prev.next = e.next;
+	else
+	    wheel[e.level][e.slot] = e.next;
+	if(e.next != null)
+	    e.next.prev = e.prev;
+	e.prev = e.next = null;
+	e.level = -1;
+    }
+
+}
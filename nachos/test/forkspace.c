@@ -0,0 +1,63 @@
+/* Basic test of ForkSpace() system call.
+ *
+ * The child must get 0 and see the data as it was at the fork; its writes
+ * must go to its own copy of the page.  The parent must get the child's
+ * SpaceId, which Join() then uses to collect the child's exit status, and
+ * its own copy of the page must be unchanged.
+ */
+
+#include "syscall.h"
+
+void print(char *s);
+
+/* Initialized data, so that the page starts out shared with the executable. */
+int data[64] = { 1, 2, 3 };
+
+int
+main()
+{
+  SpaceId child;
+  int status;
+
+  data[1] = 20;			/* written before the fork: both copies see it */
+
+  child = ForkSpace();
+  if (child == 0) {
+    if (data[0] != 1 || data[1] != 20) {
+      print("ForkSpace: child did not get the parent's data\r\n");
+      Exit(1);
+    }
+    data[0] = 100;		/* first write: the child gets its own copy */
+    data[63] = 200;
+    if (data[0] != 100 || data[63] != 200) {
+      print("ForkSpace: child's write was lost\r\n");
+      Exit(2);
+    }
+    print("ForkSpace: child wrote its copy\r\n");
+    Exit(42);
+  }
+
+  if (child < 0) {
+    print("ForkSpace: failed\r\n");
+    Exit(3);
+  }
+  status = Join(child);
+  if (status != 42) {
+    print("ForkSpace: parent did not get the child's SpaceId\r\n");
+    Exit(4);
+  }
+  if (data[0] != 1 || data[1] != 20 || data[2] != 3 || data[63] != 0) {
+    print("ForkSpace: child's write changed the parent's copy\r\n");
+    Exit(5);
+  }
+  print("ForkSpace: parent's copy unchanged\r\n");
+  Exit(0);
+}
+
+void print(char *s)
+{
+  int n;
+
+  for (n = 0; s[n] != '\0'; n++);
+  Write(s, n, ConsoleOutput);
+}
@@ -0,0 +1,44 @@
+/* Basic test of SetAffinity() system call.
+ *
+ * Pin the program to CPU 0, do some work there, then restore the mask it
+ * started with.  Run with -ncpu 2 or more to see it move between CPUs.
+ */
+
+#include "syscall.h"
+
+void print(char *s);
+
+int
+main()
+{
+  int all, old, i, j;
+
+  if (SetAffinity(0) != -1) {
+    print("SetAffinity: an empty mask was accepted\r\n");
+    Exit(1);
+  }
+  all = SetAffinity(1);		/* CPU 0 only; returns the starting mask */
+  if (all == -1 || (all & 1) == 0) {
+    print("SetAffinity: bad starting mask\r\n");
+    Exit(2);
+  }
+  for (i = 0; i < 5; i++) {
+    for (j = 0; j < 100; j++);
+    Yield();
+  }
+  old = SetAffinity(all);
+  if (old != 1) {
+    print("SetAffinity: did not return the previous mask\r\n");
+    Exit(3);
+  }
+  print("SetAffinity: ok\r\n");
+  Exit(0);
+}
+
+void print(char *s)
+{
+  int n;
+
+  for (n = 0; s[n] != '\0'; n++);
+  Write(s, n, ConsoleOutput);
+}
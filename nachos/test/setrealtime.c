@@ -0,0 +1,61 @@
+/* Basic test of SetRealTime() system call.
+ *
+ * Invalid arguments must be refused.  With one CPU (-ncpu 1, and -ps for
+ * Sleep), a thread is admitted with 60% of the CPU and sleeps; while it is
+ * a member of the real-time class, another thread asking for 60% must be
+ * refused, and one asking for 20% admitted.
+ */
+
+#include "syscall.h"
+
+void print(char *s);
+void foo();
+
+int admitted = 0;
+
+int
+main()
+{
+  if (SetRealTime(1000, 0) != -1 || SetRealTime(1000, 2000) != -1
+      || SetRealTime(-1000, 100) != -1) {
+    print("SetRealTime: invalid arguments were accepted\r\n");
+    Exit(1);
+  }
+  Fork(&foo);
+  while (!admitted)
+    Yield();
+  if (SetRealTime(1000, 600) != -1) {
+    print("SetRealTime: the CPU was overcommitted\r\n");
+    Exit(2);
+  }
+  if (SetRealTime(1000, 200) != 0) {
+    print("SetRealTime: a thread that fits was refused\r\n");
+    Exit(3);
+  }
+  if (SetRealTime(0, 0) != 0) {
+    print("SetRealTime: could not leave the real-time class\r\n");
+    Exit(4);
+  }
+  print("SetRealTime: ok\r\n");
+  Exit(0);
+}
+
+void foo()
+{
+  if (SetRealTime(1000, 600) != 0) {
+    print("SetRealTime: first thread was not admitted\r\n");
+    Exit(5);
+  }
+  admitted = 1;
+  Sleep(5000);
+  SetRealTime(0, 0);
+  Exit(0);
+}
+
+void print(char *s)
+{
+  int n;
+
+  for (n = 0; s[n] != '\0'; n++);
+  Write(s, n, ConsoleOutput);
+}
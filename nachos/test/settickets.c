@@ -0,0 +1,76 @@
+/* Basic test of SetTickets() system call.
+ *
+ * Three threads hold 100, 200 and 300 tickets and do the same amount of
+ * work.  With -sp stride (or, most of the time, -sp lottery) and -ps, they
+ * should finish in order of tickets: 300 first and 100 last.
+ */
+
+#include "syscall.h"
+
+void print(char *s);
+void printNumber(int n);
+void count(int tickets);
+void foo();
+void foo1();
+
+int
+main()
+{
+  if (SetTickets(0) != -1) {
+    print("SetTickets: 0 tickets were accepted\r\n");
+    Exit(1);
+  }
+  if (SetTickets(100) != 100) {
+    print("SetTickets: a thread did not start with 100 tickets\r\n");
+    Exit(2);
+  }
+  Fork(&foo);
+  Fork(&foo1);
+  count(100);
+  Exit(0);
+}
+
+void foo()
+{
+  count(200);
+  Exit(0);
+}
+
+void foo1()
+{
+  count(300);
+  Exit(0);
+}
+
+/* Take a number of tickets, then do some work and say when it is done. */
+void count(int tickets)
+{
+  int i, j;
+
+  SetTickets(tickets);
+  for (i = 0; i < 2000; i++)
+    for (j = 0; j < 100; j++);
+  printNumber(tickets);
+  print(" tickets done\r\n");
+}
+
+void print(char *s)
+{
+  int n;
+
+  for (n = 0; s[n] != '\0'; n++);
+  Write(s, n, ConsoleOutput);
+}
+
+void printNumber(int n)
+{
+  char buf[12];
+  int i = 11;
+
+  buf[i] = '\0';
+  do {
+    buf[--i] = '0' + n % 10;
+    n /= 10;
+  } while (n > 0);
+  print(&buf[i]);
+}
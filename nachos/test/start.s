@@ -75,6 +75,14 @@ Join:
 	j	$31
 	.end Join
 
+	.globl ForkSpace
+	.ent	ForkSpace
+ForkSpace:
+	addiu $2,$0,SC_ForkSpace
+	syscall
+	j	$31
+	.end ForkSpace
+
 	.globl Create
 	.ent	Create
 Create:
@@ -147,6 +155,30 @@ Sleep:
 	j	$31
 	.end Sleep
 
+	.globl SetAffinity
+	.ent	SetAffinity
+SetAffinity:
+	addiu $2,$0,SC_SetAffinity
+	syscall
+	j	$31
+	.end SetAffinity
+
+	.globl SetTickets
+	.ent	SetTickets
+SetTickets:
+	addiu $2,$0,SC_SetTickets
+	syscall
+	j	$31
+	.end SetTickets
+
+	.globl SetRealTime
+	.ent	SetRealTime
+SetRealTime:
+	addiu $2,$0,SC_SetRealTime
+	syscall
+	j	$31
+	.end SetRealTime
+
 /* dummy function to keep gcc happy */
         .globl  __main
         .ent    __main
@@ -31,6 +31,10 @@
 #define SC_Yield	10
 #define SC_Remove	11
 #define SC_Sleep	12
+#define SC_SetAffinity	13
+#define SC_SetRealTime	14
+#define SC_ForkSpace	16
+#define SC_SetTickets	17
 
 #ifndef IN_ASM
 
@@ -65,6 +69,13 @@ SpaceId Exec(char *name);
  * Return the exit status.
  */
 int Join(SpaceId id); 	
+
+/* Fork the calling program, as UNIX fork() does: the new program starts
+ * as a copy of this one (sharing its memory until either writes to it),
+ * running only the calling thread.  Return the new program's SpaceId, or
+ * -1 if there is not enough memory; the new program gets 0.
+ */
+SpaceId ForkSpace();
  
 
 /* File system operations: Create, Open, Read, Write, Close, Remove
@@ -132,6 +143,27 @@ void Yield();
 /* Calling thread sleeps for a number of ticks. */
 void Sleep(int ticks);	
 
+/* Restrict the calling thread to the CPUs whose bits are set in "mask"
+ * (bit i for CPU i).  Return the previous mask, or -1 if "mask" names
+ * no CPU of this machine.
+ */
+int SetAffinity(int mask);
+
+/* Give the calling thread "tickets" tickets (at least 1; every thread
+ * starts with 100).  Under the stride and lottery scheduling policies each
+ * thread gets a share of the CPU in proportion to its tickets.  Return the
+ * previous number, or -1 if "tickets" is less than 1.
+ */
+int SetTickets(int tickets);
+
+/* Make the calling thread real-time: in every "period" ticks it may run
+ * for up to "budget" ticks ahead of all other threads, earliest deadline
+ * first, and is throttled once its budget is used up.  A period of 0 makes
+ * it an ordinary thread again.  Return 0, or -1 if the arguments are
+ * invalid or there is not enough CPU time left to admit the thread.
+ */
+int SetRealTime(int period, int budget);
+
 #endif /* IN_ASM */
 
 #endif /* SYSCALL_H */